@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.benchmarks;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.wallet.BranchAndBoundCoinSelector;
+import com.google.infinitecoinj.wallet.CoinSelection;
+import com.google.infinitecoinj.wallet.CoinSelector;
+import com.google.infinitecoinj.wallet.DefaultCoinSelector;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selects coins for payments from a synthetic wallet of confirmed outputs, comparing the greedy
+ * {@link DefaultCoinSelector} with the {@link BranchAndBoundCoinSelector}. Output values are spread evenly over
+ * several orders of magnitude, as in a wallet that receives all kinds of payments, and the targets are picked the
+ * same way. Each selection's input count and the value it pays over the target are printed at the end, as they
+ * matter as much as the time taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinSelectionBenchmark {
+    private static final int OUTPUTS_PER_TRANSACTION = 10;
+    private static final int NUM_TARGETS = 64;
+
+    @Param({"10000", "100000"})
+    public int numOutputs;
+
+    @Param({"DEFAULT", "BRANCH_AND_BOUND"})
+    public String selectorType;
+
+    private LinkedList<TransactionOutput> candidates;
+    private BigInteger[] targets;
+    private CoinSelector selector;
+    private int next;
+    private long selections, inputs, overpaid;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters params = UnitTestParams.get();
+        Random random = new Random(42);
+        Address address = new ECKey().toAddress(params);
+        candidates = Lists.newLinkedList();
+        Transaction tx = null;
+        for (int i = 0; i < numOutputs; i++) {
+            if (i % OUTPUTS_PER_TRANSACTION == 0) {
+                tx = new Transaction(params);
+                tx.getConfidence().setAppearedAtChainHeight(1 + random.nextInt(1000));
+            }
+            candidates.add(tx.addOutput(randomValue(random), address));
+        }
+        targets = new BigInteger[NUM_TARGETS];
+        for (int i = 0; i < NUM_TARGETS; i++)
+            targets[i] = randomValue(random).multiply(BigInteger.valueOf(10));
+        BigInteger feePerKb = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        selector = selectorType.equals("DEFAULT") ? new DefaultCoinSelector() :
+                new BranchAndBoundCoinSelector(feePerKb, BranchAndBoundCoinSelector.DEFAULT_TIME_BUDGET_MILLIS);
+    }
+
+    // Between 0.01 and 1000 coins.
+    private static BigInteger randomValue(Random random) {
+        return BigInteger.valueOf((long) (Utils.CENT.longValue() * Math.pow(10, random.nextDouble() * 5)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s: %.1f inputs and %.4f coins over the target per selection%n", selectorType,
+                (double) inputs / selections, (double) overpaid / selections / Utils.COIN.longValue());
+    }
+
+    @Benchmark
+    public CoinSelection select() {
+        BigInteger target = targets[next++ % NUM_TARGETS];
+        CoinSelection selection = selector.select(target, candidates);
+        selections++;
+        inputs += selection.gathered.size();
+        overpaid += selection.valueGathered.subtract(target).longValue();
+        return selection;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.benchmarks;
+
+import com.google.infinitecoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures double SHA-256 throughput of {@link Utils#doubleDigest(byte[])} against the single shared, synchronized
+ * digest it used to have, both on one thread and on as many threads as there are processors, which is the size of
+ * the script verification pool in FullPrunedBlockChain. The input is the size of a typical transaction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+    private static final MessageDigest sharedDigest;
+    static {
+        try {
+            sharedDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] tx;
+
+    @Setup
+    public void setUp() {
+        tx = new byte[250];
+        new Random(42).nextBytes(tx);
+    }
+
+    private static byte[] sharedDoubleDigest(byte[] input) {
+        synchronized (sharedDigest) {
+            sharedDigest.reset();
+            sharedDigest.update(input, 0, input.length);
+            byte[] first = sharedDigest.digest();
+            return sharedDigest.digest(first);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] sharedDigestOneThread() {
+        return sharedDoubleDigest(tx);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] sharedDigestAllThreads() {
+        return sharedDoubleDigest(tx);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] threadLocalDigestOneThread() {
+        return Utils.doubleDigest(tx);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] threadLocalDigestAllThreads() {
+        return Utils.doubleDigest(tx);
+    }
+}
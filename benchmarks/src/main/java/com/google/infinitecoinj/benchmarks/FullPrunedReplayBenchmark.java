@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.benchmarks;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.store.FullPrunedBlockStore;
+import com.google.infinitecoinj.store.H2FullPrunedBlockStore;
+import com.google.infinitecoinj.store.MemoryFullPrunedBlockStore;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a generated chain through a {@link FullPrunedBlockChain}, with scripts switched off so that the time goes
+ * into the unspent output set. After the first few blocks each block spends a matured coinbase into
+ * {@link #FAN_OUT} outputs and spends every output the previous block fanned out, so each block removes and adds
+ * a couple of hundred outputs. Run it against the previous commit to compare H2 writes without statement caching
+ * and batching. The memory store shows how much of the time is spent outside the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullPrunedReplayBenchmark {
+    private static final int BLOCKS = 100;
+    private static final int FAN_OUT = 200;
+
+    @Param({"h2", "memory"})
+    public String store;
+
+    private NetworkParameters params;
+    private List<Block> blocks;
+    private File directory;
+    private FullPrunedBlockStore blockStore;
+    private FullPrunedBlockChain chain;
+
+    @Setup(Level.Trial)
+    public void generateChain() {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        byte[] pubKey = new ECKey().getPubKey();
+        BigInteger coinbaseValue = Utils.toNanoCoins(50, 0);
+        BigInteger fanOutValue = coinbaseValue.divide(BigInteger.valueOf(FAN_OUT));
+        blocks = new ArrayList<Block>();
+        List<TransactionOutput> fannedOut = new ArrayList<TransactionOutput>();
+        Block prev = params.getGenesisBlock();
+        for (int height = 1; height <= BLOCKS; height++) {
+            Block block = prev.createNextBlockWithCoinbase(pubKey, coinbaseValue);
+            List<TransactionOutput> nextFannedOut = new ArrayList<TransactionOutput>();
+            int coinbaseHeight = height - params.getSpendableCoinbaseDepth();
+            if (coinbaseHeight >= 1) {
+                Transaction fan = new Transaction(params);
+                fan.addInput(blocks.get(coinbaseHeight - 1).getTransactions().get(0).getOutput(0));
+                for (int i = 0; i < FAN_OUT; i++)
+                    nextFannedOut.add(fan.addOutput(new TransactionOutput(params, fan, fanOutValue, new byte[] {})));
+                block.addTransaction(fan);
+            }
+            for (TransactionOutput out : fannedOut) {
+                Transaction spend = new Transaction(params);
+                spend.addInput(out);
+                spend.addOutput(new TransactionOutput(params, spend, out.getValue(), new byte[] {}));
+                block.addTransaction(spend);
+            }
+            block.solve();
+            blocks.add(block);
+            fannedOut = nextFannedOut;
+            prev = block;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createStore() throws Exception {
+        if (store.equals("h2")) {
+            directory = Files.createTempDir();
+            blockStore = new H2FullPrunedBlockStore(params, new File(directory, "chain").getAbsolutePath(), 1000);
+        } else {
+            blockStore = new MemoryFullPrunedBlockStore(params, 1000);
+        }
+        chain = new FullPrunedBlockChain(params, blockStore);
+        chain.setRunScripts(false);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeStore() throws Exception {
+        blockStore.close();
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            directory.delete();
+            directory = null;
+        }
+    }
+
+    @Benchmark
+    public StoredBlock replay() throws Exception {
+        for (Block block : blocks) {
+            if (!chain.add(block))
+                throw new IllegalStateException("Block did not connect: " + block.getHashAsString());
+        }
+        return chain.getChainHead();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.benchmarks;
+
+import com.google.infinitecoinj.core.Block;
+import com.google.infinitecoinj.crypto.ScryptHasher;
+import com.lambdaworks.crypto.SCrypt;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of hashing one 80 byte block header with {@link ScryptHasher} against the lambdaworks
+ * {@link SCrypt} implementation that Utils.scryptDigest used to call. Each invocation changes the nonce so no
+ * results can be cached anywhere.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ScryptBenchmark {
+    private byte[] header;
+    private int nonce;
+
+    @Setup
+    public void setUp() {
+        header = new byte[Block.HEADER_SIZE];
+        new Random(42).nextBytes(header);
+    }
+
+    private byte[] nextHeader() {
+        nonce++;
+        header[76] = (byte) nonce;
+        header[77] = (byte) (nonce >>> 8);
+        header[78] = (byte) (nonce >>> 16);
+        header[79] = (byte) (nonce >>> 24);
+        return header;
+    }
+
+    /** The old Utils.scryptDigest path: native code if lambdaworks could load it, generic Java otherwise. */
+    @Benchmark
+    public byte[] lambdaworks() throws GeneralSecurityException {
+        byte[] h = nextHeader();
+        return SCrypt.scrypt(h, h, 1024, 1, 1, 32);
+    }
+
+    /** The generic pure Java lambdaworks implementation. */
+    @Benchmark
+    public byte[] lambdaworksJava() throws GeneralSecurityException {
+        byte[] h = nextHeader();
+        return SCrypt.scryptJ(h, h, 1024, 1, 1, 32);
+    }
+
+    @Benchmark
+    public byte[] scryptHasher() {
+        return ScryptHasher.hash(nextHeader());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] scryptHasherAllCores() {
+        return ScryptHasher.hash(nextHeader());
+    }
+}
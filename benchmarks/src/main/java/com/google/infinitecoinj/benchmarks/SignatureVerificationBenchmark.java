@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.benchmarks;
+
+import com.google.infinitecoinj.core.ECKey;
+import com.google.infinitecoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} with the secp256k1 specific engine against
+ * Bouncy Castle's generic ECDSA code, which is what was used before. A set of keys and signatures is cycled through
+ * so that nothing about one public key can be cached between calls, with both compressed and uncompressed keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SignatureVerificationBenchmark {
+    private static final int NUM_SIGNATURES = 64;
+
+    @Param({"SECP256K1", "GENERIC"})
+    public ECKey.VerificationEngine engine;
+
+    @Param({"true", "false"})
+    public boolean compressed;
+
+    private byte[][] hashes;
+    private ECKey.ECDSASignature[] signatures;
+    private byte[][] pubKeys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        hashes = new byte[NUM_SIGNATURES][];
+        signatures = new ECKey.ECDSASignature[NUM_SIGNATURES];
+        pubKeys = new byte[NUM_SIGNATURES][];
+        for (int i = 0; i < NUM_SIGNATURES; i++) {
+            ECKey key = new ECKey(new BigInteger(255, random), null, compressed);
+            hashes[i] = new byte[32];
+            random.nextBytes(hashes[i]);
+            signatures[i] = key.sign(new Sha256Hash(hashes[i]));
+            pubKeys[i] = key.getPubKey();
+        }
+        ECKey.setVerificationEngine(engine);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ECKey.setVerificationEngine(ECKey.VerificationEngine.SECP256K1);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        int i = next++ % NUM_SIGNATURES;
+        return ECKey.verify(hashes[i], signatures[i], pubKeys[i]);
+    }
+}
@@ -22,6 +22,8 @@ import com.google.infinitecoinj.store.BlockStoreException;
 import com.google.infinitecoinj.utils.ListenerRegistration;
 import com.google.infinitecoinj.utils.Threading;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -104,6 +106,11 @@ public abstract class AbstractBlockChain {
     // locked most of the time.
     private final Object chainHeadLock = new Object();
 
+    // The last blocks of the best chain, as many as a difficulty check looks back over with the largest retarget
+    // interval, so that checking the difficulty of a block on top of the best chain doesn't read the block store.
+    private final HeaderWindow bestChainWindow =
+            new HeaderWindow(Math.max(CoinDefinition.INTERVAL, CoinDefinition.INTERVAL_PPC) + 1);
+
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
@@ -112,6 +119,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how many bytes the block and its transactions take up, for limiting the size of the orphan pool.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -122,11 +131,27 @@ public abstract class AbstractBlockChain {
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = this.block.transactions == null ? Block.HEADER_SIZE :
+                    this.block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+            }
+            this.size = size;
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. Kept in the order they arrived, so the oldest are dropped first when the pool
+    // is full.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // The same blocks by the hash of the block they build on, so that connecting a block finds those waiting for it.
+    private final ListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrev = ArrayListMultimap.create();
+    private long orphanBlocksSize;
+
+    /** The most bytes of blocks kept in the orphan pool by default. */
+    public static final long DEFAULT_MAX_ORPHAN_BLOCKS_SIZE = 16 * 1024 * 1024;
+    private long maxOrphanBlocksSize = DEFAULT_MAX_ORPHAN_BLOCKS_SIZE;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -340,13 +365,16 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
             if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
-                return false;
+                // Orphans are connected along with their parent, unless connecting a sibling failed first. Then they
+                // are still waiting when they turn up again.
+                if (getStoredBlockInCurrentScope(block.getPrevBlockHash()) == null)
+                    return false;
+                removeOrphan(orphanBlocks.get(block.getHash()));
             }
 
             // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
@@ -390,7 +418,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -404,7 +432,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -754,46 +782,80 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        bestChainWindow.setHead(chainHead, blockStore);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
     }
 
+    private void addOrphan(OrphanBlock orphan) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphan.block.getHash(), orphan);
+        orphanBlocksByPrev.put(orphan.block.getPrevBlockHash(), orphan);
+        orphanBlocksSize += orphan.size;
+        // Make room by dropping the oldest orphans, but never the new one, as the caller is about to look for its root.
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while (orphanBlocksSize > maxOrphanBlocksSize && orphanBlocks.size() > 1) {
+            OrphanBlock oldest = iter.next();
+            iter.remove();
+            orphanBlocksByPrev.remove(oldest.block.getPrevBlockHash(), oldest);
+            orphanBlocksSize -= oldest.size;
+            log.info("Orphan pool is full, dropped {}", oldest.block.getHashAsString());
+        }
+    }
+
+    private void removeOrphan(OrphanBlock orphan) {
+        orphanBlocks.remove(orphan.block.getHash());
+        orphanBlocksByPrev.remove(orphan.block.getPrevBlockHash(), orphan);
+        orphanBlocksSize -= orphan.size;
+    }
+
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that were waiting for the given block, and then those waiting for them and so on, in
+     * chain order.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
+        if (orphanBlocks.isEmpty())
+            return;
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            // Takes the orphans waiting for the parent one at a time, so that should one fail to connect the others
+            // are still in the pool.
+            List<OrphanBlock> waiting = orphanBlocksByPrev.get(parents.poll());
+            while (!waiting.isEmpty()) {
+                OrphanBlock orphanBlock = waiting.remove(0);
                 log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
+                orphanBlocks.remove(orphanBlock.block.getHash());
+                orphanBlocksSize -= orphanBlock.size;
+                // False here ensures we don't recurse downwards when connecting huge chains, the loop does it instead.
+                if (add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn)) {
+                    parents.add(orphanBlock.block.getHash());
+                    blocksConnected++;
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    /**
+     * Sets the most bytes of blocks kept while they don't connect to the chain, by default
+     * {@link #DEFAULT_MAX_ORPHAN_BLOCKS_SIZE}. When there are more, the oldest are dropped and will have to be
+     * downloaded again. The size of a block is estimated from its serialized size, so is only a guide to the memory
+     * it takes up.
+     */
+    public void setMaxOrphanBlocksSize(long maxOrphanBlocksSize) {
+        checkArgument(maxOrphanBlocksSize >= 0, "Negative size");
+        lock.lock();
+        try {
+            this.maxOrphanBlocksSize = maxOrphanBlocksSize;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // February 16th 2012
@@ -845,26 +907,23 @@ public abstract class AbstractBlockChain {
         {
             long now = System.currentTimeMillis();
 
-            StoredBlock cursor = blockStore.get(prev.getHash());
-
             int goBack = interval - 1;
-            if (cursor.getHeight()+1 != interval)
+            if (storedPrev.getHeight()+1 != interval)
                 goBack = interval;
 
-            for (int i = 0; i < goBack; i++) {
-                if (cursor == null) {
-                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                    throw new VerificationException(
-                            "Difficulty transition point but we did not find a way back to the genesis block.");
-                }
-                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-            }
+            StoredBlock cursor = getAncestor(storedPrev, storedPrev.getHeight() - goBack);
             long elapsed = System.currentTimeMillis() - now;
             if (elapsed > 50)
                 log.info("Difficulty transition traversal took {}msec", elapsed);
 
-            // Check if our cursor is null.  If it is, we've used checkpoints to restore.
-            if(cursor == null) return;
+            int missing = cursor.getHeight() - (storedPrev.getHeight() - goBack);
+            // If only the block we need is missing, we've used checkpoints to restore.
+            if (missing == 1) return;
+            if (missing > 1) {
+                // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                throw new VerificationException(
+                        "Difficulty transition point but we did not find a way back to the genesis block.");
+            }
 
             Block blockIntervalAgo = cursor.getHeader();
             timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
@@ -889,8 +948,8 @@ public abstract class AbstractBlockChain {
         }
         else
         {
-            StoredBlock first = blockStore.get(prev.getPrevBlockHash());
-            if(first == null)
+            StoredBlock first = getAncestor(storedPrev, storedPrev.getHeight() - 1);
+            if(first.getHeight() != storedPrev.getHeight() - 1)
             {
                 //This is activated based on the checkpointing system
                 //We can return and accept this block.  The difficulty validation can begin with the next block.
@@ -935,6 +994,25 @@ public abstract class AbstractBlockChain {
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
 
+    /**
+     * Returns the ancestor of the given block at the given height. It comes from the window of recent best chain
+     * blocks if it can, otherwise the block store is walked back, in which case the lowest block found is returned if
+     * the store runs out first, as it does when the chain was restored from a checkpoint.
+     */
+    private StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        StoredBlock ancestor = bestChainWindow.getAncestor(block, height);
+        if (ancestor != null)
+            return ancestor;
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height) {
+            StoredBlock prev = cursor.getPrev(blockStore);
+            if (prev == null)
+                break;
+            cursor = prev;
+        }
+        return cursor;
+    }
+
     private void checkDifficultyTransitions_original(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
         Block prev = storedPrev.getHeader();
@@ -17,6 +17,7 @@
 package com.google.infinitecoinj.core;
 
 
+import com.google.infinitecoinj.net.BufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -129,6 +130,86 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Serializes the message, with its header, straight into a direct buffer taken from the given pool, without
+     * building the payload up in a byte array first. The buffer is returned flipped, ready to be written to any number
+     * of connections. The caller holds the one reference to it and must release it.
+     */
+    public BufferPool.PooledBuffer serialize(Message message, BufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + COMMAND_LEN + 4 + 4;
+        // Messages that were parsed, or have been serialized before, know their length.
+        int sizeHint = message.length == Message.UNKNOWN_LENGTH ? 0 : message.length;
+        PooledBufferOutputStream out = new PooledBufferOutputStream(pool, headerLength + sizeHint);
+        try {
+            out.buffer.buffer().position(headerLength);
+            message.bitcoinSerialize(out);
+        } catch (IOException e) {
+            out.buffer.release();
+            throw e;
+        } catch (RuntimeException e) {
+            out.buffer.release();
+            throw e;
+        }
+        ByteBuffer buffer = out.buffer.buffer();
+        int payloadLength = buffer.position() - headerLength;
+
+        byte[] header = new byte[headerLength];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+        Utils.uint32ToByteArrayLE(payloadLength, header, 4 + COMMAND_LEN);
+        ByteBuffer payload = buffer.duplicate();
+        payload.flip();
+        payload.position(headerLength);
+        byte[] hash = doubleDigest(payload);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        buffer.flip();
+        buffer.put(header);
+        buffer.rewind();
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message of {} bytes", name, payloadLength);
+        return out.buffer;
+    }
+
+    // Writes into a pooled buffer, moving to a buffer twice the size whenever it fills up.
+    private static class PooledBufferOutputStream extends OutputStream {
+        private final BufferPool pool;
+        BufferPool.PooledBuffer buffer;
+
+        PooledBufferOutputStream(BufferPool pool, int size) {
+            this.pool = pool;
+            this.buffer = pool.take(size);
+        }
+
+        private ByteBuffer ensureRemaining(int length) {
+            ByteBuffer current = buffer.buffer();
+            if (current.remaining() >= length)
+                return current;
+            BufferPool.PooledBuffer bigger = pool.take(Math.max(current.capacity() * 2, current.position() + length));
+            current.flip();
+            bigger.buffer().put(current);
+            buffer.release();
+            buffer = bigger;
+            return bigger.buffer();
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1).put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len).put(b, off, len);
+        }
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
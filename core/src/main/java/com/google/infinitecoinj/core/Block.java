@@ -551,6 +551,21 @@ public class Block extends Message {
         return scryptHash;
     }
 
+    /**
+     * Returns the hash that is compared against the difficulty target when checking the proof of work, which is
+     * either {@link #getScryptHash()} or {@link #getHash()} depending on {@link CoinDefinition#coinPOWHash}. The
+     * result is cached, so calling this ahead of time (see {@link ProofOfWorkPreVerifier}) means
+     * {@link #verifyHeader()} doesn't have to calculate it.
+     */
+    public Sha256Hash getProofOfWorkHash() {
+        switch (CoinDefinition.coinPOWHash) {
+            case scrypt:
+                return getScryptHash();
+            default:
+                return getHash();
+        }
+    }
+
 
     /**
      * The number that is one greater than the largest representable SHA-256
@@ -583,6 +598,8 @@ public class Block extends Message {
         block.difficultyTarget = difficultyTarget;
         block.transactions = null;
         block.hash = getHash().duplicate();
+        if (scryptHash != null)
+            block.scryptHash = scryptHash.duplicate();
         return block;
     }
 
@@ -667,24 +684,11 @@ public class Block extends Message {
         // To prevent this attack from being possible, elsewhere we check that the difficultyTarget
         // field is of the right value. This requires us to have the preceeding blocks.
         BigInteger target = getDifficultyTargetAsInteger();
-        BigInteger h = null;
-        switch (CoinDefinition.coinPOWHash)
-        {
-            case scrypt:
-                    h = getScryptHash().toBigInteger();
-                    break;
-            case SHA256:
-                    h = getHash().toBigInteger();
-                    break;
-            default:  //use the normal getHash() method.
-                h = getHash().toBigInteger();
-                break;
-        }
-
+        BigInteger h = getProofOfWorkHash().toBigInteger();
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
             if (throwException)
-                throw new VerificationException("Hash is higher than target: " + getScryptHashAsString() + " vs "
+                throw new VerificationException("Hash is higher than target: " + getProofOfWorkHash() + " vs "
                         + target.toString(16));
             else
                 return false;
@@ -692,6 +696,15 @@ public class Block extends Message {
         return true;
     }
 
+    /** Returns true if the proof of work hash is below the difficulty target in the header, which must be in range. */
+    boolean hasValidProofOfWork() {
+        try {
+            return checkProofOfWork(false);
+        } catch (VerificationException e) {
+            return false;  // The target is out of range.
+        }
+    }
+
     private void checkTimestamp() throws VerificationException {
         maybeParseHeader();
         // Allow injection of a fake clock to allow unit testing.
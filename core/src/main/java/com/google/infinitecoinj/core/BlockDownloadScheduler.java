@@ -0,0 +1,535 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.store.BlockStore;
+import com.google.infinitecoinj.store.BlockStoreException;
+import com.google.infinitecoinj.utils.Threading;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first. The headers are fetched from the download peer with
+ * {@link GetHeadersMessage}s and checked to link up and carry valid proof of work, then the blocks they describe are
+ * requested with {@link GetDataMessage}s spread across all connected peers. Blocks are only requested within a window
+ * ahead of the chain head, and each peer has a limit on how many it may have outstanding, so one slow peer holds up
+ * little. A block that isn't delivered within the stall timeout is asked of another peer. Whatever order blocks
+ * arrive in, they are added to the {@link AbstractBlockChain} in chain order.</p>
+ *
+ * <p>Headers older than the fast catchup time are added to the chain as they are, without downloading the blocks.
+ * Difficulty isn't checked here: the chain does that as the blocks are added.</p>
+ *
+ * <p>A {@link PeerGroup} creates one of these when headers first download is switched on, tells it about peers as
+ * they come and go and calls {@link #checkForStalls()} periodically. Its peers pass on the headers and blocks they
+ * receive. A peer that sends a block that fails verification is disconnected, and the block isn't asked for again.</p>
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** How many blocks a peer may be asked for at once. */
+    static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** How far ahead of the chain head blocks are requested. This bounds the blocks held waiting for their parents. */
+    static final int DOWNLOAD_WINDOW = 512;
+    /** How long a peer has to deliver a block, or answer a getheaders, before another peer is asked. */
+    static final long STALL_TIMEOUT_MSEC = 10 * 1000;
+    /** How often {@link #checkForStalls()} should be called. */
+    static final long STALL_CHECK_INTERVAL_MSEC = 1000;
+    // Fetching headers pauses with this many queued, until the blocks catch up.
+    private static final int MAX_QUEUED_HEADERS = 10 * HeadersMessage.MAX_HEADERS;
+    // How many of the queued headers go into a locator, ahead of the blocks of the chain.
+    private static final int LOCATOR_QUEUED_HEADERS = 10;
+
+    private final ReentrantLock lock = Threading.lock("blockdownload");
+    // Held whilst adding blocks to the chain, so that only one thread at a time does it and they go in in order.
+    private final ReentrantLock deliveryLock = Threading.lock("blockdelivery");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+
+    private static class PendingBlock {
+        final Block header;
+        final int height;
+        // The block once received, or for headers older than the fast catchup time the header itself, and where from.
+        @Nullable Message data;
+        @Nullable Peer source;
+        // The peer the block is currently requested from, and when.
+        @Nullable Peer requestedFrom;
+        long requestTimeMsec;
+        // Peers that didn't deliver the block in time. They are only asked again if nobody else can be.
+        @Nullable Set<Peer> stalledPeers;
+
+        PendingBlock(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+    }
+
+    // The headers beyond the chain head in chain order, with the blocks received for them so far.
+    @GuardedBy("lock") private final LinkedList<PendingBlock> queue = new LinkedList<PendingBlock>();
+    @GuardedBy("lock") private final Map<Sha256Hash, PendingBlock> pendingByHash = new HashMap<Sha256Hash, PendingBlock>();
+    // The blocks each connected peer has been asked for and not delivered. Ordered to make unit tests predictable.
+    @GuardedBy("lock") private final Map<Peer, Set<Sha256Hash>> inFlight = new LinkedHashMap<Peer, Set<Sha256Hash>>();
+    // The peer headers are fetched from, when the outstanding getheaders was sent to it (zero if there is none) and
+    // whether there may be more headers to fetch.
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") private long headersRequestTimeMsec;
+    @GuardedBy("lock") private boolean moreHeaders;
+    // The blocks that failed verification. Headers for them, and those building on them, aren't queued again.
+    @GuardedBy("lock") private final Set<Sha256Hash> rejected = new HashSet<Sha256Hash>();
+
+    private volatile long vFastCatchupTimeSecs;
+    private volatile boolean vUseFilteredBlocks;
+
+    BlockDownloadScheduler(NetworkParameters params, AbstractBlockChain chain) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.vFastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
+    }
+
+    /**
+     * Sets the time before which only headers are needed, and whether to ask peers that support Bloom filtering for
+     * filtered blocks. Headers already queued keep the setting they were queued with.
+     */
+    void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        this.vFastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.vUseFilteredBlocks = useFilteredBlocks;
+    }
+
+    /**
+     * Starts asking the given newly connected peer for blocks. Nothing is sent until {@link #sendRequests()} is
+     * called, which the {@link PeerGroup} does once it has released its lock.
+     */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!inFlight.containsKey(peer))
+                inFlight.put(peer, new LinkedHashSet<Sha256Hash>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets about the given peer. The blocks it was asked for are asked of other peers by the next
+     * {@link #sendRequests()}, which the {@link PeerGroup} calls once it has released its lock.
+     */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            Set<Sha256Hash> requested = inFlight.remove(peer);
+            if (requested != null) {
+                for (Sha256Hash hash : requested) {
+                    PendingBlock pending = pendingByHash.get(hash);
+                    if (pending != null && pending.requestedFrom == peer)
+                        pending.requestedFrom = null;
+                }
+            }
+            if (peer == headersPeer) {
+                headersPeer = null;
+                headersRequestTimeMsec = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the given peer for the headers following those already known, making it the peer headers are fetched from.
+     * Called when chain download starts and whenever the download peer announces blocks. If a getheaders is already
+     * outstanding, another is sent once it has been answered.
+     */
+    void requestHeaders(Peer peer) {
+        lock.lock();
+        try {
+            if (peer != headersPeer) {
+                headersPeer = peer;
+                headersRequestTimeMsec = 0;
+            }
+            moreHeaders = true;
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Called with the headers the given peer sent. Headers that link on to those already queued, or to a block the
+     * chain has, are checked and queued for download. Queued headers of a fork the peer no longer follows are dropped.
+     *
+     * @throws ProtocolException if the headers don't link up, which means the peer is buggy or malicious
+     */
+    void receiveHeaders(Peer peer, List<Block> headers) throws ProtocolException {
+        lock.lock();
+        try {
+            if (peer != headersPeer) {
+                log.info("{}: Ignoring {} headers, not fetching headers from this peer", peer, headers.size());
+                return;
+            }
+            headersRequestTimeMsec = 0;
+            if (headers.size() >= HeadersMessage.MAX_HEADERS)
+                moreHeaders = true;
+            queueHeaders(peer, headers);
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        sendRequests();
+    }
+
+    @GuardedBy("lock")
+    private void queueHeaders(Peer peer, List<Block> headers) throws ProtocolException {
+        // Check the whole batch before touching the queue.
+        for (int i = 0; i < headers.size(); i++) {
+            Block header = headers.get(i);
+            if (i > 0 && !header.getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+            try {
+                header.verifyHeader();
+            } catch (VerificationException e) {
+                log.warn("{}: Block header verification failed", peer, e);
+                return;
+            }
+            if (rejected.contains(header.getHash())) {
+                log.warn("{}: Sent the header of a block that failed verification: {}", peer,
+                        header.getHashAsString());
+                replaceHeadersPeer(peer);
+                return;
+            }
+        }
+        // Skip the headers we already know about, then find what the rest build on.
+        BlockStore store = chain.getBlockStore();
+        int first = 0;
+        try {
+            while (first < headers.size()) {
+                Sha256Hash hash = headers.get(first).getHash();
+                if (!pendingByHash.containsKey(hash) && store.get(hash) == null)
+                    break;
+                first++;
+            }
+            if (first == headers.size())
+                return;
+            Sha256Hash prevHash = headers.get(first).getPrevBlockHash();
+            PendingBlock base = pendingByHash.get(prevHash);
+            int height;
+            if (base != null) {
+                height = base.height;
+            } else {
+                StoredBlock stored = store.get(prevHash);
+                if (stored == null)
+                    throw new ProtocolException("Got headers that don't connect to our chain: " +
+                            headers.get(first).getHashAsString());
+                height = stored.getHeight();
+            }
+            // Normally the headers build on the last one queued, otherwise the peer has gone over to a fork.
+            dropQueuedAfter(base);
+            long fastCatchupTimeSecs = vFastCatchupTimeSecs;
+            for (Block header : headers.subList(first, headers.size())) {
+                PendingBlock pending = new PendingBlock(header, ++height);
+                if (header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    pending.data = header;
+                    pending.source = peer;
+                }
+                queue.add(pending);
+                pendingByHash.put(header.getHash(), pending);
+            }
+            log.info("{}: Queued {} headers up to height {}", peer, headers.size() - first, height);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Drops the queued headers after the given one, or all of them if it's null, and cancels their requests.
+    @GuardedBy("lock")
+    private void dropQueuedAfter(@Nullable PendingBlock base) {
+        while (!queue.isEmpty() && queue.getLast() != base) {
+            PendingBlock dropped = queue.removeLast();
+            Sha256Hash hash = dropped.header.getHash();
+            pendingByHash.remove(hash);
+            if (dropped.requestedFrom != null)
+                inFlight.get(dropped.requestedFrom).remove(hash);
+        }
+    }
+
+    // Stops fetching headers from the given peer, which sent bad ones, and fetches them from another instead.
+    @GuardedBy("lock")
+    private void replaceHeadersPeer(Peer peer) {
+        if (peer != headersPeer)
+            return;
+        headersPeer = null;
+        headersRequestTimeMsec = 0;
+        for (Peer other : inFlight.keySet()) {
+            if (other != peer) {
+                headersPeer = other;
+                break;
+            }
+        }
+        moreHeaders = true;
+    }
+
+    /**
+     * Called with a block the given peer sent. Returns false if it's not one being downloaded here, in which case the
+     * peer should handle it as usual.
+     */
+    boolean receiveBlock(Peer peer, Block block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    /** As {@link #receiveBlock(Peer, Block)}, for a filtered block once its transactions have arrived. */
+    boolean receiveBlock(Peer peer, FilteredBlock block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    private boolean receive(Peer peer, Sha256Hash hash, Message block) {
+        lock.lock();
+        try {
+            Set<Sha256Hash> requested = inFlight.get(peer);
+            boolean wasRequested = requested != null && requested.remove(hash);
+            PendingBlock pending = pendingByHash.get(hash);
+            if (pending == null)
+                return wasRequested;
+            if (pending.data == null) {
+                pending.data = block;
+                pending.source = peer;
+            }
+            // If the block was asked of another peer after this one stalled, that request has been answered too.
+            if (pending.requestedFrom != null && pending.requestedFrom != peer)
+                inFlight.get(pending.requestedFrom).remove(hash);
+            pending.requestedFrom = null;
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        sendRequests();
+        return true;
+    }
+
+    /**
+     * Takes block requests that have been outstanding longer than the stall timeout away from their peers, so they
+     * can be asked of others, and repeats a getheaders that wasn't answered in that time.
+     */
+    void checkForStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            int i = 0;
+            for (PendingBlock pending : queue) {
+                if (i++ >= DOWNLOAD_WINDOW)
+                    break;
+                Peer peer = pending.requestedFrom;
+                if (peer == null || now - pending.requestTimeMsec < STALL_TIMEOUT_MSEC)
+                    continue;
+                log.info("{}: Stalled on block {} for {} msec, asking another peer",
+                        peer, pending.header.getHashAsString(), now - pending.requestTimeMsec);
+                inFlight.get(peer).remove(pending.header.getHash());
+                pending.requestedFrom = null;
+                if (pending.stalledPeers == null)
+                    pending.stalledPeers = new HashSet<Peer>();
+                pending.stalledPeers.add(peer);
+            }
+            if (headersRequestTimeMsec != 0 && now - headersRequestTimeMsec >= STALL_TIMEOUT_MSEC) {
+                log.info("{}: No headers received for {} msec, asking again", headersPeer, now - headersRequestTimeMsec);
+                headersRequestTimeMsec = 0;
+                moreHeaders = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Adds the blocks at the front of the queue that have been received to the chain, stopping at the first one that
+     * hasn't. A block that fails verification is dropped along with everything queued after it and never asked for
+     * again, and the peer that sent it is disconnected. If a block doesn't connect, the chain has moved somewhere the
+     * queued headers don't follow, so they are dropped and fetched again.
+     */
+    private void deliver() {
+        deliveryLock.lock();
+        try {
+            while (true) {
+                PendingBlock next;
+                Peer reporter;
+                lock.lock();
+                try {
+                    next = queue.peekFirst();
+                    if (next == null || next.data == null)
+                        return;
+                    reporter = headersPeer != null ? headersPeer : checkNotNull(next.source);
+                } finally {
+                    lock.unlock();
+                }
+                boolean connected;
+                try {
+                    if (next.data instanceof FilteredBlock)
+                        connected = chain.add((FilteredBlock) next.data);
+                    else
+                        connected = chain.add((Block) next.data);
+                } catch (VerificationException e) {
+                    Peer source = checkNotNull(next.source);
+                    log.warn("{}: Block verification failed, disconnecting", source, e);
+                    lock.lock();
+                    try {
+                        // Everything queued builds on the bad block, so goes too. If the headers came from the peer
+                        // that sent it, or it's a header of its own, they are fetched from another peer.
+                        rejected.add(next.header.getHash());
+                        dropQueuedAfter(null);
+                        replaceHeadersPeer(source);
+                        moreHeaders = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    // Disconnecting calls back into the PeerGroup, so do it without the lock.
+                    source.close();
+                    return;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+                lock.lock();
+                try {
+                    if (connected && queue.peekFirst() == next) {
+                        queue.removeFirst();
+                        pendingByHash.remove(next.header.getHash());
+                    } else if (!connected) {
+                        log.warn("{}: Block {} does not connect to the chain, fetching headers again",
+                                next.source, next.header.getHashAsString());
+                        dropQueuedAfter(null);
+                        moreHeaders = true;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (!connected)
+                    return;
+                // Progress is reported through the download peer, which has the download listener.
+                if (next.data instanceof FilteredBlock)
+                    reporter.invokeOnBlocksDownloaded(((FilteredBlock) next.data).getBlockHeader());
+                else
+                    reporter.invokeOnBlocksDownloaded((Block) next.data);
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a getheaders to the headers peer if more headers are wanted, and asks peers with room for the blocks of the
+     * window that are neither received nor requested yet. Messages are sent without the lock held, as a failed write
+     * can call back into the {@link PeerGroup}, so the PeerGroup mustn't call this with its own lock held either.
+     */
+    void sendRequests() {
+        ListMultimap<Peer, Message> requests = ArrayListMultimap.create();
+        lock.lock();
+        try {
+            if (headersPeer != null && headersRequestTimeMsec == 0 && moreHeaders && queue.size() < MAX_QUEUED_HEADERS) {
+                requests.put(headersPeer, new GetHeadersMessage(params, buildLocator(), Sha256Hash.ZERO_HASH));
+                headersRequestTimeMsec = Utils.currentTimeMillis();
+                moreHeaders = false;
+            }
+            Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+            boolean useFilteredBlocks = vUseFilteredBlocks;
+            long now = Utils.currentTimeMillis();
+            int i = 0;
+            for (PendingBlock pending : queue) {
+                if (i++ >= DOWNLOAD_WINDOW)
+                    break;
+                if (pending.data != null || pending.requestedFrom != null)
+                    continue;
+                Peer peer = selectPeer(pending);
+                if (peer == null)
+                    continue;
+                Sha256Hash hash = pending.header.getHash();
+                pending.requestedFrom = peer;
+                pending.requestTimeMsec = now;
+                inFlight.get(peer).add(hash);
+                GetDataMessage getdata = getdatas.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    getdatas.put(peer, getdata);
+                    requests.put(peer, getdata);
+                }
+                if (useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                    getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
+                else
+                    getdata.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+            }
+            // A ping after filtered blocks makes sure the last one's transactions end with the pong.
+            for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+                if (entry.getValue().getItems().get(0).type == InventoryItem.Type.FilteredBlock)
+                    requests.put(entry.getKey(), new Ping((long) (Math.random() * Long.MAX_VALUE)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, Message> request : requests.entries())
+            request.getKey().sendMessage(request.getValue());
+    }
+
+    // Picks a peer with room to ask for the given block, preferring those that haven't stalled on it, then the least busy.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer selectPeer(PendingBlock pending) {
+        Peer best = null;
+        int bestLoad = 0;
+        boolean bestStalled = false;
+        for (Map.Entry<Peer, Set<Sha256Hash>> entry : inFlight.entrySet()) {
+            Peer peer = entry.getKey();
+            int load = entry.getValue().size();
+            if (load >= MAX_BLOCKS_IN_FLIGHT_PER_PEER || peer.getBestHeight() < pending.height)
+                continue;
+            boolean stalled = pending.stalledPeers != null && pending.stalledPeers.contains(peer);
+            if (best == null || (bestStalled && !stalled) || (stalled == bestStalled && load < bestLoad)) {
+                best = peer;
+                bestLoad = load;
+                bestStalled = stalled;
+            }
+        }
+        return best;
+    }
+
+    // The newest queued headers, then the top of the chain and the genesis block, as Peer does for getblocks.
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocator() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(LOCATOR_QUEUED_HEADERS + 101);
+        Iterator<PendingBlock> it = queue.descendingIterator();
+        for (int i = 0; i < LOCATOR_QUEUED_HEADERS && it.hasNext(); i++)
+            locator.add(it.next().header.getHash());
+        try {
+            BlockStore store = chain.getBlockStore();
+            StoredBlock cursor = chain.getChainHead();
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+            if (cursor != null)
+                locator.add(params.getGenesisBlock().getHash());
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
+        }
+        return locator;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Counts the blocks, and the work, a {@link Wallet} has seen added to the best chain, so that the
+ * {@link TransactionConfidence} objects of its transactions can work out their depth and work done when asked, rather
+ * than each being told about every block.</p>
+ *
+ * <p>Confidence objects also tell the counter the block count at which they next reach a depth that somebody wants to
+ * hear about, either one of the counter's thresholds or one wanted by a depth future. When a block is counted, only the
+ * transactions reaching such a depth are returned, so a wallet announces depth changes for those alone.</p>
+ */
+class DepthCounter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long blocks;
+    private BigInteger work = BigInteger.ZERO;
+    // The depths every transaction is announced at.
+    private final TreeSet<Integer> thresholds = new TreeSet<Integer>();
+    // The confidence objects to announce, by the block count at which they reach their next announced depth. Not
+    // serialized, as confidence objects don't keep their counter: the wallet reschedules them when it's read.
+    private transient TreeMap<Long, Set<TransactionConfidence>> due = new TreeMap<Long, Set<TransactionConfidence>>();
+
+    /** Returns the number of blocks counted. */
+    synchronized long getBlocks() {
+        return blocks;
+    }
+
+    /** Returns the work done by the blocks counted. */
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    /**
+     * Adds a depth at which transactions are announced. Returns false if it was one already. Confidence objects
+     * scheduled before it was added only pick it up when they are next rescheduled.
+     */
+    synchronized boolean addThreshold(int depth) {
+        checkArgument(depth > 0, "Depth must be positive");
+        return thresholds.add(depth);
+    }
+
+    /** Returns the depths at which transactions are announced. */
+    synchronized SortedSet<Integer> getThresholds() {
+        return new TreeSet<Integer>(thresholds);
+    }
+
+    /** Returns the smallest depth transactions are announced at that is greater than the given one, or null. */
+    synchronized Integer nextThreshold(int depth) {
+        return thresholds.higher(depth);
+    }
+
+    /**
+     * Counts a new block on the best chain and returns the confidence objects scheduled for the new block count.
+     * They should check with {@link TransactionConfidence#checkDepthDue(long)} that they are still due.
+     */
+    synchronized Collection<TransactionConfidence> add(BigInteger blockWork) {
+        blocks++;
+        work = work.add(blockWork);
+        Set<TransactionConfidence> reached = due.remove(blocks);
+        return reached == null ? Collections.<TransactionConfidence>emptySet() : reached;
+    }
+
+    /**
+     * Moves the given confidence object from the block count it was scheduled for to another. Either can be -1,
+     * meaning none.
+     */
+    synchronized void reschedule(TransactionConfidence confidence, long from, long to) {
+        if (from == to)
+            return;
+        if (from >= 0) {
+            Set<TransactionConfidence> confidences = due.get(from);
+            if (confidences != null && confidences.remove(confidence) && confidences.isEmpty())
+                due.remove(from);
+        }
+        if (to >= 0) {
+            Set<TransactionConfidence> confidences = due.get(to);
+            if (confidences == null) {
+                confidences = new HashSet<TransactionConfidence>();
+                due.put(to, confidences);
+            }
+            confidences.add(confidence);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        due = new TreeMap<Long, Set<TransactionConfidence>>();
+    }
+}
@@ -19,6 +19,7 @@ package com.google.infinitecoinj.core;
 import com.google.infinitecoinj.crypto.EncryptedPrivateKey;
 import com.google.infinitecoinj.crypto.KeyCrypter;
 import com.google.infinitecoinj.crypto.KeyCrypterException;
+import com.google.infinitecoinj.crypto.Secp256k1Verifier;
 import com.google.infinitecoinj.crypto.TransactionSignature;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -49,6 +50,7 @@ import java.security.SignatureException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 // TODO: This class is quite a mess by now. Once users are migrated away from Java serialization for the wallets,
@@ -83,6 +85,19 @@ public class ECKey implements Serializable {
     private static final SecureRandom secureRandom;
     private static final long serialVersionUID = -728224901792295832L;
 
+    /**
+     * Selects how {@link #verify(byte[], ECDSASignature, byte[])} checks signatures when the native secp256k1 library
+     * isn't enabled.
+     */
+    public enum VerificationEngine {
+        /** {@link Secp256k1Verifier}, which is specialized for the secp256k1 curve. This is the default. */
+        SECP256K1,
+        /** Bouncy Castle's generic ECDSA implementation, which is what was always used before. */
+        GENERIC
+    }
+
+    private static volatile VerificationEngine verificationEngine = VerificationEngine.SECP256K1;
+
     static {
         // All clients must agree on the curve to use by agreement. Bitcoin uses secp256k1.
         X9ECParameters params = SECNamedCurves.getByName("secp256k1");
@@ -489,6 +504,9 @@ public class ECKey implements Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        if (verificationEngine == VerificationEngine.SECP256K1)
+            return Secp256k1Verifier.verify(data, signature.r, signature.s, pub);
+
         ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
         signer.init(false, params);
@@ -503,6 +521,19 @@ public class ECKey implements Serializable {
         }
     }
 
+    /**
+     * Sets how signatures are verified when the native secp256k1 library isn't enabled. Both engines give the same
+     * results, except that {@link VerificationEngine#SECP256K1} rejects public keys that aren't on the curve.
+     */
+    public static void setVerificationEngine(VerificationEngine engine) {
+        verificationEngine = checkNotNull(engine);
+    }
+
+    /** Returns how signatures are verified when the native secp256k1 library isn't enabled. */
+    public static VerificationEngine getVerificationEngine() {
+        return verificationEngine;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
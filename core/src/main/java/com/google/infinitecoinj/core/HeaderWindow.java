@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.store.BlockStore;
+import com.google.infinitecoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.util.LinkedList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the most recent blocks of the best chain in memory, so that looking at the blocks just behind the chain
+ * head, as difficulty checks do for every block, needn't go to the block store. Blocks are held by height in a ring
+ * buffer, which is moved along as the chain head changes and rewound to the split point on a re-organize.</p>
+ *
+ * <p>This class is not thread safe. The block chain uses it with its lock held.</p>
+ */
+class HeaderWindow {
+    private final StoredBlock[] blocks;
+    // The height of the highest block held, and how many are held below and including it.
+    private int topHeight = -1;
+    private int size;
+
+    HeaderWindow(int capacity) {
+        checkArgument(capacity > 0, "Capacity must be positive");
+        blocks = new StoredBlock[capacity];
+    }
+
+    /** Returns the best chain block at the given height, or null if it's not in the window. */
+    @Nullable
+    StoredBlock get(int height) {
+        if (height < 0 || height > topHeight || height <= topHeight - size)
+            return null;
+        return blocks[height % blocks.length];
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if it's at that height. Returns
+     * null unless both are in the window, which means the given block must be on the best chain.
+     */
+    @Nullable
+    StoredBlock getAncestor(StoredBlock block, int height) {
+        StoredBlock held = get(block.getHeight());
+        if (held == null || !held.getHeader().getHash().equals(block.getHeader().getHash()))
+            return null;
+        return get(height);
+    }
+
+    /**
+     * Moves the window to end at the given new chain head. Normally the head builds on the highest block held, but
+     * after a re-organize the blocks back to the split point are looked up in the store and replace those of the old
+     * chain. The first time, the window is filled from the store.
+     */
+    void setHead(StoredBlock head, BlockStore store) throws BlockStoreException {
+        // Gather the blocks that aren't held yet, from the new head down to where they join those that are.
+        LinkedList<StoredBlock> added = new LinkedList<StoredBlock>();
+        StoredBlock cursor = head;
+        boolean joined = false;
+        while (true) {
+            added.addFirst(cursor);
+            StoredBlock below = get(cursor.getHeight() - 1);
+            if (below != null && below.getHeader().getHash().equals(cursor.getHeader().getPrevBlockHash())) {
+                joined = true;
+                break;
+            }
+            if (added.size() == blocks.length)
+                break;
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                break;  // Reached the genesis block, or the first block the store has after restoring a checkpoint.
+        }
+        int bottom = added.getFirst().getHeight();
+        if (joined) {
+            // Drop the blocks of the old chain above the split point, if any.
+            size -= topHeight - (bottom - 1);
+        } else {
+            size = 0;
+        }
+        topHeight = bottom - 1;
+        for (StoredBlock block : added) {
+            topHeight++;
+            blocks[topHeight % blocks.length] = block;
+            size = Math.min(size + 1, blocks.length);
+        }
+    }
+}
@@ -118,6 +118,11 @@ public class Peer extends PeerSocketHandler {
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
+    // If set, used to hash the headers of a headers message in parallel before they are added to the chain.
+    @Nullable private volatile ProofOfWorkPreVerifier vProofOfWorkPreVerifier;
+    // If set by the PeerGroup, the chain is downloaded headers first: headers and blocks are handed to the scheduler,
+    // which decides what to ask of which peer.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
@@ -461,8 +466,29 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null) {
+            ProofOfWorkPreVerifier preVerifier = vProofOfWorkPreVerifier;
+            if (preVerifier != null)
+                preVerifier.precompute(m.getBlockHeaders());
+            scheduler.receiveHeaders(this, m.getBlockHeaders());
+            return;
+        }
+
         try {
             checkState(!downloadBlockBodies, toString());
+            ProofOfWorkPreVerifier preVerifier = vProofOfWorkPreVerifier;
+            if (preVerifier != null) {
+                // Hash the headers we are going to add up front, across several threads, so the chain doesn't have to
+                // do it one by one whilst holding its lock.
+                List<Block> headers = new ArrayList<Block>(m.getBlockHeaders().size());
+                for (Block header : m.getBlockHeaders()) {
+                    if (header.getTimeSeconds() >= fastCatchupTimeSecs)
+                        break;
+                    headers.add(header);
+                }
+                preVerifier.precompute(headers);
+            }
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -780,6 +806,10 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was it requested as part of a headers first download, maybe from a peer other than the download peer?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.receiveBlock(this, m))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -810,6 +840,11 @@ public class Peer extends PeerSocketHandler {
                 //
                 // We only do this if we are not currently downloading headers. If we are then we don't want to kick
                 // off a request for lots more headers in parallel.
+                if (scheduler != null) {
+                    // Fetch the headers leading up to it instead, the blocks then follow in order.
+                    scheduler.requestHeaders(this);
+                    return;
+                }
                 lock.lock();
                 try {
                     if (downloadBlockBodies) {
@@ -836,6 +871,9 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.receiveBlock(this, m))
+            return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -883,6 +921,10 @@ public class Peer extends PeerSocketHandler {
                 // chain twice (or more!) on the same connection! The block chain would filter out the duplicates but
                 // only at a huge speed penalty. By finding the orphan root we ensure every getblocks looks the same
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
+                if (scheduler != null) {
+                    scheduler.requestHeaders(this);
+                    return;
+                }
                 lock.lock();
                 try {
                     final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
@@ -916,7 +958,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1000,6 +1042,13 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && blocks.size() > 0 && downloadData && blockChain != null) {
+            // Downloading headers first: ask for the headers of the new blocks, the scheduler then fetches the blocks.
+            scheduler.requestHeaders(this);
+            blocks.clear();
+        }
+
         lock.lock();
         try {
             if (blocks.size() > 0 && downloadData && blockChain != null) {
@@ -1246,6 +1295,11 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (scheduler != null) {
+                scheduler.requestHeaders(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1433,6 +1487,19 @@ public class Peer extends PeerSocketHandler {
         return false;
     }
 
+    /**
+     * Sets the {@link ProofOfWorkPreVerifier} used to hash the block headers received during fast catchup in
+     * parallel before they are added to the chain, or null to hash them one at a time as they are connected.
+     */
+    public void setProofOfWorkPreVerifier(@Nullable ProofOfWorkPreVerifier preVerifier) {
+        this.vProofOfWorkPreVerifier = preVerifier;
+    }
+
+    // Set by PeerGroup to download the chain headers first, or null to download it the usual way.
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
+    }
+
     /**
      * <p>Sets a Bloom filter on this connection. This will cause the given {@link BloomFilter} object to be sent to the
      * remote peer and if either a memory pool has been set using the constructor or the
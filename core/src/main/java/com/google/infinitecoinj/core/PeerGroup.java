@@ -102,6 +102,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion = CoinDefinition.MIN_PROTOCOL_VERSION;//FilteredBlock.MIN_PROTOCOL_VERSION;  //Will this break the bloomfiltering in other coin apps?
+    // Hashes downloaded block headers in parallel before they are added to the chain, if set.
+    @Nullable private volatile ProofOfWorkPreVerifier vProofOfWorkPreVerifier;
+    // If headers first download is switched on, schedules the block requests across all peers.
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler blockDownloadScheduler;
 
     // Runs a background thread that we use for scheduling pings to our peers, so we can measure their performance
     // and network latency. We ping peers every pingIntervalMsec milliseconds.
@@ -683,6 +687,21 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        final BlockDownloadScheduler scheduler = getBlockDownloadScheduler();
+        if (scheduler != null) {
+            long interval = BlockDownloadScheduler.STALL_CHECK_INTERVAL_MSEC;
+            vPingTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        scheduler.checkForStalls();
+                    } catch (Exception e) {
+                        // Don't let it kill the timer thread, which also does the pinging.
+                        log.warn("Exception whilst checking for stalled block downloads", e);
+                    }
+                }
+            }, interval, interval);
+        }
         channels.startAndWait();
         triggerConnections();
     }
@@ -897,6 +916,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setProofOfWorkPreVerifier(vProofOfWorkPreVerifier);
         pendingPeers.add(peer);
 
         try {
@@ -974,6 +994,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
+        BlockDownloadScheduler scheduler;
         lock.lock();
         try {
             groupBackoff.trackSuccess();
@@ -990,6 +1011,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (bloomFilter != null) peer.setBloomFilter(bloomFilter);
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            scheduler = blockDownloadScheduler;
+            if (scheduler != null) {
+                // Every peer serves blocks when downloading headers first, not only the download peer.
+                peer.setBlockDownloadScheduler(scheduler);
+                scheduler.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1012,6 +1039,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         } finally {
             lock.unlock();
         }
+        // Ask the new peer for blocks without holding the lock, as sending can call back into here.
+        if (scheduler != null)
+            scheduler.sendRequests();
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1102,6 +1132,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer.setDownloadData(true);
                 downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
             }
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
         } finally {
             lock.unlock();
         }
@@ -1130,6 +1162,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
             }
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
         } finally {
             lock.unlock();
         }
@@ -1157,10 +1191,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
         int numPeers = 0;
         int numConnectedPeers = 0;
+        BlockDownloadScheduler scheduler;
         lock.lock();
         try {
             pendingPeers.remove(peer);
             peers.remove(peer);
+            scheduler = blockDownloadScheduler;
+            if (scheduler != null)
+                scheduler.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1193,6 +1231,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         } finally {
             lock.unlock();
         }
+        // Give the dead peer's blocks to the others, without holding the lock.
+        if (scheduler != null)
+            scheduler.sendRequests();
 
         peer.removeEventListener(peerListener);
         for (Wallet wallet : wallets) {
@@ -1399,6 +1440,57 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return vMinRequiredProtocolVersion;
     }
 
+    /**
+     * Sets a {@link ProofOfWorkPreVerifier} that peers use to hash the block headers they download during fast
+     * catchup across several threads, before the headers are added to the chain. Applies to currently connected
+     * peers as well as new ones. Pass null to go back to hashing each header as it is connected.
+     */
+    public void setProofOfWorkPreVerifier(@Nullable ProofOfWorkPreVerifier preVerifier) {
+        this.vProofOfWorkPreVerifier = preVerifier;
+        for (Peer peer : pendingPeers)
+            peer.setProofOfWorkPreVerifier(preVerifier);
+        for (Peer peer : peers)
+            peer.setProofOfWorkPreVerifier(preVerifier);
+    }
+
+    /**
+     * <p>Switches headers first chain download on or off. When on, the download peer is only asked for block headers,
+     * which are checked to link up and carry valid proof of work before the blocks are requested. The blocks are then
+     * requested from all connected peers, a window at a time and no more than 16 at once from any one peer, and asked
+     * of another peer if one doesn't arrive within ten seconds. They are added to the chain in order, whichever peer
+     * delivers them first.</p>
+     *
+     * <p>This must be set before the PeerGroup is started. Off by default.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirst) {
+        lock.lock();
+        try {
+            checkState(state() == State.NEW, "Must be set before the PeerGroup is started");
+            checkState(!headersFirst || chain != null, "Headers first download needs a chain");
+            if (!headersFirst)
+                blockDownloadScheduler = null;
+            else if (blockDownloadScheduler == null)
+                blockDownloadScheduler = new BlockDownloadScheduler(params, chain);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain is downloaded headers first. See {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        return getBlockDownloadScheduler() != null;
+    }
+
+    @Nullable
+    private BlockDownloadScheduler getBlockDownloadScheduler() {
+        lock.lock();
+        try {
+            return blockDownloadScheduler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns our peers most commonly reported chain height. If multiple heights are tied, the highest is returned.
      * If no peers are connected, returns zero.
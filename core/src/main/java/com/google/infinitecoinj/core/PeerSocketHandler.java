@@ -17,6 +17,7 @@
 package com.google.infinitecoinj.core;
 
 import com.google.infinitecoinj.net.AbstractTimeoutHandler;
+import com.google.infinitecoinj.net.BufferPool;
 import com.google.infinitecoinj.net.MessageWriteTarget;
 import com.google.infinitecoinj.net.StreamParser;
 import com.google.infinitecoinj.utils.Threading;
@@ -24,13 +25,14 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -42,6 +44,9 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    // Outbound messages are serialized into direct buffers from here, shared by all connections.
+    private static final BufferPool bufferPool = new BufferPool(8);
+
     private final BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
@@ -81,14 +86,58 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferPool.PooledBuffer buffer = null;
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            buffer = serializer.serialize(message, bufferPool);
+            writeTarget.writeBuffer(buffer);
         } catch (IOException e) {
             exceptionCaught(e);
+        } finally {
+            if (buffer != null)
+                buffer.release();
+        }
+    }
+
+    /**
+     * Sends the given message to each of the given peers, like {@link #sendMessage(Message)} but serializing it only
+     * once: every connection writes out the same buffer. Peers that aren't connected yet are skipped.
+     *
+     * @return the peers the message was sent to
+     */
+    public static <T extends PeerSocketHandler> List<T> sendMessage(Message message, List<T> peers) {
+        List<T> sentTo = new ArrayList<T>(peers.size());
+        if (peers.isEmpty())
+            return sentTo;
+        BufferPool.PooledBuffer buffer;
+        try {
+            PeerSocketHandler first = peers.get(0);
+            buffer = first.serializer.serialize(message, bufferPool);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen, we are serializing to memory.
+        }
+        try {
+            for (T peer : peers) {
+                PeerSocketHandler handler = peer;
+                MessageWriteTarget writeTarget;
+                handler.lock.lock();
+                try {
+                    writeTarget = handler.writeTarget;
+                } finally {
+                    handler.lock.unlock();
+                }
+                if (writeTarget == null)
+                    continue;
+                try {
+                    writeTarget.writeBuffer(buffer);
+                    sentTo.add(peer);
+                } catch (IOException e) {
+                    handler.exceptionCaught(e);
+                }
+            }
+        } finally {
+            buffer.release();
         }
+        return sentTo;
     }
 
     /**
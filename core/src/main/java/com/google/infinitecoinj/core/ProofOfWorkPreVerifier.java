@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the proof of work hashes of a batch of blocks across a pool of worker threads before they are handed
+ * to an {@link AbstractBlockChain}. With scrypt as the proof of work function, hashing the header is by far the most
+ * expensive part of adding a header to the chain, and {@link AbstractBlockChain#add(Block)} does it whilst holding the
+ * chain lock, so only one core is ever used during header sync. Once a block has been through this class its hash is
+ * cached inside the {@link Block} and the connect path only has to compare it against the target.</p>
+ *
+ * <p>A pre-verifier can be given to a {@link PeerGroup} (or a single {@link Peer}) to speed up fast catchup, or used
+ * directly to import blocks, for example those read by a {@link com.google.infinitecoinj.utils.BlockFileLoader}:</p>
+ *
+ * <pre>
+ * ProofOfWorkPreVerifier preVerifier = new ProofOfWorkPreVerifier();
+ * preVerifier.addAll(chain, new BlockFileLoader(params, files));
+ * preVerifier.shutdown();
+ * </pre>
+ *
+ * <p>When blocks are added through {@link #addAll(AbstractBlockChain, List)} the workers also check each header's
+ * proof of work against its own difficulty target, so a header that fails is rejected before the chain looks at it.
+ * Whether the target itself is right depends on the previous blocks, so that is still left to the chain.</p>
+ */
+public class ProofOfWorkPreVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ProofOfWorkPreVerifier.class);
+
+    /** How many blocks are read from an iterator and hashed together before being added to the chain. */
+    public static final int DEFAULT_BATCH_SIZE = HeadersMessage.MAX_HEADERS;
+
+    private final ExecutorService executor;
+    private final int numThreads;
+
+    /** Creates a pre-verifier with one worker thread per available processor. */
+    public ProofOfWorkPreVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a pre-verifier that hashes blocks on the given number of worker threads. */
+    public ProofOfWorkPreVerifier(int numThreads) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        this.numThreads = numThreads;
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("ProofOfWorkPreVerifier worker " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Returns how many worker threads the blocks are spread over. */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Calculates and caches the proof of work hash of every block in the list, blocking until all of them are done.
+     * The list is split into one contiguous slice per worker thread. The blocks must not be used by other threads
+     * until this method returns.
+     */
+    public void precompute(List<Block> blocks) {
+        run(blocks, false);
+    }
+
+    /**
+     * Calculates the proof of work hash of every block in the list like {@link #precompute(List)}, and checks each
+     * against the difficulty target in its header.
+     *
+     * @return the index of the first block whose proof of work is bad, or -1 if all of them are good.
+     */
+    public int verifyProofOfWork(List<Block> blocks) {
+        return run(blocks, true);
+    }
+
+    private int run(List<Block> blocks, boolean verify) {
+        if (blocks.isEmpty())
+            return -1;
+        long start = System.currentTimeMillis();
+        int slices = Math.min(numThreads, blocks.size());
+        int firstBad = -1;
+        if (slices == 1) {
+            firstBad = new Hasher(blocks, 0, verify).call();
+        } else {
+            int sliceSize = (blocks.size() + slices - 1) / slices;
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>(slices);
+            for (int i = 0; i < blocks.size(); i += sliceSize)
+                futures.add(executor.submit(new Hasher(blocks.subList(i, Math.min(blocks.size(), i + sliceSize)), i,
+                        verify)));
+            for (Future<Integer> future : futures) {
+                try {
+                    int bad = future.get();
+                    if (firstBad < 0)
+                        firstBad = bad;
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        log.debug("Hashed {} blocks on {} threads in {}msec", blocks.size(), slices,
+                System.currentTimeMillis() - start);
+        return firstBad;
+    }
+
+    /**
+     * Hashes the given blocks and checks their proof of work in parallel, and then adds them to the chain one by one,
+     * in the order given. If a block's proof of work is bad the blocks before it are added, and then a
+     * VerificationException is thrown without the bad block being given to the chain.
+     *
+     * @return the number of blocks that the chain accepted, that is, for which {@link AbstractBlockChain#add(Block)}
+     * returned true.
+     */
+    public int addAll(AbstractBlockChain chain, List<Block> blocks) throws VerificationException, PrunedException {
+        int firstBad = verifyProofOfWork(blocks);
+        int added = 0;
+        for (int i = 0; i < (firstBad < 0 ? blocks.size() : firstBad); i++) {
+            if (chain.add(blocks.get(i)))
+                added++;
+        }
+        if (firstBad >= 0)
+            blocks.get(firstBad).verifyHeader();  // Throws with the details.
+        return added;
+    }
+
+    /**
+     * Reads blocks from the given source in batches of {@link #DEFAULT_BATCH_SIZE}, hashing each batch in parallel
+     * before adding it to the chain in order.
+     *
+     * @return the number of blocks that the chain accepted.
+     */
+    public int addAll(AbstractBlockChain chain, Iterable<Block> blocks) throws VerificationException, PrunedException {
+        return addAll(chain, blocks.iterator(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Reads blocks from the given iterator in batches of batchSize, hashing each batch in parallel before adding it
+     * to the chain in order. The next batch is only read once the previous one has been added, so at most
+     * batchSize blocks are held in memory at once.
+     *
+     * @return the number of blocks that the chain accepted.
+     */
+    public int addAll(AbstractBlockChain chain, Iterator<Block> blocks, int batchSize)
+            throws VerificationException, PrunedException {
+        checkArgument(batchSize > 0, "batchSize must be positive");
+        int added = 0;
+        List<Block> batch = new ArrayList<Block>(batchSize);
+        while (blocks.hasNext()) {
+            batch.add(blocks.next());
+            if (batch.size() == batchSize || !blocks.hasNext()) {
+                added += addAll(chain, batch);
+                batch = new ArrayList<Block>(batchSize);
+            }
+        }
+        return added;
+    }
+
+    /** Stops the worker threads. The pre-verifier cannot be used afterwards. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // Returns the index of the first block in its slice that failed verification, offset to the whole list, or -1.
+    private static class Hasher implements Callable<Integer> {
+        private final List<Block> blocks;
+        private final int offset;
+        private final boolean verify;
+
+        Hasher(List<Block> blocks, int offset, boolean verify) {
+            this.blocks = blocks;
+            this.offset = offset;
+            this.verify = verify;
+        }
+
+        @Override
+        public Integer call() {
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                block.getProofOfWorkHash();
+                if (verify && !block.hasValidProofOfWork())
+                    return offset + i;
+            }
+            return -1;
+        }
+    }
+}
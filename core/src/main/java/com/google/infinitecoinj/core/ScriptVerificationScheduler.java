@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.crypto.SignatureBatch;
+import com.google.infinitecoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of the inputs of a block on a long lived pool of worker threads, for
+ * {@link FullPrunedBlockChain}. Every input is a separate task, so a transaction with many inputs is spread over all
+ * the workers rather than holding up one of them, and once any input fails the inputs that haven't started yet are
+ * skipped.</p>
+ *
+ * <p>Each block gets a {@link Batch}: inputs are added to it as the transactions are connected, whilst earlier ones
+ * are already being verified, and {@link Batch#verify()} then waits for the results. The time from the first input
+ * being added until all are verified is logged for every block and totalled in the counters of this class.</p>
+ *
+ * <p>By default the scripts don't verify signatures themselves. They assume each is valid and collect it, and once all
+ * the scripts of the block have run their signatures are verified as one {@link SignatureBatch}, see
+ * {@link #setBatchSignatureVerification(boolean)}.</p>
+ *
+ * <p>One scheduler may be shared by several chains. Idle worker threads exit after a minute, so a scheduler that isn't
+ * used doesn't hold any threads, but {@link #shutdown()} should be called if it won't be used again.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final int numThreads;
+
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong totalVerificationNanos = new AtomicLong();
+    private volatile long lastVerificationNanos;
+    private volatile boolean batchSignatureVerification = true;
+
+    /** Creates a scheduler with one worker thread per available processor. */
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a scheduler that verifies inputs on up to the given number of worker threads. */
+    public ScriptVerificationScheduler(int numThreads) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        this.numThreads = numThreads;
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("ScriptVerificationScheduler worker " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Returns how many worker threads inputs are spread over. */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /** Starts verifying the inputs of a new block. */
+    public Batch newBatch() {
+        checkState(!executor.isShutdown(), "ScriptVerificationScheduler has been shut down");
+        return new Batch();
+    }
+
+    /** Returns the number of blocks whose scripts have all been verified successfully. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /** Returns the number of inputs verified as part of the blocks counted by {@link #getBlocksVerified()}. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the total time spent verifying the blocks counted by {@link #getBlocksVerified()}, in milliseconds. */
+    public long getTotalVerificationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalVerificationNanos.get());
+    }
+
+    /** Returns how long the scripts of the last successfully verified block took, in milliseconds. */
+    public long getLastVerificationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastVerificationNanos);
+    }
+
+    /**
+     * Sets whether the signatures of a block are verified together in a {@link SignatureBatch} once all of its scripts
+     * have been run, rather than one at a time as the scripts find them. Inputs with invalid signatures are then run
+     * again in the usual way, so the results are the same either way. This is on by default and affects batches
+     * created afterwards.
+     */
+    public void setBatchSignatureVerification(boolean batchSignatureVerification) {
+        this.batchSignatureVerification = batchSignatureVerification;
+    }
+
+    /** Returns whether signatures are verified together, see {@link #setBatchSignatureVerification(boolean)}. */
+    public boolean isBatchSignatureVerification() {
+        return batchSignatureVerification;
+    }
+
+    /** Stops the worker threads. The scheduler cannot be used afterwards. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * The inputs of one block. A batch must be used from one thread only and should be finished with either
+     * {@link #verify()} or {@link #abort()}.
+     */
+    public class Batch {
+        private final CompletionService<InputResult> completionService =
+                new ExecutorCompletionService<InputResult>(executor);
+        private final List<Future<InputResult>> futures = new ArrayList<Future<InputResult>>();
+        private final boolean deferSignatures = batchSignatureVerification;
+        private volatile boolean aborted;
+        private int numInputs;
+        private long startNanos;
+
+        private Batch() {
+        }
+
+        /**
+         * Queues the inputs of the given transaction for verification against the given connected output scripts,
+         * one for each input in order. The transaction is serialized here and the tasks work on a copy of their own,
+         * parsed once by whichever gets to it first and then shared by all of them, so the caller may go on to use the
+         * transaction straight away.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash) {
+            checkArgument(prevOutScripts.size() == tx.getInputs().size());
+            if (numInputs == 0)
+                startNanos = System.nanoTime();
+            SharedTransaction shared = new SharedTransaction(tx.getParams(), tx.bitcoinSerialize());
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                futures.add(completionService.submit(new InputVerifier(shared, index++, prevOutScript,
+                        enforcePayToScriptHash, deferSignatures)));
+                numInputs++;
+            }
+        }
+
+        /** Returns the number of inputs added so far. */
+        public int size() {
+            return numInputs;
+        }
+
+        /**
+         * Waits for every input to be verified. As soon as one fails the others are abandoned and its exception is
+         * thrown.
+         */
+        public void verify() throws VerificationException {
+            try {
+                List<InputResult> unverifiedSignatures = new ArrayList<InputResult>();
+                for (int i = 0; i < numInputs; i++) {
+                    InputResult result = take();
+                    if (result.signatures != null && result.signatures.size() > 0)
+                        unverifiedSignatures.add(result);
+                    else if (result.exception != null)
+                        throw result.exception;
+                }
+                if (!unverifiedSignatures.isEmpty())
+                    verifySignatures(unverifiedSignatures);
+            } catch (VerificationException e) {
+                abort();
+                throw e;
+            } catch (RuntimeException e) {
+                abort();
+                throw e;
+            }
+            if (numInputs == 0)
+                return;
+            long elapsed = System.nanoTime() - startNanos;
+            lastVerificationNanos = elapsed;
+            blocksVerified.incrementAndGet();
+            inputsVerified.addAndGet(numInputs);
+            totalVerificationNanos.addAndGet(elapsed);
+            log.debug("Verified {} inputs on {} threads in {}msec", numInputs, numThreads,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+
+        // Verifies the signatures that the scripts of the given inputs assumed were valid, all together. The outcome
+        // of each input whose signatures are all valid is then known. The rest are run again, verifying signatures
+        // as they go.
+        private void verifySignatures(List<InputResult> results) throws VerificationException {
+            SignatureBatch signatures = new SignatureBatch();
+            for (InputResult result : results)
+                signatures.addAll(result.signatures);
+            boolean[] valid = signatures.verify(executor);
+            int numRechecks = 0;
+            int offset = 0;
+            for (InputResult result : results) {
+                boolean allValid = true;
+                for (int i = 0; i < result.signatures.size(); i++)
+                    allValid &= valid[offset + i];
+                offset += result.signatures.size();
+                if (!allValid) {
+                    futures.add(completionService.submit(result.input.withoutDeferredSignatures()));
+                    numRechecks++;
+                } else if (result.exception != null) {
+                    throw result.exception;
+                }
+            }
+            if (numRechecks > 0)
+                log.debug("Rechecking {} inputs with invalid signatures", numRechecks);
+            for (int i = 0; i < numRechecks; i++) {
+                InputResult result = take();
+                if (result.exception != null)
+                    throw result.exception;
+            }
+        }
+
+        private InputResult take() throws VerificationException {
+            try {
+                return completionService.take().get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+        }
+
+        /** Abandons the inputs that haven't been verified yet, for when the block has failed for another reason. */
+        public void abort() {
+            aborted = true;
+            for (Future<InputResult> future : futures)
+                future.cancel(false);
+        }
+
+        // What running the scripts of an input found.
+        private class InputResult {
+            final InputVerifier input;
+            // Why the scripts failed, or null if they succeeded.
+            @Nullable final VerificationException exception;
+            // The signatures that were assumed to be valid, or null if signatures were verified as they were found.
+            @Nullable final SignatureBatch signatures;
+
+            InputResult(InputVerifier input, @Nullable VerificationException exception,
+                        @Nullable SignatureBatch signatures) {
+                this.input = input;
+                this.exception = exception;
+                this.signatures = signatures;
+            }
+        }
+
+        private class InputVerifier implements Callable<InputResult> {
+            private final SharedTransaction tx;
+            private final int index;
+            private final Script prevOutScript;
+            private final boolean enforcePayToScriptHash;
+            private final boolean deferSignatures;
+
+            InputVerifier(SharedTransaction tx, int index, Script prevOutScript, boolean enforcePayToScriptHash,
+                          boolean deferSignatures) {
+                this.tx = tx;
+                this.index = index;
+                this.prevOutScript = prevOutScript;
+                this.enforcePayToScriptHash = enforcePayToScriptHash;
+                this.deferSignatures = deferSignatures;
+            }
+
+            InputVerifier withoutDeferredSignatures() {
+                return new InputVerifier(tx, index, prevOutScript, enforcePayToScriptHash, false);
+            }
+
+            @Override
+            public InputResult call() throws Exception {
+                if (aborted)
+                    return new InputResult(this, null, null);
+                SignatureBatch signatures = deferSignatures ? new SignatureBatch() : null;
+                try {
+                    Transaction tx = this.tx.get();
+                    Script scriptSig = tx.getInputs().get(index).getScriptSig();
+                    if (signatures != null)
+                        scriptSig.correctlySpendsDeferringSignatures(tx, index, prevOutScript, enforcePayToScriptHash,
+                                signatures);
+                    else
+                        scriptSig.correctlySpends(tx, index, prevOutScript, enforcePayToScriptHash);
+                } catch (VerificationException e) {
+                    return new InputResult(this, e, signatures);
+                }
+                return new InputResult(this, null, signatures);
+            }
+        }
+    }
+
+    // The copy of a transaction that the tasks verifying its inputs share. Nothing changes it once it has been parsed:
+    // Transaction.hashForSignature only reads it, so the tasks can use it concurrently.
+    private static class SharedTransaction {
+        private final NetworkParameters params;
+        private byte[] txBytes;
+        private Transaction tx;
+
+        SharedTransaction(NetworkParameters params, byte[] txBytes) {
+            this.params = params;
+            this.txBytes = txBytes;
+        }
+
+        synchronized Transaction get() throws ProtocolException {
+            if (tx == null) {
+                tx = new Transaction(params, txBytes);
+                txBytes = null;
+            }
+            return tx;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.script.Script;
+import com.google.infinitecoinj.script.ScriptOpCodes;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import static com.google.infinitecoinj.core.Utils.uint32ToByteStreamLE;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Calculates the signature hashes of a transaction for the SIGHASH_ALL type, without the anyone can pay flag, which
+ * is what almost every signature uses. The result is the same as
+ * {@link Transaction#hashForSignature(int, byte[], byte)} but is much cheaper when many inputs are signed or
+ * verified.</p>
+ *
+ * <p>The simplified transaction that is hashed only differs between inputs in which one of them holds the connected
+ * script, all the others being blank. So the transaction is serialized once up front with every input script blank,
+ * and each hash splices the connected script into that. The SHA-256 state after the part before the input is kept and
+ * carried forward from one input to the next, so signing the inputs in order hashes that part only once. Everything
+ * after the input still has to be hashed for each one, as the SIGHASH_ALL algorithm demands.</p>
+ *
+ * <p>A hasher is a snapshot: it doesn't change the transaction and won't see later changes to it, so it must be thrown
+ * away when the transaction is modified. It may be used by several threads at once.</p>
+ */
+public class SignatureHasher {
+    private static final int OUTPOINT_LENGTH = 36;
+
+    // The transaction with every input script empty, and where each input starts within it.
+    private final byte[] blankTx;
+    private final int[] inputOffsets;
+
+    // The SHA-256 state after the first midstateLength bytes of blankTx, or null if it can't be cloned.
+    private MessageDigest midstate;
+    private int midstateLength;
+
+    /** Takes a snapshot of the given transaction. */
+    public SignatureHasher(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        inputOffsets = new int[inputs.size()];
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(
+                tx.length == Message.UNKNOWN_LENGTH ? 256 : tx.length);
+        try {
+            uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(inputs.size()).encode());
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                inputOffsets[i] = bos.size();
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs)
+                output.bitcoinSerialize(bos);
+            uint32ToByteStreamLE(tx.getLockTime(), bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        blankTx = bos.toByteArray();
+        midstate = newDigest();
+    }
+
+    /**
+     * Returns true if signature hashes of the given type can be calculated by this class. That is any type that
+     * {@link Transaction#hashForSignature(int, byte[], byte)} treats as SIGHASH_ALL, without the anyone can pay flag.
+     */
+    public static boolean supports(byte sigHashType) {
+        int type = sigHashType & 0x1f;
+        return type != Transaction.SigHash.NONE.ordinal() + 1 && type != Transaction.SigHash.SINGLE.ordinal() + 1
+                && (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == 0;
+    }
+
+    /**
+     * Calculates the signature hash of the given input, which is connected to an output with the given script.
+     *
+     * @param sigHashType the type written into the hash, which must be one that {@link #supports(byte)}
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, inputOffsets.length);
+        checkArgument(supports(sigHashType), "Unsupported sighash type %s", sigHashType);
+        // See Transaction.hashForSignature for why this is needed.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int offset = inputOffsets[inputIndex];
+        MessageDigest digest = digestUpTo(offset);
+        digest.update(blankTx, offset, OUTPOINT_LENGTH);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        // Skip the empty script's length, then the rest is the same as in the blank transaction.
+        int rest = offset + OUTPOINT_LENGTH + 1;
+        digest.update(blankTx, rest, blankTx.length - rest);
+        digest.update(new byte[] {sigHashType, 0, 0, 0});
+        byte[] first = digest.digest();
+        return new Sha256Hash(digest.digest(first));
+    }
+
+    // Returns a digest that has been fed the first length bytes of the blank transaction. Inputs are usually hashed
+    // in order, so the shared state is moved forward each time and only restarted if an earlier input is asked for.
+    private synchronized MessageDigest digestUpTo(int length) {
+        if (midstate != null) {
+            if (midstateLength > length) {
+                midstate.reset();
+                midstateLength = 0;
+            }
+            midstate.update(blankTx, midstateLength, length - midstateLength);
+            midstateLength = length;
+            try {
+                return (MessageDigest) midstate.clone();
+            } catch (CloneNotSupportedException e) {
+                // Not all providers can copy their state, in which case every hash starts from the beginning.
+                midstate = null;
+            }
+        }
+        MessageDigest digest = newDigest();
+        digest.update(blankTx, 0, length);
+        return digest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+}
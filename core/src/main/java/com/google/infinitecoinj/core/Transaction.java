@@ -17,10 +17,12 @@
 package com.google.infinitecoinj.core;
 
 import com.google.infinitecoinj.core.TransactionConfidence.ConfidenceType;
+import com.google.infinitecoinj.crypto.KeyCrypterException;
 import com.google.infinitecoinj.crypto.TransactionSignature;
 import com.google.infinitecoinj.script.Script;
 import com.google.infinitecoinj.script.ScriptBuilder;
 import com.google.infinitecoinj.script.ScriptOpCodes;
+import com.google.infinitecoinj.utils.Threading;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -34,6 +36,7 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import static com.google.infinitecoinj.core.Utils.*;
 import static com.google.common.base.Preconditions.*;
@@ -93,6 +96,9 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public static final BigInteger MIN_NONDUST_OUTPUT = CoinDefinition.DUST_LIMIT;//BigInteger.valueOf(5460);
 
+    // When signing in parallel, each task signs at least this many inputs so small transactions stay on one thread.
+    private static final int MIN_SIGNATURES_PER_TASK = 8;
+
     // These are serialized in both bitcoin and java serialization.
     private long version;
     private ArrayList<TransactionInput> inputs;
@@ -109,6 +115,9 @@ public class Transaction extends ChildMessage implements Serializable {
     // This is an in memory helper only.
     private transient Sha256Hash hash;
 
+    // Calculates SIGHASH_ALL signature hashes, created when first needed and dropped whenever the transaction changes.
+    private transient SignatureHasher signatureHasher;
+
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
 
@@ -454,6 +463,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        signatureHasher = null;
     }
 
     protected void parseLite() throws ProtocolException {
@@ -787,7 +797,7 @@ public class Transaction extends ChildMessage implements Serializable {
      * <p/>
      * This method is similar to SignatureHash in script.cpp
      *
-     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param hashType Signing mode, see the enum for documentation. SigHash.ALL is what the official client uses.
      * @param wallet   A wallet is required to fetch the keys needed for signing.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet) throws ScriptException {
@@ -799,17 +809,31 @@ public class Transaction extends ChildMessage implements Serializable {
      * signature is over the transaction itself, to prove the redeemer actually created that transaction,
      * so we have to do this step last.</p>
      *
-     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param hashType Signing mode, see the enum for documentation. SigHash.ALL is what the official client uses.
      * @param wallet  A wallet is required to fetch the keys needed for signing.
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, null);
+    }
+
+    /**
+     * <p>Signs the inputs as {@link #signInputs(SigHash, Wallet, KeyParameter)} does, but splits the signing over the
+     * threads of the given executor. The keys are found and the signature hashes prepared on the calling thread, then
+     * each encrypted key is decrypted once however many inputs it signs, and the signatures are calculated in
+     * parallel without touching the transaction. The input scripts are set once every signature is done. Sweeping
+     * many inputs this way uses all the cores of the machine.</p>
+     *
+     * @param hashType Signing mode, see the enum for documentation. SigHash.ALL is what the official client uses.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     * @param executor runs the signing in parallel, or null to do it all on the calling thread
+     */
+    public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                        @Nullable ExecutorService executor) throws ScriptException {
         checkState(inputs.size() > 0);
         checkState(outputs.size() > 0);
 
-        // I don't currently have an easy way to test other modes work, as the official client does not use them.
-        checkArgument(hashType == SigHash.ALL, "Only SIGHASH_ALL is currently supported");
-
         // The transaction is signed with the input scripts empty except for the input we are signing. In the case
         // where addInput has been used to set up a new transaction, they are already all empty. The input being signed
         // has to have the connected OUTPUT program in it when the hash is calculated!
@@ -817,8 +841,11 @@ public class Transaction extends ChildMessage implements Serializable {
         // Note that each input may be claiming an output sent to a different key. So we have to look at the outputs
         // to figure out which key to sign with.
 
-        TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
-        ECKey[] signingKeys = new ECKey[inputs.size()];
+        final TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
+        final ECKey[] signingKeys = new ECKey[inputs.size()];
+        // The inputs to calculate real signatures for, with the scripts they satisfy.
+        final List<Integer> toSign = new ArrayList<Integer>(inputs.size());
+        final byte[][] connectedScripts = new byte[inputs.size()][];
         for (int i = 0; i < inputs.size(); i++) {
             TransactionInput input = inputs.get(i);
             // We don't have the connected output, we assume it was signed already and move on
@@ -844,11 +871,9 @@ public class Transaction extends ChildMessage implements Serializable {
             checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
             if (key.hasPrivKey() || key.isEncrypted()) {
-                signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
+                toSign.add(i);
+                connectedScripts[i] = input.getOutpoint().getConnectedPubKeyScript();
             } else {
                 // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
                 // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
@@ -856,6 +881,7 @@ public class Transaction extends ChildMessage implements Serializable {
                 signatures[i] = TransactionSignature.dummy();
             }
         }
+        calculateSignatures(hashType, aesKey, executor, toSign, connectedScripts, signingKeys, signatures);
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
         // 1) For pay-to-address outputs: a signature (over a hash of the simplified transaction) and the complete
@@ -883,6 +909,61 @@ public class Transaction extends ChildMessage implements Serializable {
         // Every input is now complete.
     }
 
+    // Fills in the signatures of the given inputs. Every encrypted key is decrypted once up front, as checking the
+    // decryption costs as much as a signature, then the hashes and signatures are calculated, in parallel if there is
+    // an executor. Hashing never changes the transaction, so the tasks can share it.
+    private void calculateSignatures(final SigHash hashType, @Nullable final KeyParameter aesKey,
+                                     @Nullable ExecutorService executor, final List<Integer> toSign,
+                                     final byte[][] connectedScripts, final ECKey[] signingKeys,
+                                     final TransactionSignature[] signatures) {
+        // The anyoneCanPay feature isn't used at the moment.
+        final boolean anyoneCanPay = false;
+        final byte sigHashType = (byte) TransactionSignature.calcSigHashValue(hashType, anyoneCanPay);
+        // Without an AES key an encrypted key can't be decrypted, and signing with it throws as it always has.
+        final List<ECKey> encryptedKeys = new ArrayList<ECKey>();
+        if (aesKey != null) {
+            Set<ECKey> distinct = new HashSet<ECKey>();
+            for (int i : toSign) {
+                if (signingKeys[i].isEncrypted() && distinct.add(signingKeys[i]))
+                    encryptedKeys.add(signingKeys[i]);
+            }
+        }
+        final ECKey[] decryptedKeys = new ECKey[encryptedKeys.size()];
+        Threading.runInParallel(executor, encryptedKeys.size(), MIN_SIGNATURES_PER_TASK, new Threading.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int k = from; k < to; k++) {
+                    ECKey key = encryptedKeys.get(k);
+                    try {
+                        decryptedKeys[k] = key.decrypt(key.getKeyCrypter(), aesKey);
+                    } catch (KeyCrypterException e) {
+                        // Fail as ECKey.sign does when given the wrong AES key.
+                        throw new KeyCrypterException("Could not decrypt bytes", e);
+                    }
+                }
+            }
+        });
+        final Map<ECKey, ECKey> decrypted = new HashMap<ECKey, ECKey>();
+        for (int k = 0; k < decryptedKeys.length; k++)
+            decrypted.put(encryptedKeys.get(k), decryptedKeys[k]);
+
+        // Hashes are routed as hashForSignature does, but the hasher is got here as the tasks can't take the lock the
+        // calling thread holds.
+        final SignatureHasher hasher = SignatureHasher.supports(sigHashType) ? getSignatureHasher() : null;
+        Threading.runInParallel(executor, toSign.size(), MIN_SIGNATURES_PER_TASK, new Threading.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int j = from; j < to; j++) {
+                    int i = toSign.get(j);
+                    ECKey key = decrypted.containsKey(signingKeys[i]) ? decrypted.get(signingKeys[i]) : signingKeys[i];
+                    Sha256Hash hash = hasher != null ? hasher.hashForSignature(i, connectedScripts[i], sigHashType) :
+                            hashForSignature(i, connectedScripts[i], sigHashType);
+                    signatures[i] = new TransactionSignature(key.sign(hash, aesKey), hashType, anyoneCanPay);
+                }
+            }
+        });
+    }
+
     /**
      * Calculates a signature that is valid for being inserted into the input at the given position. This is simply
      * a wrapper around calling {@link Transaction#hashForSignature(int, byte[], com.google.infinitecoinj.core.Transaction.SigHash, boolean)}
@@ -934,8 +1015,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript, sigHashType);
     }
@@ -952,8 +1033,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         int sigHash = TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript.getProgram(), (byte) sigHash);
     }
@@ -961,8 +1042,33 @@ public class Transaction extends ChildMessage implements Serializable {
     /**
      * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
+     *
+     * <p>SIGHASH_ALL hashes are calculated by a {@link SignatureHasher} that is kept until the transaction is next
+     * changed, so hashing every input costs far less than simplifying and serializing the transaction for each one,
+     * and doesn't lock the transaction. Other types simplify a copy of the transaction, so this never changes the
+     * transaction, not even for a moment, and threads verifying different inputs can share one.</p>
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (SignatureHasher.supports(sigHashType))
+            return getSignatureHasher().hashForSignature(inputIndex, connectedScript, sigHashType);
+        Transaction copy;
+        try {
+            copy = new Transaction(params, bitcoinSerialize());
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, we serialized it ourselves.
+        }
+        return copy.hashForSignatureBySimplifying(inputIndex, connectedScript, sigHashType);
+    }
+
+    private synchronized SignatureHasher getSignatureHasher() {
+        if (signatureHasher == null)
+            signatureHasher = new SignatureHasher(this);
+        return signatureHasher;
+    }
+
+    // Calculates the signature hash by temporarily changing the transaction into the simplified form that is signed,
+    // which works for every sighash type.
+    synchronized Sha256Hash hashForSignatureBySimplifying(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
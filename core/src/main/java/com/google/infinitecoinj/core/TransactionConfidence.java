@@ -23,9 +23,12 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ListIterator;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -54,7 +57,11 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.infinitecoinj.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. The confidence of a transaction in a {@link Wallet}
+ * instead works them out from the number of blocks the wallet has seen since, so that the wallet needn't go through all
+ * its transactions for every block. The wallet then only announces a transaction getting deeper when it reaches a depth
+ * somebody wants to know about: one of the wallet's thresholds (see {@link Wallet#addDepthThreshold(int)}), or one a
+ * {@link #getDepthFuture(int)} is waiting for.</p>
  * To make a copy that won't be changed, use {@link com.google.infinitecoinj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -75,6 +82,16 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // The counter of the wallet the transaction is in, if any. Then depth and workDone are as they were when the
+    // counter stood at counterBlocks and counterWork, and while the transaction is BUILDING it's deeper by whatever
+    // was counted since. Not serialized: the wallet hands the counter back when it's read.
+    @Nullable private transient DepthCounter counter;
+    private long counterBlocks;
+    private BigInteger counterWork = BigInteger.ZERO;
+    // The block count at which the transaction next reaches a depth to be announced, or -1 if there is none.
+    private long depthDueAt = -1;
+    // The depths depth futures are waiting for.
+    @Nullable private TreeSet<Integer> wantedDepths;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -228,8 +245,8 @@ public class TransactionConfidence implements Serializable {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        setDepthInBlocks(1);
     }
 
     /**
@@ -246,6 +263,8 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        // Only a BUILDING transaction gets deeper with the counter.
+        rebase();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -255,6 +274,7 @@ public class TransactionConfidence implements Serializable {
             appearedAtChainHeight = -1;
             workDone = BigInteger.ZERO;
         }
+        reschedule();
     }
 
 
@@ -349,7 +369,9 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (counter == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + (int) (counter.getBlocks() - counterBlocks);
     }
 
     /*
@@ -357,6 +379,9 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        if (counter != null)
+            counterBlocks = counter.getBlocks();
+        reschedule();
     }
 
     /**
@@ -367,11 +392,85 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (counter == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(counter.getWork().subtract(counterWork));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
         this.workDone = workDone;
+        if (counter != null)
+            counterWork = counter.getWork();
+    }
+
+    /**
+     * Makes the depth and work done follow the given counter, kept by the wallet the transaction is in, rather than
+     * {@link #notifyWorkDone(Block)}. Null stops them following one.
+     */
+    synchronized void setDepthCounter(@Nullable DepthCounter counter) {
+        if (counter == this.counter)
+            return;
+        rebase();
+        if (this.counter != null)
+            this.counter.reschedule(this, depthDueAt, -1);
+        depthDueAt = -1;
+        this.counter = counter;
+        rebase();
+        reschedule();
+    }
+
+    // Fixes the depth and work done at what they are now, as the starting point for counting further blocks.
+    private void rebase() {
+        depth = getDepthInBlocks();
+        workDone = getWorkDone();
+        if (counter != null) {
+            counterBlocks = counter.getBlocks();
+            counterWork = counter.getWork();
+        }
+    }
+
+    // The counter isn't serialized, so write out the depth and work done it has added up to so far.
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        rebase();
+        out.defaultWriteObject();
+    }
+
+    /** Tells the counter the transaction is following when it next reaches a depth to be announced. */
+    synchronized void reschedule() {
+        if (counter == null)
+            return;
+        long dueAt = -1;
+        if (confidenceType == ConfidenceType.BUILDING) {
+            int currentDepth = getDepthInBlocks();
+            Integer next = counter.nextThreshold(currentDepth);
+            if (wantedDepths != null) {
+                wantedDepths.headSet(currentDepth, true).clear();
+                if (!wantedDepths.isEmpty() && (next == null || wantedDepths.first() < next))
+                    next = wantedDepths.first();
+            }
+            if (next != null)
+                dueAt = counter.getBlocks() + next - currentDepth;
+        }
+        counter.reschedule(this, depthDueAt, dueAt);
+        depthDueAt = dueAt;
+    }
+
+    /**
+     * Called by the wallet for the confidence objects its counter returned for the given block count. Returns true if
+     * the transaction did reach a depth to be announced then, and schedules the next one.
+     */
+    synchronized boolean checkDepthDue(long blocks) {
+        if (depthDueAt != blocks)
+            return false;
+        // The counter has already forgotten the schedule.
+        depthDueAt = -1;
+        reschedule();
+        return true;
+    }
+
+    /** Returns the transaction this confidence object is about. */
+    Transaction getTransaction() {
+        return transaction;
     }
 
     /**
@@ -459,6 +558,12 @@ public class TransactionConfidence implements Serializable {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+        } else if (counter != null) {
+            // Make sure the wallet announces the depth.
+            if (wantedDepths == null)
+                wantedDepths = new TreeSet<Integer>();
+            wantedDepths.add(depth);
+            reschedule();
         }
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
@@ -30,12 +30,14 @@ import com.google.infinitecoinj.utils.ListenerRegistration;
 import com.google.infinitecoinj.utils.Threading;
 import com.google.infinitecoinj.wallet.*;
 import com.google.infinitecoinj.wallet.WalletTransaction.Pool;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.*;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.infinitecoinj.wallet.Protos;
 import org.infinitecoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,9 +49,12 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -101,6 +106,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+    // The depth transactions are announced at by default, besides that at which coinbases mature. It's the depth the
+    // reference client considers a transaction safe at.
+    private static final int DEFAULT_DEPTH_THRESHOLD = 6;
 
     protected final ReentrantLock lock = Threading.lock("wallet");
 
@@ -133,10 +141,41 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // The keychain indexed by the hash of each public key and by the public key itself, so that finding out whether an
+    // output is ours doesn't have to go through every key. Kept in step with the keychain and rebuilt when it's replaced.
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKey;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // The ESTIMATED and AVAILABLE balances, kept up to date as transactions move between pools and their outputs are
+    // spent so that asking for them doesn't mean going through every transaction. What each unspent or pending
+    // transaction contributes is remembered, so it can be taken away again when the transaction changes. The
+    // available balance assumes the DefaultCoinSelector. Pending transactions and immature coinbases can become
+    // selectable without the wallet being told, so those are examined again each time a balance is asked for.
+    private transient HashMap<Sha256Hash, BalanceContribution> balanceContributions;
+    private transient HashSet<Sha256Hash> unsettledBalanceContributions;
+    private transient BigInteger estimatedBalance, availableBalance;
+    // The outputs the balances are made of, kept in the order coins are best spent in so that coin selection doesn't
+    // have to find and sort them. Updated along with the balances.
+    private transient TreeSet<SpendCandidate> spendCandidates;
+    // Set when the balances must be worked out again from scratch, which happens the next time one is asked for.
+    private transient boolean balancesStale;
+
+    // What changed since the wallet was last saved, kept while it's auto saved to a journal so that only the changes
+    // need writing: the transactions that changed other than by getting deeper, the keys that were added, and the
+    // blocks and work by which every building transaction got deeper. See saveChangesTo.
+    private transient HashSet<Sha256Hash> unsavedTransactions;
+    private transient ArrayList<ECKey> unsavedKeys;
+    private transient int unsavedBlocks;
+    private transient BigInteger unsavedWork;
+    private transient boolean unsavedLastBlockSeen;
+    // Set by changes a journal record can't describe, so that the next save writes out the whole wallet.
+    private transient volatile boolean vSnapshotRequired;
+    // The number of the last journal record written or read for this wallet.
+    private long journalSequence;
+
     private final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -153,6 +192,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the blocks added to the best chain, from which the confidence of each transaction in the wallet works out
+    // its depth and work done, so that notifyNewBestBlock needn't go through every transaction. Also knows which
+    // transactions reach a depth that is announced with each block.
+    private DepthCounter depthCounter;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -204,9 +247,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
+        depthCounter = createDepthCounter(params);
         createTransientState();
     }
 
+    private static DepthCounter createDepthCounter(NetworkParameters params) {
+        DepthCounter counter = new DepthCounter();
+        counter.addThreshold(DEFAULT_DEPTH_THRESHOLD);
+        counter.addThreshold(params.getSpendableCoinbaseDepth());
+        return counter;
+    }
+
     /**
      * Create a wallet with a keyCrypter to use in encrypting and decrypting keys.
      */
@@ -217,6 +268,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        indexKeychain();
+        balanceContributions = new HashMap<Sha256Hash, BalanceContribution>();
+        unsettledBalanceContributions = new HashSet<Sha256Hash>();
+        spendCandidates = new TreeSet<SpendCandidate>();
+        balancesStale = true;
+        unsavedTransactions = new HashSet<Sha256Hash>();
+        unsavedKeys = new ArrayList<ECKey>();
+        unsavedWork = BigInteger.ZERO;
+        vSnapshotRequired = true;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -229,6 +289,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        markUnsaved(tx.getHash());
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -277,7 +338,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            // The key given may be a different object with the same public key, so remove what the index holds.
+            ECKey removed = keysByPubKey.remove(ByteBuffer.wrap(key.getPubKey()));
+            keysByPubKeyHash.remove(ByteBuffer.wrap(removed.getPubKeyHash()));
+            // Outputs sent to the key no longer count towards the balance.
+            balancesStale = true;
+            vSnapshotRequired = true;
+            return true;
         } finally {
             lock.unlock();
         }
@@ -295,8 +364,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. If the dest file is the one the
+     * wallet is auto saved to with a journal, the wallet is written through the {@link WalletFiles} instead, which
+     * replace the journal along with the file.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
+        WalletFiles files = vFileManager;
+        if (files != null && files.isJournaled() &&
+                files.getFile().getAbsoluteFile().equals(destFile.getAbsoluteFile())) {
+            // Written any other way, the file would hold what later journal records hold too, or race their writing.
+            if (!temp.delete())
+                log.warn("Failed to delete unused temp file {}", temp);
+            saveChangesTo(files, true);
+            return;
+        }
         FileOutputStream stream = null;
         lock.lock();
         try {
@@ -437,6 +519,108 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Saves the changes made since the wallet was last saved to the given files, which normally call this
+     * themselves when they are journaled (see {@link WalletFiles#setJournaled(boolean)}). A record of the changes is
+     * appended to the journal, unless the files need a snapshot or the wallet changed in a way a record can't
+     * describe, like a key being removed, in which case the whole wallet is written out. Only the transactions that
+     * changed other than by getting deeper in the chain are serialized, so the wallet lock is held for a short time
+     * even when a large wallet is saved after every block.</p>
+     *
+     * <p>The writing is done on the calling thread after the wallet is unlocked, unless the caller holds the lock.
+     * It happens in the same order as the saves even so, as the files are locked for writing before the wallet is
+     * unlocked.</p>
+     */
+    public void saveChangesTo(WalletFiles files) throws IOException {
+        saveChangesTo(files, false);
+    }
+
+    private void saveChangesTo(WalletFiles files, boolean snapshot) throws IOException {
+        lock.lock();
+        try {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            if (snapshot || vSnapshotRequired || files.isSnapshotRequired()) {
+                vSnapshotRequired = false;
+                clearUnsavedChanges();
+                files.writeSnapshot(serializer.walletToProto(this));
+            } else if (!unsavedTransactions.isEmpty() || !unsavedKeys.isEmpty() || unsavedBlocks != 0 ||
+                    unsavedLastBlockSeen) {
+                List<WalletTransaction> changed = Lists.newArrayList();
+                List<Sha256Hash> removed = Lists.newArrayList();
+                for (Sha256Hash hash : unsavedTransactions) {
+                    WalletTransaction wtx = getWalletTransaction(hash);
+                    if (wtx != null)
+                        changed.add(wtx);
+                    else
+                        removed.add(hash);
+                }
+                journalSequence++;
+                Protos.Wallet record = serializer.walletChangesToProto(this, changed, removed, unsavedKeys,
+                        unsavedBlocks, unsavedWork);
+                clearUnsavedChanges();
+                files.appendToJournal(record);
+            }
+            // Even with nothing new to write, a background save may have left its writes for us to do.
+            files.lockForWriting();
+        } finally {
+            lock.unlock();
+        }
+        files.flush();
+    }
+
+    @Nullable
+    private WalletTransaction getWalletTransaction(Sha256Hash hash) {
+        Transaction tx;
+        if ((tx = unspent.get(hash)) != null)
+            return new WalletTransaction(Pool.UNSPENT, tx);
+        if ((tx = spent.get(hash)) != null)
+            return new WalletTransaction(Pool.SPENT, tx);
+        if ((tx = pending.get(hash)) != null)
+            return new WalletTransaction(Pool.PENDING, tx);
+        if ((tx = dead.get(hash)) != null)
+            return new WalletTransaction(Pool.DEAD, tx);
+        return null;
+    }
+
+    private boolean isJournaling() {
+        WalletFiles files = vFileManager;
+        return files != null && files.isJournaled();
+    }
+
+    // Remembers that the given transaction changed, or was removed, for the next journal record.
+    private void markUnsaved(Sha256Hash hash) {
+        if (isJournaling())
+            unsavedTransactions.add(hash);
+    }
+
+    private void clearUnsavedChanges() {
+        unsavedTransactions.clear();
+        unsavedKeys.clear();
+        unsavedBlocks = 0;
+        unsavedWork = BigInteger.ZERO;
+        unsavedLastBlockSeen = false;
+    }
+
+    /** Returns the number of the last journal record written for this wallet, or read when it was loaded. */
+    public long getJournalSequence() {
+        lock.lock();
+        try {
+            return journalSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the number of the last journal record included in this wallet. Used when loading it. */
+    public void setJournalSequence(long journalSequence) {
+        lock.lock();
+        try {
+            this.journalSequence = journalSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void saveLater() {
         WalletFiles files = vFileManager;
         if (files != null)
@@ -482,6 +666,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
         try {
+            if (WalletFiles.getJournalFile(f).exists()) {
+                // The wallet was auto saved with a journal, whose changes go on top of the snapshot.
+                Wallet wallet = new WalletProtobufSerializer().readWallet(WalletFiles.readWalletProto(f));
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(f);
@@ -559,6 +751,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        if (depthCounter == null) {
+            // Serialized before transactions worked out their depth from the wallet's counter.
+            depthCounter = createDepthCounter(params);
+        }
+        // Confidence objects don't serialize the counter they follow, so hand it back to them.
+        for (Transaction tx : transactions.values())
+            tx.getConfidence().setDepthCounter(depthCounter);
     }
     
     /**
@@ -842,8 +1041,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            updateBalances(tx);
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -880,6 +1081,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            // That moves the tx among the spend candidates.
+            updateBalances(tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -906,7 +1109,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            BigInteger newBalance = getBalance();  // This is slow.
+            BigInteger newBalance = getBalance();
             log.info("Balance is now: " + bitcoinValueToFriendlyString(newBalance));
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -931,6 +1134,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // Getting deeper is saved for all transactions at once, by counting the blocks.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markUnsaved(tx.getHash());
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -957,19 +1163,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
+            // Count the block, which makes every BUILDING transaction one deeper as its confidence works out its depth
+            // and work done from the counter. Only those reaching a depth somebody wants to know about are announced.
+            BigInteger work = block.getHeader().getWork();
+            Collection<TransactionConfidence> reached = depthCounter.add(work);
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                // The tx was already processed in receive() due to it appearing in this block, so its confidence
+                // mustn't count the block again. It must be saved as it is, as it doesn't get deeper with the others.
+                Transaction tx = transactions.get(hash);
+                if (tx == null || tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                    continue;
+                TransactionConfidence confidence = tx.getConfidence();
+                confidence.setDepthInBlocks(confidence.getDepthInBlocks() - 1);
+                confidence.setWorkDone(confidence.getWorkDone().subtract(work));
+                markUnsaved(hash);
+            }
+            ignoreNextNewBlock.clear();
+            for (TransactionConfidence confidence : reached) {
+                Transaction tx = confidence.getTransaction();
+                if (confidence.checkDepthDue(depthCounter.getBlocks()) && transactions.get(tx.getHash()) == tx &&
+                        !confidenceChanged.containsKey(tx))
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+            }
+            if (isJournaling()) {
+                unsavedBlocks++;
+                unsavedWork = unsavedWork.add(block.getHeader().getWork());
             }
 
             informConfidenceListenersIfNotReorganizing();
@@ -1130,6 +1348,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
+            // Adding it to the dead pool takes its value off the balances.
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
@@ -1186,6 +1405,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 unspent.put(tx.getHash(), tx);
             }
         }
+        // The spent flags of its outputs changed, even if it stayed in the same pool.
+        updateBalances(tx);
     }
 
     /**
@@ -1212,6 +1433,27 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return ListenerRegistration.removeFromList(listener, eventListeners);
     }
 
+    /**
+     * <p>Adds a depth at which a transaction getting deeper in the chain is announced, to the transaction's confidence
+     * listeners with {@link TransactionConfidence.Listener.ChangeReason#DEPTH} and to the wallet's event listeners with
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)}. Announcing every transaction
+     * with every block would be too costly for large wallets, so by default that's only done at depth 6 and at the
+     * depth at which coinbases mature. A depth future waits for its own depth without needing this.</p>
+     *
+     * <p>The transactions are still as deep as they are at any time, whether or not their depth is announced.</p>
+     */
+    public void addDepthThreshold(int depth) {
+        lock.lock();
+        try {
+            if (!depthCounter.addThreshold(depth))
+                return;
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().reschedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Calls {@link Wallet#commitTx} if tx is not already in the pending pool
      *
@@ -1221,45 +1463,54 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         tx.verify();
         lock.lock();
         try {
-            if (pending.containsKey(tx.getHash()))
+            if (!commitTxLocked(tx))
                 return false;
-            log.info("commitTx of {}", tx.getHashAsString());
-            BigInteger balance = getBalance();
-            tx.setUpdateTime(Utils.now());
-            // Mark the outputs we're spending as spent so we won't try and use them in future creations. This will also
-            // move any transactions that are now fully spent to the spent map so we can skip them when creating future
-            // spends.
-            updateForSpends(tx, false);
-            // Add to the pending pool. It'll be moved out once we receive this transaction on the best chain.
-            // This also registers txConfidenceListener so wallet listeners get informed.
-            log.info("->pending: {}", tx.getHashAsString());
-            tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
-            addWalletTransaction(Pool.PENDING, tx);
+            saveNow();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
 
-            try {
-                BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
-                BigInteger valueSentToMe = tx.getValueSentToMe(this);
-                BigInteger newBalance = balance.add(valueSentToMe).subtract(valueSentFromMe);
-                if (valueSentToMe.signum() > 0) {
-                    checkBalanceFuturesLocked(null);
-                    queueOnCoinsReceived(tx, balance, newBalance);
-                }
-                if (valueSentFromMe.signum() > 0)
-                    queueOnCoinsSent(tx, balance, newBalance);
+    // Does the work of maybeCommitTx apart from verifying and saving, so that several transactions can be committed
+    // together.
+    private boolean commitTxLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (pending.containsKey(tx.getHash()))
+            return false;
+        log.info("commitTx of {}", tx.getHashAsString());
+        BigInteger balance = getBalance();
+        tx.setUpdateTime(Utils.now());
+        // Mark the outputs we're spending as spent so we won't try and use them in future creations. This will also
+        // move any transactions that are now fully spent to the spent map so we can skip them when creating future
+        // spends.
+        updateForSpends(tx, false);
+        // Add to the pending pool. It'll be moved out once we receive this transaction on the best chain.
+        // This also registers txConfidenceListener so wallet listeners get informed.
+        log.info("->pending: {}", tx.getHashAsString());
+        tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+        addWalletTransaction(Pool.PENDING, tx);
 
-                maybeQueueOnWalletChanged();
-            } catch (ScriptException e) {
-                // Cannot happen as we just created this transaction ourselves.
-                throw new RuntimeException(e);
+        try {
+            BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
+            BigInteger valueSentToMe = tx.getValueSentToMe(this);
+            BigInteger newBalance = balance.add(valueSentToMe).subtract(valueSentFromMe);
+            if (valueSentToMe.signum() > 0) {
+                checkBalanceFuturesLocked(null);
+                queueOnCoinsReceived(tx, balance, newBalance);
             }
+            if (valueSentFromMe.signum() > 0)
+                queueOnCoinsSent(tx, balance, newBalance);
 
-            checkState(isConsistent());
-            informConfidenceListenersIfNotReorganizing();
-            saveNow();
-        } finally {
-            lock.unlock();
+            maybeQueueOnWalletChanged();
+        } catch (ScriptException e) {
+            // Cannot happen as we just created this transaction ourselves.
+            throw new RuntimeException(e);
         }
+
+        checkState(isConsistent());
+        informConfidenceListenersIfNotReorganizing();
         return true;
     }
 
@@ -1357,6 +1608,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        updateBalances(tx);
+        tx.getConfidence().setDepthCounter(depthCounter);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
@@ -1428,11 +1681,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (fromHeight == 0) {
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().setDepthCounter(null);
                 unspent.clear();
                 spent.clear();
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                balancesStale = true;
+                vSnapshotRequired = true;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1455,9 +1712,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
-                        tx.disconnectInputs();
                         i.remove();
+                        disconnectInputs(tx);
+                        updateBalances(tx);
                         transactions.remove(tx.getHash());
+                        tx.getConfidence().setDepthCounter(null);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1628,6 +1887,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
          */
         public KeyParameter aesKey = null;
 
+        /**
+         * Runs the signing of the inputs in parallel, so that transactions spending many outputs, such as those that
+         * empty the wallet, are signed on all cores. Small transactions are signed on the calling thread whatever
+         * this is. Set to null to always sign on the calling thread.
+         */
+        public ExecutorService signingExecutor = Threading.THREAD_POOL;
+
         /**
          * If not null, the {@link com.google.infinitecoinj.wallet.CoinSelector} to use instead of the wallets default. Coin selectors are
          * responsible for choosing which transaction outputs (coins) in a wallet to use given the desired send value
@@ -1670,6 +1936,39 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return req;
         }
 
+        /**
+         * <p>Creates a new SendRequest that pays each of the given addresses the value it maps to, in the map's
+         * iteration order. This is meant for paying many recipients at once with
+         * {@link Wallet#sendBatchOffline(Wallet.SendRequest)}, which can split the payments over several
+         * transactions if they don't fit in one.</p>
+         *
+         * <p>The same care must be taken with small values as for {@link SendRequest#to(Address, BigInteger)}.</p>
+         */
+        public static SendRequest to(NetworkParameters params, Map<Address, BigInteger> payments) {
+            checkArgument(!payments.isEmpty(), "No payments to make");
+            SendRequest req = new SendRequest();
+            req.tx = new Transaction(params);
+            for (Map.Entry<Address, BigInteger> payment : payments.entrySet())
+                req.tx.addOutput(payment.getValue(), payment.getKey());
+            return req;
+        }
+
+        // Creates a request for some of the outputs of this one, with the same settings.
+        private SendRequest forOutputs(List<TransactionOutput> outputs) {
+            SendRequest req = new SendRequest();
+            req.tx = new Transaction(tx.getParams());
+            for (TransactionOutput output : outputs)
+                req.tx.addOutput(new TransactionOutput(tx.getParams(), req.tx, output.getValue(), output.getScriptBytes()));
+            req.changeAddress = changeAddress;
+            req.fee = fee;
+            req.feePerKb = feePerKb;
+            req.ensureMinRequiredFee = ensureMinRequiredFee;
+            req.aesKey = aesKey;
+            req.signingExecutor = signingExecutor;
+            req.coinSelector = coinSelector;
+            return req;
+        }
+
         /** Simply wraps a pre-built incomplete transaction provided by you. */
         public static SendRequest forTx(Transaction tx) {
             SendRequest req = new SendRequest();
@@ -1834,6 +2133,125 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return tx;
     }
 
+    /**
+     * <p>Completes a request that pays many recipients, such as one made by
+     * {@link SendRequest#to(NetworkParameters, java.util.Map)}. If the outputs fit in one standard transaction they
+     * all go in one, so the coins are selected and the fee is worked out just once. Otherwise they are split, in
+     * order, over as many transactions as are needed to keep each within {@link Transaction#MAX_STANDARD_TX_SIZE}. No
+     * two of them spend the same coins, and none spends the change of another. The settings of the request, including
+     * any fee, apply to each of them.</p>
+     *
+     * <p>The transaction of the given request is left as it was, and the completed ones are returned in new requests.
+     * Like {@link Wallet#completeTx(Wallet.SendRequest)}, this doesn't change the wallet: use
+     * {@link Wallet#sendBatchOffline(Wallet.SendRequest)} to commit the transactions too.</p>
+     *
+     * @throws InsufficientMoneyException if there isn't enough money for all of the payments.
+     * @throws IllegalArgumentException if the request has already been completed, empties the wallet or has inputs.
+     */
+    public List<SendRequest> completeBatch(SendRequest req) throws InsufficientMoneyException {
+        lock.lock();
+        try {
+            checkArgument(!req.completed, "Given SendRequest has already been completed.");
+            checkArgument(!req.emptyWallet, "A batch can't empty the wallet");
+            checkArgument(req.tx.getInputs().isEmpty(), "A batch can't have inputs of its own");
+            // Try a single transaction first. If that's too big, split the outputs up to leave more room for inputs.
+            int maxOutputBytes = Transaction.MAX_STANDARD_TX_SIZE;
+            while (true) {
+                List<List<TransactionOutput>> parts = splitOutputs(req.tx.getOutputs(), maxOutputBytes);
+                Set<TransactionOutput> spentByParts = Sets.newHashSet();
+                List<SendRequest> completed = Lists.newArrayListWithCapacity(parts.size());
+                try {
+                    for (List<TransactionOutput> outputs : parts) {
+                        SendRequest part = req.forOutputs(outputs);
+                        completeTx(part, spentByParts);
+                        for (TransactionInput input : part.tx.getInputs())
+                            spentByParts.add(input.getConnectedOutput());
+                        completed.add(part);
+                    }
+                } catch (TransactionTooLargeException e) {
+                    // Unless each payment is on its own already, in which case it's the inputs that don't fit.
+                    if (parts.size() == req.tx.getOutputs().size())
+                        throw e;
+                    maxOutputBytes /= 2;
+                    continue;
+                }
+                log.info("Completed batch of {} payments in {} transactions", req.tx.getOutputs().size(), parts.size());
+                req.completed = true;
+                return completed;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Splits the outputs, in order, into groups that each take up no more than the given number of bytes.
+    private static List<List<TransactionOutput>> splitOutputs(List<TransactionOutput> outputs, int maxBytes) {
+        List<List<TransactionOutput>> parts = Lists.newArrayList();
+        List<TransactionOutput> part = Lists.newArrayList();
+        int bytes = 0;
+        for (TransactionOutput output : outputs) {
+            int scriptLength = output.getScriptBytes().length;
+            int size = 8 + VarInt.sizeOf(scriptLength) + scriptLength;
+            if (!part.isEmpty() && bytes + size > maxBytes) {
+                parts.add(part);
+                part = Lists.newArrayList();
+                bytes = 0;
+            }
+            part.add(output);
+            bytes += size;
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /**
+     * <p>Pays all the recipients of the given request, completing it with
+     * {@link Wallet#completeBatch(Wallet.SendRequest)}, and commits the resulting transactions to the wallet. This
+     * happens atomically: other threads see either all of the transactions in the wallet or none of them, none are
+     * committed if any can't be completed, and the wallet is saved once they all are. The transactions will be
+     * announced to the network when the wallet is added to a {@link PeerGroup}, as for
+     * {@link Wallet#sendCoinsOffline(Wallet.SendRequest)}.</p>
+     *
+     * @return the transactions that were created
+     * @throws InsufficientMoneyException if there isn't enough money for all of the payments.
+     */
+    public List<Transaction> sendBatchOffline(SendRequest request) throws InsufficientMoneyException {
+        lock.lock();
+        try {
+            List<Transaction> txns = Lists.newArrayList();
+            for (SendRequest part : completeBatch(request)) {
+                part.tx.verify();
+                txns.add(part.tx);
+            }
+            for (Transaction tx : txns)
+                checkState(commitTxLocked(tx));
+            saveNow();
+            return txns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Pays all the recipients of the given request as {@link Wallet#sendBatchOffline(Wallet.SendRequest)} does, then
+     * broadcasts each of the transactions via the given {@link TransactionBroadcaster}.</p>
+     *
+     * @return a result for each transaction that was created, in order.
+     * @throws InsufficientMoneyException if there isn't enough money for all of the payments.
+     */
+    public List<SendResult> sendBatch(TransactionBroadcaster broadcaster, SendRequest request) throws InsufficientMoneyException {
+        // As in sendCoins, the broadcaster mustn't be called with the wallet locked.
+        checkState(!lock.isHeldByCurrentThread());
+        List<SendResult> results = Lists.newArrayList();
+        for (Transaction tx : sendBatchOffline(request)) {
+            SendResult result = new SendResult();
+            result.tx = tx;
+            result.broadcastComplete = broadcaster.broadcastTransaction(tx);
+            results.add(result);
+        }
+        return results;
+    }
+
     /**
      * Given a spend request containing an incomplete transaction, makes it valid by adding outputs and signed inputs
      * according to the instructions in the request. The transaction in the request is modified by this method, as is
@@ -1845,6 +2263,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      *         cannot be completed without violating the protocol rules.
      */
     public void completeTx(SendRequest req) throws InsufficientMoneyException {
+        completeTx(req, Collections.<TransactionOutput>emptySet());
+    }
+
+    // Thrown by completeTx when the transaction turns out too big, so that completeBatch can try smaller ones.
+    private static class TransactionTooLargeException extends IllegalArgumentException {
+        TransactionTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    // Completes the request without spending any of the given outputs.
+    private void completeTx(SendRequest req, Set<TransactionOutput> excluded) throws InsufficientMoneyException {
         lock.lock();
         try {
             checkArgument(!req.completed, "Given SendRequest has already been completed.");
@@ -1881,15 +2311,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
             }
 
-            // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
-            // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+            // Ask a coin selector to pick, from ALL the potential candidates for spending, the actual outputs that'll
+            // be used to gather the required amount of value. In this way, users can customize coin selection policies.
+            SpendCandidates candidates = new SpendCandidates(excluded);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             if (!req.emptyWallet) {
@@ -1903,7 +2327,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
                 CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+                bestCoinSelection = candidates.select(selector, NetworkParameters.MAX_MONEY);
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
                 totalOutput = bestCoinSelection.valueGathered;
             }
@@ -1932,12 +2356,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
 
             // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey, req.signingExecutor);
 
             // Check size.
             int size = req.tx.bitcoinSerialize().length;
             if (size > Transaction.MAX_STANDARD_TX_SIZE) {
-                throw new IllegalArgumentException(
+                throw new TransactionTooLargeException(
                         String.format("Transaction could not be created without exceeding max size: %d vs %d", size,
                             Transaction.MAX_STANDARD_TX_SIZE));
             }
@@ -1975,20 +2399,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     /**
      * Returns a list of all possible outputs we could possibly spend, potentially even including immature coinbases
      * (which the protocol may forbid us from spending). In other words, return all outputs that this wallet holds
-     * keys for and which are not already marked as spent.
+     * keys for and which are not already marked as spent. The outputs are ordered deepest in the chain first, then by
+     * descending value, with pending outputs last, which is the order {@link DefaultCoinSelector} picks them in.
      */
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            settleBalances();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (SpendCandidate candidate : spendCandidates) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !candidate.mature) continue;
+                candidates.add(candidate.output);
             }
             return candidates;
         } finally {
@@ -1996,6 +2418,69 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // Finds the spend candidates by going through every transaction, as the wallet did before it kept them indexed.
+    private LinkedList<TransactionOutput> scanSpendCandidates(boolean excludeImmatureCoinbases) {
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            if (excludeImmatureCoinbases && !tx.isMature()) continue;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending()) continue;
+                if (!output.isMine(this)) continue;
+                candidates.add(output);
+            }
+        }
+        return candidates;
+    }
+
+    // The outputs one transaction may spend: the spend candidates, less immature coinbases and the excluded outputs.
+    // The DefaultCoinSelector walks the wallet's sorted candidates and stops once it has enough, so a send doesn't go
+    // through every output. Other selectors are given a list of them all, made the first time one is needed.
+    private class SpendCandidates {
+        private final Set<TransactionOutput> excluded;
+        @Nullable private LinkedList<TransactionOutput> list;
+
+        SpendCandidates(Set<TransactionOutput> excluded) {
+            checkState(lock.isHeldByCurrentThread());
+            this.excluded = excluded;
+            settleBalances();
+        }
+
+        CoinSelection select(CoinSelector selector, BigInteger target) {
+            // Only the default selector itself is sure to select the same from sorted candidates as select() would: a
+            // sub-class may override select() or depend on its own order.
+            if (selector.getClass() == DefaultCoinSelector.class)
+                return ((DefaultCoinSelector) selector).selectFromSorted(target, sorted());
+            if (list == null) {
+                list = calculateAllSpendCandidates(true);
+                if (!excluded.isEmpty())
+                    list.removeAll(excluded);
+            }
+            return selector.select(target, list);
+        }
+
+        // A view of the wallet's spend candidates, which mustn't change whilst it's used.
+        private Iterable<TransactionOutput> sorted() {
+            return new Iterable<TransactionOutput>() {
+                @Override
+                public Iterator<TransactionOutput> iterator() {
+                    final Iterator<SpendCandidate> it = spendCandidates.iterator();
+                    return new AbstractIterator<TransactionOutput>() {
+                        @Override
+                        protected TransactionOutput computeNext() {
+                            while (it.hasNext()) {
+                                SpendCandidate candidate = it.next();
+                                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+                                if (candidate.mature && !excluded.contains(candidate.output))
+                                    return candidate.output;
+                            }
+                            return endOfData();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
     /**
      * Returns all the outputs that match addresses or scripts added via {@link #addWatchedAddress(Address)} or
      * {@link #addWatchedScripts(java.util.List)}.
@@ -2059,9 +2544,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2071,8 +2555,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
+                indexKey(key);
+                if (isJournaling())
+                    unsavedKeys.add(key);
                 added++;
             }
+            // Outputs we already have may have been sent to one of the new keys.
+            if (added > 0)
+                balancesStale = true;
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
@@ -2142,6 +2632,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 watchedScripts.add(script);
                 added++;
             }
+            if (added > 0)
+                vSnapshotRequired = true;
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2161,20 +2653,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2205,10 +2694,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2221,6 +2707,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return findKeyFromPubKey(pubkey) != null;
     }
 
+    private void indexKeychain() {
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>();
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>();
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        // ByteBuffers compare by their contents, which arrays don't. Neither array is ever modified.
+        keysByPubKeyHash.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+        keysByPubKey.put(ByteBuffer.wrap(key.getPubKey()), key);
+    }
+
     /**
      * <p>It's possible to calculate a wallets balance from multiple points of view. This enum selects which
      * getBalance() should use.</p>
@@ -2262,10 +2761,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                settleBalances();
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2282,14 +2779,195 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
+            // The balance kept up to date by the wallet is what the default selector would select. Sub-classes may
+            // select differently, so they get the slow path.
+            if (selector.getClass() == DefaultCoinSelector.class) {
+                settleBalances();
+                return availableBalance;
+            }
+            return calculateBalance(selector);
         } finally {
             lock.unlock();
         }
     }
 
+    private BigInteger calculateBalance(CoinSelector selector) {
+        LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+        CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+        return selection.valueGathered;
+    }
+
+    // What one transaction adds to the balances and the spend candidates.
+    private static class BalanceContribution {
+        final BigInteger estimated;
+        final BigInteger available;
+        final List<SpendCandidate> candidates;
+
+        BalanceContribution(BigInteger estimated, BigInteger available, List<SpendCandidate> candidates) {
+            this.estimated = estimated;
+            this.available = available;
+            this.candidates = candidates;
+        }
+    }
+
+    // An output that may be spent, with what it is ordered by as it was when the output was last looked at. The
+    // height a transaction appeared at, unlike its depth, doesn't change as blocks arrive, so the order holds until
+    // the transaction itself changes.
+    private static class SpendCandidate implements Comparable<SpendCandidate> {
+        final TransactionOutput output;
+        final boolean mature;
+        final int height;
+        final long value;
+        final Sha256Hash hash;
+        final int index;
+
+        SpendCandidate(Transaction tx, int index, boolean mature, int height) {
+            this.output = tx.getOutput(index);
+            this.mature = mature;
+            this.height = height;
+            this.value = output.getValue().longValue();
+            this.hash = tx.getHash();
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(SpendCandidate other) {
+            // Deepest first, then the largest value, the same as DefaultCoinSelector.sortOutputs.
+            if (height != other.height)
+                return height < other.height ? -1 : 1;
+            if (value != other.value)
+                return value > other.value ? -1 : 1;
+            // The hashes as positive integers, as sortOutputs compares them, without making BigIntegers of them.
+            byte[] a = hash.getBytes();
+            byte[] b = other.hash.getBytes();
+            for (int i = 0; i < a.length; i++) {
+                int x = a[i] & 0xFF, y = b[i] & 0xFF;
+                if (x != y)
+                    return x < y ? -1 : 1;
+            }
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+
+    // Works out again what the given transaction contributes to the balances, after it moved between pools or the
+    // spent flags of its outputs changed.
+    private void updateBalances(Transaction tx) {
+        updateBalances(tx.getHash());
+    }
+
+    private void updateBalances(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        markUnsaved(hash);
+        if (!balancesStale)
+            updateBalanceContribution(hash);
+    }
+
+    private void updateBalanceContribution(Sha256Hash hash) {
+        BalanceContribution old = balanceContributions.remove(hash);
+        if (old != null) {
+            estimatedBalance = estimatedBalance.subtract(old.estimated);
+            availableBalance = availableBalance.subtract(old.available);
+            spendCandidates.removeAll(old.candidates);
+        }
+        unsettledBalanceContributions.remove(hash);
+        // Use the transaction the pools hold, which may not be the object we were given.
+        Transaction pooled = unspent.get(hash);
+        if (pooled == null)
+            pooled = pending.get(hash);
+        if (pooled == null)
+            return;
+        boolean mature = pooled.isMature();
+        TransactionConfidence confidence = pooled.getConfidence();
+        // Pending transactions go after everything in the chain.
+        int height = confidence.getConfidenceType() == ConfidenceType.BUILDING ?
+                confidence.getAppearedAtChainHeight() : Integer.MAX_VALUE;
+        BigInteger value = BigInteger.ZERO;
+        List<SpendCandidate> candidates = Lists.newArrayList();
+        List<TransactionOutput> outputs = pooled.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (output.isAvailableForSpending() && output.isMine(this)) {
+                value = value.add(output.getValue());
+                candidates.add(new SpendCandidate(pooled, i, mature, height));
+            }
+        }
+        if (candidates.isEmpty())
+            return;
+        BigInteger available = mature && DefaultCoinSelector.isSelectable(pooled) ? value : BigInteger.ZERO;
+        balanceContributions.put(hash, new BalanceContribution(value, available, candidates));
+        spendCandidates.addAll(candidates);
+        estimatedBalance = estimatedBalance.add(value);
+        availableBalance = availableBalance.add(available);
+        // Only a mature transaction in the chain is sure to stay selectable until the wallet changes it.
+        if (!mature || pooled.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+            unsettledBalanceContributions.add(hash);
+    }
+
+    // Brings the balances up to date, examining the transactions whose contributions may have changed by themselves
+    // or starting again if that's needed.
+    private void settleBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        if (balancesStale) {
+            balanceContributions.clear();
+            unsettledBalanceContributions.clear();
+            spendCandidates.clear();
+            estimatedBalance = BigInteger.ZERO;
+            availableBalance = BigInteger.ZERO;
+            balancesStale = false;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                updateBalanceContribution(tx.getHash());
+        } else {
+            for (Sha256Hash hash : new ArrayList<Sha256Hash>(unsettledBalanceContributions))
+                updateBalanceContribution(hash);
+        }
+    }
+
+    /**
+     * Returns true if the balances and spend candidates the wallet keeps up to date are the same as those found by
+     * going through every transaction. This is slow, so unlike {@link #isConsistent()} it is only for tests.
+     */
+    @VisibleForTesting
+    boolean isBalanceConsistent() {
+        lock.lock();
+        try {
+            return checkBalances();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean checkBalances() {
+        settleBalances();
+        LinkedList<TransactionOutput> candidates = scanSpendCandidates(false);
+        BigInteger estimated = BigInteger.ZERO;
+        for (TransactionOutput output : candidates)
+            estimated = estimated.add(output.getValue());
+        BigInteger available = new DefaultCoinSelector().select(NetworkParameters.MAX_MONEY,
+                scanSpendCandidates(true)).valueGathered;
+        if (!estimated.equals(estimatedBalance) || !available.equals(availableBalance)) {
+            log.error("Inconsistent balances: estimated {} should be {}, available {} should be {}",
+                    estimatedBalance, estimated, availableBalance, available);
+            return false;
+        }
+        if (!Sets.newHashSet(candidates).equals(Sets.newHashSet(calculateAllSpendCandidates(false)))) {
+            log.error("Inconsistent spend candidates");
+            return false;
+        }
+        return true;
+    }
+
+    // Disconnects the inputs of the given transaction, updating the balances of the transactions they spent from.
+    private void disconnectInputs(Transaction tx) {
+        List<Transaction> connected = Lists.newArrayList();
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.getOutpoint().fromTx != null)
+                connected.add(input.getOutpoint().fromTx);
+        }
+        tx.disconnectInputs();
+        for (Transaction connectedTx : connected)
+            updateBalances(connectedTx);
+    }
+
     /** Returns the available balance, including any unspent balance at watched addresses */
     public BigInteger getWatchedBalance() {
         return getWatchedBalance(coinSelector);
@@ -2454,6 +3132,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            // Transactions get shallower as well as deeper, which a journal record can't describe.
+            vSnapshotRequired = true;
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -2521,10 +3201,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                             TransactionInput input = output.getSpentBy();
                             if (input != null) input.disconnect();
                         }
-                        tx.disconnectInputs();
+                        disconnectInputs(tx);
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        updateBalances(tx);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -2607,6 +3288,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                // A coinbase may no longer be mature.
+                if (tx.isCoinBase())
+                    updateBalances(tx);
             }
         }
     }
@@ -2667,6 +3351,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
+            unsavedLastBlockSeen = true;
         } finally {
             lock.unlock();
         }
@@ -2676,6 +3361,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            unsavedLastBlockSeen = true;
         } finally {
             lock.unlock();
         }
@@ -2685,6 +3371,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             lastBlockSeenTimeSecs = timeSecs;
+            unsavedLastBlockSeen = true;
         } finally {
             lock.unlock();
         }
@@ -2795,9 +3482,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeychain();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            vSnapshotRequired = true;
 
             saveNow();
         } finally {
@@ -2836,9 +3525,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeychain();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            vSnapshotRequired = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -2958,6 +3649,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             checkState(this.keyCrypter == null);
             this.keyCrypter = keyCrypter;
+            vSnapshotRequired = true;
         } finally {
             lock.unlock();
         }
@@ -3001,6 +3693,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public void setVersion(int version) {
         this.version = version;
+        vSnapshotRequired = true;
     }
 
     /**
@@ -3009,6 +3702,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public void setDescription(String description) {
         this.description = description;
+        vSnapshotRequired = true;
     }
 
     /**
@@ -3236,6 +3930,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            vSnapshotRequired = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -3253,6 +3948,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            vSnapshotRequired = true;
             saveNow();
             return extension;
         } finally {
@@ -3270,6 +3966,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            vSnapshotRequired = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -3393,7 +4090,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         private TransactionOutput bestChangeOutput;
 
         public FeeCalculation(SendRequest req, BigInteger value, List<TransactionInput> originalInputs,
-                              boolean needAtLeastReferenceFee, LinkedList<TransactionOutput> candidates) throws InsufficientMoneyException {
+                              boolean needAtLeastReferenceFee, SpendCandidates candidates) throws InsufficientMoneyException {
             checkState(lock.isHeldByCurrentThread());
             // There are 3 possibilities for what adding change might do:
             // 1) No effect
@@ -3432,7 +4129,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
                 // Of the coins we could spend, pick some that we actually will spend.
                 CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                CoinSelection selection = selector.select(valueNeeded, candidates);
+                CoinSelection selection = candidates.select(selector, valueNeeded);
                 // Can we afford this?
                 if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                     valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -3676,6 +4373,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public void setKeyRotationTime(long unixTimeSeconds) {
         vKeyRotationTimestamp = unixTimeSeconds;
+        vSnapshotRequired = true;
         if (unixTimeSeconds > 0) {
             log.info("Key rotation time set: {}", unixTimeSeconds);
             maybeRotateKeys();
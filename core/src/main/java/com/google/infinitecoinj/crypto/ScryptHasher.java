@@ -0,0 +1,374 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import com.lambdaworks.crypto.SCrypt;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Calculates the scrypt hash used as proof of work by Litecoin style coins: scrypt with N=1024, r=1, p=1 and a
+ * 32 byte output, where the serialized block header is both the password and the salt.</p>
+ *
+ * <p>The general purpose {@link SCrypt} implementation allocates a fresh 128KB scratchpad and PBKDF2 state for every
+ * header. This class only supports the parameters above, which lets it keep the scratchpad and all other working
+ * state in per-thread buffers that are reused from one header to the next. The Salsa20/8 core runs directly on int
+ * arrays, and the HMAC-SHA256 steps of PBKDF2 are computed from key pads that are derived once per header, so hashing
+ * a header allocates nothing but the result.</p>
+ *
+ * <p>The native scrypt library that lambdaworks can load may be faster still on some platforms, so
+ * {@link #setMode(Mode)} can switch all hashing over to it.</p>
+ */
+public class ScryptHasher {
+    /** Selects which implementation {@link #hash(byte[])} uses. */
+    public enum Mode {
+        /** The allocation free pure Java implementation in this class. This is the default. */
+        JAVA,
+        /**
+         * {@link SCrypt#scrypt(byte[], byte[], int, int, int, int)}, which uses the lambdaworks native library if it
+         * could be loaded and its generic Java implementation otherwise.
+         */
+        LIBRARY
+    }
+
+    /** The scrypt CPU/memory cost parameter. */
+    public static final int N = 1024;
+    /** The length of the resulting hash in bytes. */
+    public static final int HASH_LENGTH = 32;
+
+    // The block size parameter r is 1, so each block being mixed is 128 bytes, or 32 ints.
+    private static final int BLOCK_INTS = 32;
+
+    private static volatile Mode mode = Mode.JAVA;
+
+    private static final ThreadLocal<ScryptHasher> hashers = new ThreadLocal<ScryptHasher>() {
+        @Override
+        protected ScryptHasher initialValue() {
+            return new ScryptHasher();
+        }
+    };
+
+    /** Sets the implementation used by all threads from now on. */
+    public static void setMode(Mode mode) {
+        ScryptHasher.mode = checkNotNull(mode);
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /** Returns scrypt(input, input, 1024, 1, 1, 32). */
+    public static byte[] hash(byte[] input) {
+        return hash(input, 0, input.length);
+    }
+
+    /** Returns scrypt(input, input, 1024, 1, 1, 32) over the given range of the input array. */
+    public static byte[] hash(byte[] input, int offset, int length) {
+        checkArgument(offset >= 0 && length >= 0 && offset + length <= input.length, "range out of bounds");
+        byte[] out = new byte[HASH_LENGTH];
+        if (mode == Mode.LIBRARY) {
+            byte[] data = (offset == 0 && length == input.length) ? input : Arrays.copyOfRange(input, offset, offset + length);
+            try {
+                System.arraycopy(SCrypt.scrypt(data, data, N, 1, 1, HASH_LENGTH), 0, out, 0, HASH_LENGTH);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);  // Cannot happen, HMAC-SHA256 is always available.
+            }
+        } else {
+            hashers.get().scrypt(input, offset, length, out);
+        }
+        return out;
+    }
+
+    private static final int[] SHA256_IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] SHA256_K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    // The scrypt scratchpad and the block being mixed, as little endian words.
+    private final int[] v = new int[N * BLOCK_INTS];
+    private final int[] x = new int[BLOCK_INTS];
+
+    // HMAC-SHA256 state: the SHA-256 midstates after absorbing the inner and outer key pads, and the inner digest.
+    private final byte[] keyBlock = new byte[64];
+    private final int[] innerMidstate = new int[8];
+    private final int[] outerMidstate = new int[8];
+    private final int[] innerDigest = new int[8];
+
+    // SHA-256 state.
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] buffer = new byte[64];
+    private int bufferLength;
+    private long totalLength;
+
+    private ScryptHasher() {
+    }
+
+    private void scrypt(byte[] input, int offset, int length, byte[] out) {
+        initHmacKey(input, offset, length);
+
+        // B = PBKDF2-HMAC-SHA256(input, input, 1, 128), stored straight into x as little endian words.
+        for (int i = 0; i < 4; i++) {
+            shaInit(innerMidstate, 64);
+            shaUpdate(input, offset, length);
+            shaUpdateInt(i + 1);
+            hmacFinish();
+            for (int k = 0; k < 8; k++)
+                x[i * 8 + k] = Integer.reverseBytes(state[k]);
+        }
+
+        // ROMix.
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * BLOCK_INTS, BLOCK_INTS);
+            blockMix();
+        }
+        for (int i = 0; i < N; i++) {
+            int j = (x[16] & (N - 1)) * BLOCK_INTS;
+            for (int k = 0; k < BLOCK_INTS; k++)
+                x[k] ^= v[j + k];
+            blockMix();
+        }
+
+        // Result = PBKDF2-HMAC-SHA256(input, B, 1, 32).
+        shaInit(innerMidstate, 64);
+        for (int k = 0; k < BLOCK_INTS; k++)
+            shaUpdateInt(Integer.reverseBytes(x[k]));
+        shaUpdateInt(1);
+        hmacFinish();
+        for (int k = 0; k < 8; k++) {
+            out[k * 4] = (byte) (state[k] >>> 24);
+            out[k * 4 + 1] = (byte) (state[k] >>> 16);
+            out[k * 4 + 2] = (byte) (state[k] >>> 8);
+            out[k * 4 + 3] = (byte) state[k];
+        }
+    }
+
+    /** BlockMix with r=1: mixes the two 64 byte halves of x through Salsa20/8. */
+    private void blockMix() {
+        xorSalsa8(x, 0, 16);
+        xorSalsa8(x, 16, 0);
+    }
+
+    /** b[bi..bi+16] = Salsa20/8(b[bi..bi+16] ^ b[xi..xi+16]) */
+    private static void xorSalsa8(int[] b, int bi, int xi) {
+        int x00 = (b[bi] ^= b[xi]);
+        int x01 = (b[bi + 1] ^= b[xi + 1]);
+        int x02 = (b[bi + 2] ^= b[xi + 2]);
+        int x03 = (b[bi + 3] ^= b[xi + 3]);
+        int x04 = (b[bi + 4] ^= b[xi + 4]);
+        int x05 = (b[bi + 5] ^= b[xi + 5]);
+        int x06 = (b[bi + 6] ^= b[xi + 6]);
+        int x07 = (b[bi + 7] ^= b[xi + 7]);
+        int x08 = (b[bi + 8] ^= b[xi + 8]);
+        int x09 = (b[bi + 9] ^= b[xi + 9]);
+        int x10 = (b[bi + 10] ^= b[xi + 10]);
+        int x11 = (b[bi + 11] ^= b[xi + 11]);
+        int x12 = (b[bi + 12] ^= b[xi + 12]);
+        int x13 = (b[bi + 13] ^= b[xi + 13]);
+        int x14 = (b[bi + 14] ^= b[xi + 14]);
+        int x15 = (b[bi + 15] ^= b[xi + 15]);
+        for (int i = 0; i < 8; i += 2) {
+            // Columns.
+            x04 ^= Integer.rotateLeft(x00 + x12, 7);
+            x08 ^= Integer.rotateLeft(x04 + x00, 9);
+            x12 ^= Integer.rotateLeft(x08 + x04, 13);
+            x00 ^= Integer.rotateLeft(x12 + x08, 18);
+            x09 ^= Integer.rotateLeft(x05 + x01, 7);
+            x13 ^= Integer.rotateLeft(x09 + x05, 9);
+            x01 ^= Integer.rotateLeft(x13 + x09, 13);
+            x05 ^= Integer.rotateLeft(x01 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x06, 7);
+            x02 ^= Integer.rotateLeft(x14 + x10, 9);
+            x06 ^= Integer.rotateLeft(x02 + x14, 13);
+            x10 ^= Integer.rotateLeft(x06 + x02, 18);
+            x03 ^= Integer.rotateLeft(x15 + x11, 7);
+            x07 ^= Integer.rotateLeft(x03 + x15, 9);
+            x11 ^= Integer.rotateLeft(x07 + x03, 13);
+            x15 ^= Integer.rotateLeft(x11 + x07, 18);
+            // Rows.
+            x01 ^= Integer.rotateLeft(x00 + x03, 7);
+            x02 ^= Integer.rotateLeft(x01 + x00, 9);
+            x03 ^= Integer.rotateLeft(x02 + x01, 13);
+            x00 ^= Integer.rotateLeft(x03 + x02, 18);
+            x06 ^= Integer.rotateLeft(x05 + x04, 7);
+            x07 ^= Integer.rotateLeft(x06 + x05, 9);
+            x04 ^= Integer.rotateLeft(x07 + x06, 13);
+            x05 ^= Integer.rotateLeft(x04 + x07, 18);
+            x11 ^= Integer.rotateLeft(x10 + x09, 7);
+            x08 ^= Integer.rotateLeft(x11 + x10, 9);
+            x09 ^= Integer.rotateLeft(x08 + x11, 13);
+            x10 ^= Integer.rotateLeft(x09 + x08, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[bi] += x00;
+        b[bi + 1] += x01;
+        b[bi + 2] += x02;
+        b[bi + 3] += x03;
+        b[bi + 4] += x04;
+        b[bi + 5] += x05;
+        b[bi + 6] += x06;
+        b[bi + 7] += x07;
+        b[bi + 8] += x08;
+        b[bi + 9] += x09;
+        b[bi + 10] += x10;
+        b[bi + 11] += x11;
+        b[bi + 12] += x12;
+        b[bi + 13] += x13;
+        b[bi + 14] += x14;
+        b[bi + 15] += x15;
+    }
+
+    /** Derives the HMAC-SHA256 inner and outer midstates for the given key. */
+    private void initHmacKey(byte[] key, int offset, int length) {
+        Arrays.fill(keyBlock, (byte) 0);
+        if (length > keyBlock.length) {
+            // Keys longer than the SHA-256 block size are hashed first, which is the case for 80 byte headers.
+            shaInit(SHA256_IV, 0);
+            shaUpdate(key, offset, length);
+            shaFinish();
+            for (int k = 0; k < 8; k++) {
+                keyBlock[k * 4] = (byte) (state[k] >>> 24);
+                keyBlock[k * 4 + 1] = (byte) (state[k] >>> 16);
+                keyBlock[k * 4 + 2] = (byte) (state[k] >>> 8);
+                keyBlock[k * 4 + 3] = (byte) state[k];
+            }
+        } else {
+            System.arraycopy(key, offset, keyBlock, 0, length);
+        }
+        for (int i = 0; i < keyBlock.length; i++)
+            keyBlock[i] ^= 0x36;
+        shaInit(SHA256_IV, 0);
+        shaUpdate(keyBlock, 0, keyBlock.length);
+        System.arraycopy(state, 0, innerMidstate, 0, 8);
+        for (int i = 0; i < keyBlock.length; i++)
+            keyBlock[i] ^= 0x36 ^ 0x5c;
+        shaInit(SHA256_IV, 0);
+        shaUpdate(keyBlock, 0, keyBlock.length);
+        System.arraycopy(state, 0, outerMidstate, 0, 8);
+    }
+
+    /** Finishes the inner hash of an HMAC started from innerMidstate and leaves the HMAC result in state. */
+    private void hmacFinish() {
+        shaFinish();
+        System.arraycopy(state, 0, innerDigest, 0, 8);
+        shaInit(outerMidstate, 64);
+        for (int k = 0; k < 8; k++)
+            shaUpdateInt(innerDigest[k]);
+        shaFinish();
+    }
+
+    private void shaInit(int[] midstate, long bytesAlreadyHashed) {
+        System.arraycopy(midstate, 0, state, 0, 8);
+        bufferLength = 0;
+        totalLength = bytesAlreadyHashed;
+    }
+
+    private void shaUpdate(byte[] input, int offset, int length) {
+        totalLength += length;
+        while (length > 0) {
+            int n = Math.min(buffer.length - bufferLength, length);
+            System.arraycopy(input, offset, buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            length -= n;
+            if (bufferLength == buffer.length)
+                shaCompress();
+        }
+    }
+
+    private void shaUpdateByte(int b) {
+        buffer[bufferLength++] = (byte) b;
+        totalLength++;
+        if (bufferLength == buffer.length)
+            shaCompress();
+    }
+
+    /** Hashes the given int in big endian byte order. */
+    private void shaUpdateInt(int value) {
+        shaUpdateByte(value >>> 24);
+        shaUpdateByte(value >>> 16);
+        shaUpdateByte(value >>> 8);
+        shaUpdateByte(value);
+    }
+
+    /** Pads the message and leaves the digest, as big endian words, in state. */
+    private void shaFinish() {
+        long bitLength = totalLength * 8;
+        shaUpdateByte(0x80);
+        while (bufferLength != 56)
+            shaUpdateByte(0);
+        for (int i = 7; i >= 0; i--)
+            shaUpdateByte((int) (bitLength >>> (i * 8)));
+    }
+
+    private void shaCompress() {
+        for (int i = 0; i < 16; i++) {
+            w[i] = ((buffer[i * 4] & 0xff) << 24) | ((buffer[i * 4 + 1] & 0xff) << 16) |
+                   ((buffer[i * 4 + 2] & 0xff) << 8) | (buffer[i * 4 + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            int w15 = w[i - 15], w2 = w[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + SHA256_K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+        bufferLength = 0;
+    }
+}
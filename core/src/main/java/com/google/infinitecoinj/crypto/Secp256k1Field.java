@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic modulo the secp256k1 field prime P = 2^256 - 2^32 - 977, for {@link Secp256k1Verifier}. Elements are
+ * arrays of eight 32 bit limbs, least significant first, and are always kept fully reduced. Results are written to
+ * an array passed in, which may be the same as one of the inputs, so that no garbage is created; multiplications
+ * need a 16 limb scratch array for the double length product.
+ */
+final class Secp256k1Field {
+    static final BigInteger P = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+
+    private static final long M = 0xFFFFFFFFL;
+    // 2^256 = 2^32 + 977 (mod P), so the high half of a product is folded into the low half with this small constant.
+    private static final long C_LOW = 977;
+    private static final int P0 = 0xFFFFFC2F;
+    private static final int P1 = 0xFFFFFFFE;
+
+    private Secp256k1Field() {
+    }
+
+    static int[] create() {
+        return new int[8];
+    }
+
+    static int[] fromBigInteger(BigInteger value) {
+        int[] z = new int[8];
+        for (int i = 0; i < 8; i++)
+            z[i] = value.shiftRight(32 * i).intValue();
+        return z;
+    }
+
+    static BigInteger toBigInteger(int[] x) {
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            int limb = x[i];
+            int offset = 28 - 4 * i;
+            bytes[offset] = (byte) (limb >>> 24);
+            bytes[offset + 1] = (byte) (limb >>> 16);
+            bytes[offset + 2] = (byte) (limb >>> 8);
+            bytes[offset + 3] = (byte) limb;
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    static void copy(int[] x, int[] z) {
+        System.arraycopy(x, 0, z, 0, 8);
+    }
+
+    static boolean isZero(int[] x) {
+        for (int i = 0; i < 8; i++)
+            if (x[i] != 0)
+                return false;
+        return true;
+    }
+
+    static boolean equal(int[] x, int[] y) {
+        for (int i = 0; i < 8; i++)
+            if (x[i] != y[i])
+                return false;
+        return true;
+    }
+
+    static boolean isOdd(int[] x) {
+        return (x[0] & 1) != 0;
+    }
+
+    static void add(int[] x, int[] y, int[] z) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (x[i] & M) + (y[i] & M);
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+        if (c != 0 || isAtLeastP(z))
+            subtractP(z);
+    }
+
+    static void subtract(int[] x, int[] y, int[] z) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (x[i] & M) - (y[i] & M);
+            z[i] = (int) c;
+            c >>= 32;
+        }
+        if (c != 0)
+            addP(z);
+    }
+
+    static void twice(int[] x, int[] z) {
+        add(x, x, z);
+    }
+
+    static void negate(int[] x, int[] z) {
+        if (isZero(x)) {
+            copy(x, z);
+            return;
+        }
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (i == 0 ? P0 & M : i == 1 ? P1 & M : M) - (x[i] & M);
+            z[i] = (int) c;
+            c >>= 32;
+        }
+    }
+
+    static void multiply(int[] x, int[] y, int[] z, int[] tt) {
+        long y0 = y[0] & M, y1 = y[1] & M, y2 = y[2] & M, y3 = y[3] & M;
+        long y4 = y[4] & M, y5 = y[5] & M, y6 = y[6] & M, y7 = y[7] & M;
+        // The first row initializes the product, the others accumulate into it.
+        long xi = x[0] & M;
+        long c = xi * y0;
+        tt[0] = (int) c; c >>>= 32;
+        c += xi * y1; tt[1] = (int) c; c >>>= 32;
+        c += xi * y2; tt[2] = (int) c; c >>>= 32;
+        c += xi * y3; tt[3] = (int) c; c >>>= 32;
+        c += xi * y4; tt[4] = (int) c; c >>>= 32;
+        c += xi * y5; tt[5] = (int) c; c >>>= 32;
+        c += xi * y6; tt[6] = (int) c; c >>>= 32;
+        c += xi * y7; tt[7] = (int) c; c >>>= 32;
+        tt[8] = (int) c;
+        for (int i = 1; i < 8; i++) {
+            xi = x[i] & M;
+            c = xi * y0 + (tt[i] & M);
+            tt[i] = (int) c; c >>>= 32;
+            c += xi * y1 + (tt[i + 1] & M); tt[i + 1] = (int) c; c >>>= 32;
+            c += xi * y2 + (tt[i + 2] & M); tt[i + 2] = (int) c; c >>>= 32;
+            c += xi * y3 + (tt[i + 3] & M); tt[i + 3] = (int) c; c >>>= 32;
+            c += xi * y4 + (tt[i + 4] & M); tt[i + 4] = (int) c; c >>>= 32;
+            c += xi * y5 + (tt[i + 5] & M); tt[i + 5] = (int) c; c >>>= 32;
+            c += xi * y6 + (tt[i + 6] & M); tt[i + 6] = (int) c; c >>>= 32;
+            c += xi * y7 + (tt[i + 7] & M); tt[i + 7] = (int) c; c >>>= 32;
+            tt[i + 8] = (int) c;
+        }
+        reduce(tt, z);
+    }
+
+    static void square(int[] x, int[] z, int[] tt) {
+        multiply(x, x, z, tt);
+    }
+
+    /** Raises x to the power 2^n, by squaring it n times. */
+    static void squareN(int[] x, int n, int[] z, int[] tt) {
+        square(x, z, tt);
+        for (int i = 1; i < n; i++)
+            square(z, z, tt);
+    }
+
+    /**
+     * Calculates a square root of x, x^((P+1)/4), returning false if x has none. Uses the addition chain from
+     * libsecp256k1, in which xN stands for x^(2^N - 1).
+     */
+    static boolean sqrt(int[] x, int[] z, int[] tt) {
+        int[] x2 = create(), x3 = create(), x6 = create(), x9 = create(), x11 = create(), x22 = create();
+        int[] x44 = create(), x88 = create(), x176 = create(), x220 = create(), x223 = create(), t = create();
+        square(x, x2, tt);
+        multiply(x2, x, x2, tt);
+        square(x2, x3, tt);
+        multiply(x3, x, x3, tt);
+        squareN(x3, 3, x6, tt);
+        multiply(x6, x3, x6, tt);
+        squareN(x6, 3, x9, tt);
+        multiply(x9, x3, x9, tt);
+        squareN(x9, 2, x11, tt);
+        multiply(x11, x2, x11, tt);
+        squareN(x11, 11, x22, tt);
+        multiply(x22, x11, x22, tt);
+        squareN(x22, 22, x44, tt);
+        multiply(x44, x22, x44, tt);
+        squareN(x44, 44, x88, tt);
+        multiply(x88, x44, x88, tt);
+        squareN(x88, 88, x176, tt);
+        multiply(x176, x88, x176, tt);
+        squareN(x176, 44, x220, tt);
+        multiply(x220, x44, x220, tt);
+        squareN(x220, 3, x223, tt);
+        multiply(x223, x3, x223, tt);
+        squareN(x223, 23, t, tt);
+        multiply(t, x22, t, tt);
+        squareN(t, 6, t, tt);
+        multiply(t, x2, t, tt);
+        squareN(t, 2, t, tt);
+        // Only half of the field elements have square roots, so check that this is one.
+        square(t, x2, tt);
+        boolean exists = equal(x2, x);
+        copy(t, z);
+        return exists;
+    }
+
+    /** Calculates 1/x, which must not be zero. Inversions are rare enough that BigInteger does well enough. */
+    static void invert(int[] x, int[] z) {
+        copy(fromBigInteger(toBigInteger(x).modInverse(P)), z);
+    }
+
+    // Reduces a 512 bit product modulo P.
+    private static void reduce(int[] tt, int[] z) {
+        // Fold the high half in: hi * 2^256 = hi * 2^32 + hi * 977.
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (tt[i] & M) + (tt[i + 8] & M) * C_LOW;
+            if (i > 0)
+                c += tt[i + 7] & M;
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+        c += tt[15] & M;
+        reduceCarry(c, z);
+    }
+
+    // Adds c * 2^256 to z, modulo P, for a small c.
+    private static void reduceCarry(long c, int[] z) {
+        long t = (z[0] & M) + c * C_LOW;
+        z[0] = (int) t;
+        t >>>= 32;
+        t += (z[1] & M) + c;
+        z[1] = (int) t;
+        t >>>= 32;
+        for (int i = 2; i < 8 && t != 0; i++) {
+            t += z[i] & M;
+            z[i] = (int) t;
+            t >>>= 32;
+        }
+        // If that overflowed again what is left is small, so adding 2^256 mod P once more can't overflow.
+        if (t != 0 || isAtLeastP(z))
+            subtractP(z);
+    }
+
+    private static boolean isAtLeastP(int[] z) {
+        for (int i = 7; i >= 2; i--)
+            if (z[i] != -1)
+                return false;
+        if (z[1] != P1)
+            return (z[1] & M) > (P1 & M);
+        return (z[0] & M) >= (P0 & M);
+    }
+
+    // Subtracts P, modulo 2^256, by adding 2^256 - P.
+    private static void subtractP(int[] z) {
+        long c = (z[0] & M) + C_LOW;
+        z[0] = (int) c;
+        c >>>= 32;
+        c += (z[1] & M) + 1;
+        z[1] = (int) c;
+        c >>>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += z[i] & M;
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+
+    // Adds P, modulo 2^256, by subtracting 2^256 - P.
+    private static void addP(int[] z) {
+        long c = (z[0] & M) - C_LOW;
+        z[0] = (int) c;
+        c >>= 32;
+        c += (z[1] & M) - 1;
+        z[1] = (int) c;
+        c >>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += z[i] & M;
+            z[i] = (int) c;
+            c >>= 32;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>Verifies ECDSA signatures over secp256k1, the curve Bitcoin uses, several times faster than the generic elliptic
+ * curve code in Bouncy Castle. It is used by {@link com.google.infinitecoinj.core.ECKey#verify(byte[],
+ * com.google.infinitecoinj.core.ECKey.ECDSASignature, byte[])} unless another engine is selected with
+ * {@link com.google.infinitecoinj.core.ECKey#setVerificationEngine}.</p>
+ *
+ * <p>Verification comes down to calculating u1*G + u2*Q for the generator G and the public key Q. This is done with
+ * the following techniques, which are described in "Guide to Elliptic Curve Cryptography" by Hankerson, Menezes and
+ * Vanstone:</p>
+ *
+ * <ul>
+ *     <li>secp256k1 has an efficiently computable endomorphism, (x, y) -> (beta*x, y), which multiplies a point by
+ *     the constant lambda. Each 256 bit scalar is split into two of about 128 bits, k = k1 + k2*lambda, which halves
+ *     the number of point doublings.</li>
+ *     <li>The four half length scalars are written in width-w non-adjacent form, so that only about one bit in w+1
+ *     needs a point addition.</li>
+ *     <li>The odd multiples of G that those additions use are calculated once, when the class is loaded, in a wider
+ *     window than can pay for itself for the public key.</li>
+ *     <li>All four multiplications share one chain of doublings (Shamir's trick).</li>
+ *     <li>Points are kept in Jacobian coordinates, so no field inversions are needed apart from two when preparing
+ *     the table for the public key, and the final comparison with r is done without converting back.</li>
+ *     <li>Field elements are fixed size arrays of 32 bit limbs with a reduction specialized for the secp256k1 prime
+ *     (see {@link Secp256k1Field}), and the points used during a verification reuse their arrays, so the inner loop
+ *     allocates nothing.</li>
+ * </ul>
+ *
+ * <p>Public keys that are not on the curve are rejected.</p>
+ */
+public class Secp256k1Verifier {
+    /** The prime of the field the curve is defined over, 2^256 - 2^32 - 977. */
+    static final BigInteger P = Secp256k1Field.P;
+    /** The order of the group generated by G. */
+    static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    static final BigInteger GX = new BigInteger(
+            "79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16);
+    static final BigInteger GY = new BigInteger(
+            "483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16);
+
+    /** A cube root of unity in the field: (x, y) -> (BETA*x, y) is the same as multiplying by {@link #LAMBDA}. */
+    static final BigInteger BETA = new BigInteger(
+            "7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16);
+    /** The cube root of unity modulo {@link #N} that corresponds to {@link #BETA}. */
+    static final BigInteger LAMBDA = new BigInteger(
+            "5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+
+    // A short basis of the lattice of (x, y) with x + y*lambda = 0 (mod n), used to split scalars. These are the values
+    // libsecp256k1 uses.
+    private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+    private static final BigInteger B1 = new BigInteger("-E4437ED6010E88286F547FA90ABFE4C3", 16);
+    private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+    private static final BigInteger B2 = A1;
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    private static final int[] BETA_FIELD = Secp256k1Field.fromBigInteger(BETA);
+    private static final int[] SEVEN = Secp256k1Field.fromBigInteger(BigInteger.valueOf(7));
+
+    /** The window width used for G. The table holds 2^(G_WINDOW-2) points for each of G and lambda*G. */
+    static final int G_WINDOW = 8;
+    /** The window width used for the public key, whose table is built for each signature. */
+    static final int Q_WINDOW = 5;
+
+    private static final AffinePoint[] G_TABLE = oddMultiples(
+            new AffinePoint(Secp256k1Field.fromBigInteger(GX), Secp256k1Field.fromBigInteger(GY)), G_WINDOW);
+    private static final AffinePoint[] G_LAMBDA_TABLE = endomorphism(G_TABLE);
+
+    /** A point on the curve in affine coordinates. */
+    static final class AffinePoint {
+        final int[] x, y;
+
+        AffinePoint(int[] x, int[] y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Returns true if the given signature is valid for the hash and the encoded public key. Invalid public keys,
+     * including ones that aren't on the curve, and signature components out of range give false.
+     *
+     * @param hash the hash that was signed, normally 32 bytes
+     * @param r the r component of the signature
+     * @param s the s component of the signature
+     * @param pub a compressed, uncompressed or hybrid encoded public key
+     */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, byte[] pub) {
+        AffinePoint q = decodePoint(pub);
+        return q != null && verify(hash, r, s, q);
+    }
+
+    static boolean verify(byte[] hash, BigInteger r, BigInteger s, AffinePoint q) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        BigInteger e = hashToInteger(hash);
+        BigInteger w = s.modInverse(N);
+        BigInteger u1 = e.multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+        JacobianPoint point = sumOfTwoMultiplies(u1, q, u2);
+        if (point.isInfinity())
+            return false;
+        // The affine x is X/Z^2 and lies below P, which is less than 2N, so x mod N is either r or r + N.
+        int[] tt = new int[16];
+        int[] zz = Secp256k1Field.create();
+        Secp256k1Field.square(point.z, zz, tt);
+        int[] candidate = Secp256k1Field.fromBigInteger(r);
+        Secp256k1Field.multiply(candidate, zz, candidate, tt);
+        if (Secp256k1Field.equal(candidate, point.x))
+            return true;
+        BigInteger rPlusN = r.add(N);
+        if (rPlusN.compareTo(P) >= 0)
+            return false;
+        candidate = Secp256k1Field.fromBigInteger(rPlusN);
+        Secp256k1Field.multiply(candidate, zz, candidate, tt);
+        return Secp256k1Field.equal(candidate, point.x);
+    }
+
+    // Interprets the hash as an integer in the same way as Bouncy Castle's ECDSASigner, keeping the leftmost bits if
+    // it's longer than N.
+    private static BigInteger hashToInteger(byte[] hash) {
+        BigInteger e = new BigInteger(1, hash);
+        int excessBits = hash.length * 8 - N.bitLength();
+        return excessBits > 0 ? e.shiftRight(excessBits) : e;
+    }
+
+    /** Decodes a public key, returning null if it is badly encoded or not on the curve. */
+    static AffinePoint decodePoint(byte[] pub) {
+        int[] tt = new int[16];
+        if (pub.length == 33 && (pub[0] == 0x02 || pub[0] == 0x03)) {
+            BigInteger xValue = new BigInteger(1, Arrays.copyOfRange(pub, 1, 33));
+            if (xValue.compareTo(P) >= 0)
+                return null;
+            int[] x = Secp256k1Field.fromBigInteger(xValue);
+            int[] y = Secp256k1Field.create();
+            curveRightHandSide(x, y, tt);
+            if (!Secp256k1Field.sqrt(y, y, tt))
+                return null;
+            if (Secp256k1Field.isOdd(y) != (pub[0] == 0x03))
+                Secp256k1Field.negate(y, y);
+            return new AffinePoint(x, y);
+        } else if (pub.length == 65 && (pub[0] == 0x04 || pub[0] == 0x06 || pub[0] == 0x07)) {
+            BigInteger xValue = new BigInteger(1, Arrays.copyOfRange(pub, 1, 33));
+            BigInteger yValue = new BigInteger(1, Arrays.copyOfRange(pub, 33, 65));
+            if (xValue.compareTo(P) >= 0 || yValue.compareTo(P) >= 0)
+                return null;
+            // Hybrid encodings carry the parity of y in the prefix as well.
+            if (pub[0] != 0x04 && yValue.testBit(0) != (pub[0] == 0x07))
+                return null;
+            int[] x = Secp256k1Field.fromBigInteger(xValue);
+            int[] y = Secp256k1Field.fromBigInteger(yValue);
+            int[] rhs = Secp256k1Field.create();
+            curveRightHandSide(x, rhs, tt);
+            int[] yy = Secp256k1Field.create();
+            Secp256k1Field.square(y, yy, tt);
+            if (!Secp256k1Field.equal(yy, rhs))
+                return null;
+            return new AffinePoint(x, y);
+        }
+        return null;
+    }
+
+    // Calculates x^3 + 7.
+    private static void curveRightHandSide(int[] x, int[] z, int[] tt) {
+        Secp256k1Field.square(x, z, tt);
+        Secp256k1Field.multiply(z, x, z, tt);
+        Secp256k1Field.add(z, SEVEN, z);
+    }
+
+    // Calculates u1*G + u2*q.
+    private static JacobianPoint sumOfTwoMultiplies(BigInteger u1, AffinePoint q, BigInteger u2) {
+        AffinePoint[] qTable = oddMultiples(q, Q_WINDOW);
+        AffinePoint[][] tables = { G_TABLE, G_LAMBDA_TABLE, qTable, endomorphism(qTable) };
+        BigInteger[] scalars = new BigInteger[4];
+        BigInteger[] split = split(u1);
+        scalars[0] = split[0];
+        scalars[1] = split[1];
+        split = split(u2);
+        scalars[2] = split[0];
+        scalars[3] = split[1];
+
+        // Negative scalars are handled by negating the points they multiply.
+        int[][] nafs = new int[4][];
+        boolean[] negated = new boolean[4];
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            negated[i] = scalars[i].signum() < 0;
+            nafs[i] = wnaf(scalars[i].abs(), i < 2 ? G_WINDOW : Q_WINDOW);
+            length = Math.max(length, nafs[i].length);
+        }
+
+        JacobianPoint result = new JacobianPoint();
+        for (int bit = length - 1; bit >= 0; bit--) {
+            result.twice();
+            for (int i = 0; i < 4; i++) {
+                if (bit >= nafs[i].length)
+                    continue;
+                int digit = nafs[i][bit];
+                if (digit > 0)
+                    result.addAffine(tables[i][digit >> 1], negated[i]);
+                else if (digit < 0)
+                    result.addAffine(tables[i][-digit >> 1], !negated[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits a scalar into two of about 128 bits, which may be negative: the result {k1, k2} has
+     * k = k1 + k2*LAMBDA (mod N).
+     */
+    static BigInteger[] split(BigInteger k) {
+        BigInteger c1 = divideRounded(B2.multiply(k));
+        BigInteger c2 = divideRounded(B1.negate().multiply(k));
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(B1).add(c2.multiply(B2)).negate();
+        return new BigInteger[] { k1, k2 };
+    }
+
+    // Divides a non-negative number by N, rounding to the nearest integer.
+    private static BigInteger divideRounded(BigInteger value) {
+        return value.add(HALF_N).divide(N);
+    }
+
+    /**
+     * Returns the width-w non-adjacent form of a non-negative scalar, least significant digit first. Every non-zero
+     * digit is odd, less than 2^(w-1) in magnitude and followed by at least w-1 zeros.
+     */
+    static int[] wnaf(BigInteger k, int w) {
+        int[] digits = new int[k.bitLength() + 1];
+        int length = 0;
+        int mask = (1 << w) - 1;
+        while (k.signum() > 0) {
+            if (k.testBit(0)) {
+                int digit = k.intValue() & mask;
+                if (digit >= 1 << (w - 1))
+                    digit -= 1 << w;
+                digits[length] = digit;
+                k = k.subtract(BigInteger.valueOf(digit));
+            }
+            k = k.shiftRight(1);
+            length++;
+        }
+        return Arrays.copyOf(digits, length);
+    }
+
+    // Returns P, 3P, 5P ... (2^(w-1)-1)P in affine coordinates.
+    private static AffinePoint[] oddMultiples(AffinePoint point, int w) {
+        int count = 1 << (w - 2);
+        JacobianPoint[] multiples = new JacobianPoint[count];
+        multiples[0] = new JacobianPoint(point);
+        JacobianPoint doubled = new JacobianPoint(point);
+        doubled.twice();
+        AffinePoint twoP = toAffine(new JacobianPoint[] { doubled })[0];
+        for (int i = 1; i < count; i++) {
+            multiples[i] = multiples[i - 1].copy();
+            multiples[i].addAffine(twoP, false);
+        }
+        return toAffine(multiples);
+    }
+
+    // Applies the endomorphism to each point, multiplying it by LAMBDA.
+    private static AffinePoint[] endomorphism(AffinePoint[] points) {
+        int[] tt = new int[16];
+        AffinePoint[] result = new AffinePoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            int[] x = Secp256k1Field.create();
+            Secp256k1Field.multiply(BETA_FIELD, points[i].x, x, tt);
+            result[i] = new AffinePoint(x, points[i].y);
+        }
+        return result;
+    }
+
+    // Converts points that are not at infinity to affine coordinates with a single inversion (Montgomery's trick).
+    private static AffinePoint[] toAffine(JacobianPoint[] points) {
+        int[] tt = new int[16];
+        int[][] products = new int[points.length][];
+        products[0] = points[0].z;
+        for (int i = 1; i < points.length; i++) {
+            products[i] = Secp256k1Field.create();
+            Secp256k1Field.multiply(products[i - 1], points[i].z, products[i], tt);
+        }
+        int[] inverse = Secp256k1Field.create();
+        Secp256k1Field.invert(products[points.length - 1], inverse);
+        AffinePoint[] result = new AffinePoint[points.length];
+        int[] zInverse = Secp256k1Field.create();
+        int[] zInverse2 = Secp256k1Field.create();
+        for (int i = points.length - 1; i >= 0; i--) {
+            if (i > 0) {
+                Secp256k1Field.multiply(inverse, products[i - 1], zInverse, tt);
+                Secp256k1Field.multiply(inverse, points[i].z, inverse, tt);
+            } else {
+                Secp256k1Field.copy(inverse, zInverse);
+            }
+            Secp256k1Field.square(zInverse, zInverse2, tt);
+            int[] x = Secp256k1Field.create();
+            int[] y = Secp256k1Field.create();
+            Secp256k1Field.multiply(points[i].x, zInverse2, x, tt);
+            Secp256k1Field.multiply(points[i].y, zInverse2, y, tt);
+            Secp256k1Field.multiply(y, zInverse, y, tt);
+            result[i] = new AffinePoint(x, y);
+        }
+        return result;
+    }
+
+    /**
+     * A mutable point in Jacobian coordinates (X/Z^2, Y/Z^3), which is the point at infinity when Z is zero. Each
+     * has its own temporaries, so arithmetic on it doesn't allocate.
+     */
+    private static final class JacobianPoint {
+        final int[] x = Secp256k1Field.create(), y = Secp256k1Field.create(), z = Secp256k1Field.create();
+        private final int[] t1 = Secp256k1Field.create(), t2 = Secp256k1Field.create();
+        private final int[] t3 = Secp256k1Field.create(), t4 = Secp256k1Field.create();
+        private final int[] t5 = Secp256k1Field.create(), t6 = Secp256k1Field.create();
+        private final int[] tt = new int[16];
+
+        // Creates the point at infinity.
+        JacobianPoint() {
+        }
+
+        JacobianPoint(AffinePoint point) {
+            Secp256k1Field.copy(point.x, x);
+            Secp256k1Field.copy(point.y, y);
+            z[0] = 1;
+        }
+
+        boolean isInfinity() {
+            return Secp256k1Field.isZero(z);
+        }
+
+        JacobianPoint copy() {
+            JacobianPoint copy = new JacobianPoint();
+            Secp256k1Field.copy(x, copy.x);
+            Secp256k1Field.copy(y, copy.y);
+            Secp256k1Field.copy(z, copy.z);
+            return copy;
+        }
+
+        // Doubles this point, using the "dbl-2009-l" formulas for curves with a = 0.
+        void twice() {
+            if (isInfinity())
+                return;
+            Secp256k1Field.square(x, t1, tt);                // A = X^2
+            Secp256k1Field.square(y, t2, tt);                // B = Y^2
+            Secp256k1Field.multiply(y, z, z, tt);            // Z3 = 2*Y*Z
+            Secp256k1Field.twice(z, z);
+            Secp256k1Field.square(t2, t3, tt);               // C = B^2
+            Secp256k1Field.add(x, t2, t4);                   // D = 2*((X+B)^2 - A - C)
+            Secp256k1Field.square(t4, t4, tt);
+            Secp256k1Field.subtract(t4, t1, t4);
+            Secp256k1Field.subtract(t4, t3, t4);
+            Secp256k1Field.twice(t4, t4);
+            Secp256k1Field.twice(t1, t5);                    // E = 3*A
+            Secp256k1Field.add(t5, t1, t5);
+            Secp256k1Field.square(t5, t6, tt);               // F = E^2
+            Secp256k1Field.twice(t4, t1);                    // X3 = F - 2*D
+            Secp256k1Field.subtract(t6, t1, x);
+            Secp256k1Field.subtract(t4, x, t4);              // Y3 = E*(D - X3) - 8*C
+            Secp256k1Field.multiply(t5, t4, t4, tt);
+            Secp256k1Field.twice(t3, t3);
+            Secp256k1Field.twice(t3, t3);
+            Secp256k1Field.twice(t3, t3);
+            Secp256k1Field.subtract(t4, t3, y);
+        }
+
+        // Adds an affine point, or its negation, to this point.
+        void addAffine(AffinePoint point, boolean negate) {
+            if (isInfinity()) {
+                Secp256k1Field.copy(point.x, x);
+                if (negate)
+                    Secp256k1Field.negate(point.y, y);
+                else
+                    Secp256k1Field.copy(point.y, y);
+                Arrays.fill(z, 0);
+                z[0] = 1;
+                return;
+            }
+            Secp256k1Field.square(z, t1, tt);                // ZZ = Z^2
+            Secp256k1Field.multiply(point.x, t1, t2, tt);    // U2 = x2*ZZ
+            if (negate)                                      // S2 = y2*Z*ZZ
+                Secp256k1Field.negate(point.y, t3);
+            else
+                Secp256k1Field.copy(point.y, t3);
+            Secp256k1Field.multiply(t3, z, t3, tt);
+            Secp256k1Field.multiply(t3, t1, t3, tt);
+            Secp256k1Field.subtract(t2, x, t2);              // H = U2 - X
+            Secp256k1Field.subtract(t3, y, t3);              // R = S2 - Y
+            if (Secp256k1Field.isZero(t2)) {
+                if (Secp256k1Field.isZero(t3))
+                    twice();
+                else
+                    Arrays.fill(z, 0);
+                return;
+            }
+            Secp256k1Field.square(t2, t1, tt);               // HH = H^2
+            Secp256k1Field.multiply(t2, t1, t4, tt);         // HHH = H*HH
+            Secp256k1Field.multiply(x, t1, t5, tt);          // V = X*HH
+            Secp256k1Field.multiply(z, t2, z, tt);           // Z3 = Z*H
+            Secp256k1Field.square(t3, t6, tt);               // X3 = R^2 - HHH - 2*V
+            Secp256k1Field.subtract(t6, t4, t6);
+            Secp256k1Field.twice(t5, t1);
+            Secp256k1Field.subtract(t6, t1, x);
+            Secp256k1Field.subtract(t5, x, t5);              // Y3 = R*(V - X3) - Y*HHH
+            Secp256k1Field.multiply(t3, t5, t5, tt);
+            Secp256k1Field.multiply(y, t4, t4, tt);
+            Secp256k1Field.subtract(t5, t4, y);
+        }
+    }
+}
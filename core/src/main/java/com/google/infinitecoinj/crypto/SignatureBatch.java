@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import com.google.infinitecoinj.core.ECKey;
+import com.google.infinitecoinj.utils.Threading;
+import org.infinitecoin.NativeSecp256k1;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A list of signatures to be verified together, such as all of those in a block. Each is a (signature hash, DER
+ * signature, public key) triple, as {@link ECKey#verify(byte[], byte[], byte[])} takes.</p>
+ *
+ * <p>Verifying a batch rather than each signature as it is found lets the fixed costs be paid in bulk: the signatures
+ * are all decoded up front, and every distinct public key is decompressed only once however many signatures use it.
+ * The work is then split over the threads of an executor, if one is given. Either the result for every signature or
+ * just the index of the first invalid one can be asked for; the latter stops as soon as it is known.</p>
+ *
+ * <p>Signatures are checked with the engine selected by {@link ECKey#setVerificationEngine}, so the results are the
+ * same as calling ECKey.verify on each. A batch is built from one thread, but may be verified more than once.</p>
+ */
+public class SignatureBatch {
+    // Each task verifies at least this many signatures, so that small batches aren't swamped by task overhead.
+    private static final int MIN_SIGNATURES_PER_TASK = 16;
+
+    private final List<byte[]> sigHashes = new ArrayList<byte[]>();
+    private final List<byte[]> signatures = new ArrayList<byte[]>();
+    private final List<byte[]> pubKeys = new ArrayList<byte[]>();
+
+    /**
+     * Adds a signature to the batch and returns its index.
+     *
+     * @param sigHash the hash that was signed
+     * @param derSignature the DER encoded signature. Anything after the DER sequence, such as the sighash flags byte
+     *                     that scripts append, is ignored.
+     * @param pubKey the encoded public key
+     */
+    public int add(byte[] sigHash, byte[] derSignature, byte[] pubKey) {
+        sigHashes.add(sigHash);
+        signatures.add(derSignature);
+        pubKeys.add(pubKey);
+        return sigHashes.size() - 1;
+    }
+
+    /** Adds all the signatures in the given batch to the end of this one. */
+    public void addAll(SignatureBatch other) {
+        sigHashes.addAll(other.sigHashes);
+        signatures.addAll(other.signatures);
+        pubKeys.addAll(other.pubKeys);
+    }
+
+    /** Returns the number of signatures in the batch. */
+    public int size() {
+        return sigHashes.size();
+    }
+
+    /**
+     * Verifies every signature in the batch, returning whether each one is valid in the order they were added.
+     *
+     * @param executor runs the verification in parallel, or null to do it all on the calling thread
+     */
+    public boolean[] verify(@Nullable ExecutorService executor) {
+        final boolean[] results = new boolean[size()];
+        run(executor, new Verification() {
+            @Override
+            public boolean verified(int index, boolean valid) {
+                results[index] = valid;
+                return true;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the index of the first invalid signature in the batch, or -1 if they are all valid. Signatures after
+     * one already found to be invalid are skipped.
+     *
+     * @param executor runs the verification in parallel, or null to do it all on the calling thread
+     */
+    public int findFirstInvalid(@Nullable ExecutorService executor) {
+        final AtomicInteger firstInvalid = new AtomicInteger(Integer.MAX_VALUE);
+        run(executor, new Verification() {
+            @Override
+            public boolean verified(int index, boolean valid) {
+                if (!valid) {
+                    int current;
+                    do {
+                        current = firstInvalid.get();
+                    } while (index < current && !firstInvalid.compareAndSet(current, index));
+                }
+                // Later signatures don't matter once an earlier one has failed.
+                return index < firstInvalid.get();
+            }
+        });
+        int result = firstInvalid.get();
+        return result == Integer.MAX_VALUE ? -1 : result;
+    }
+
+    // Receives results, and returns false to stop the task it is called from.
+    private interface Verification {
+        boolean verified(int index, boolean valid);
+    }
+
+    private void run(@Nullable ExecutorService executor, final Verification verification) {
+        final int size = size();
+        if (size == 0)
+            return;
+        // The native library and Bouncy Castle take encoded keys, so only the secp256k1 engine gains from decoding
+        // them in bulk.
+        final boolean decode = !ECKey.FAKE_SIGNATURES && !NativeSecp256k1.enabled &&
+                ECKey.getVerificationEngine() == ECKey.VerificationEngine.SECP256K1;
+
+        // Find the distinct public keys. Wrapping the arrays gives them content based equality and hash codes.
+        final int[] keyIndexes = new int[size];
+        final List<byte[]> distinctKeys = new ArrayList<byte[]>();
+        if (decode) {
+            Map<ByteBuffer, Integer> keyIndexMap = new HashMap<ByteBuffer, Integer>();
+            for (int i = 0; i < size; i++) {
+                byte[] pubKey = pubKeys.get(i);
+                Integer keyIndex = keyIndexMap.get(ByteBuffer.wrap(pubKey));
+                if (keyIndex == null) {
+                    keyIndex = distinctKeys.size();
+                    keyIndexMap.put(ByteBuffer.wrap(pubKey), keyIndex);
+                    distinctKeys.add(pubKey);
+                }
+                keyIndexes[i] = keyIndex;
+            }
+        }
+        final Secp256k1Verifier.AffinePoint[] points = new Secp256k1Verifier.AffinePoint[distinctKeys.size()];
+        final ECKey.ECDSASignature[] decodedSignatures = new ECKey.ECDSASignature[size];
+
+        if (decode) {
+            // Decode everything first, then verify.
+            Threading.runInParallel(executor, size, MIN_SIGNATURES_PER_TASK, new Threading.Range() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++)
+                        decodedSignatures[i] = decodeSignature(signatures.get(i));
+                }
+            });
+            Threading.runInParallel(executor, points.length, MIN_SIGNATURES_PER_TASK, new Threading.Range() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++)
+                        points[i] = Secp256k1Verifier.decodePoint(distinctKeys.get(i));
+                }
+            });
+        }
+
+        Threading.runInParallel(executor, size, MIN_SIGNATURES_PER_TASK, new Threading.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    boolean valid;
+                    if (decode) {
+                        ECKey.ECDSASignature signature = decodedSignatures[i];
+                        Secp256k1Verifier.AffinePoint point = points[keyIndexes[i]];
+                        valid = signature != null && point != null &&
+                                Secp256k1Verifier.verify(sigHashes.get(i), signature.r, signature.s, point);
+                    } else {
+                        valid = verifyEncoded(sigHashes.get(i), signatures.get(i), pubKeys.get(i));
+                    }
+                    if (!verification.verified(i, valid))
+                        return;
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static ECKey.ECDSASignature decodeSignature(byte[] signature) {
+        try {
+            return ECKey.ECDSASignature.decodeFromDER(signature);
+        } catch (RuntimeException e) {
+            // Badly encoded signatures can cause all kinds of exceptions inside Bouncy Castle.
+            return null;
+        }
+    }
+
+    private static boolean verifyEncoded(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        try {
+            return ECKey.verify(sigHash, signature, pubKey);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
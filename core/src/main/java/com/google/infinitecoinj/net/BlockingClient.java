@@ -140,4 +140,13 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBuffer(BufferPool.PooledBuffer buffer) throws IOException {
+        // A blocking socket's stream only takes arrays, so the bytes are copied out of the buffer.
+        ByteBuffer view = buffer.view();
+        byte[] message = new byte[view.remaining()];
+        view.get(message);
+        writeBytes(message);
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hands out direct {@link ByteBuffer}s for outbound messages, and keeps those that are given back for reuse, as
+ * direct buffers are slow to allocate and are only freed by the garbage collector. Sizes are rounded up to a power of
+ * two. Buffers bigger than the largest pooled size are allocated as needed and left to the garbage collector.</p>
+ *
+ * <p>Buffers are handed out as {@link PooledBuffer}s, which count references so that one serialized message can be
+ * queued on many connections at once: each connection takes a reference for as long as the message sits in its
+ * queue, and the buffer returns to the pool when the last reference is released.</p>
+ */
+public class BufferPool {
+    private static final int MIN_BUFFER_SIZE_BITS = 12;  // 4 KB
+    private static final int MAX_BUFFER_SIZE_BITS = 20;  // 1 MB
+
+    private final int maxBuffersPerSize;
+    // The free buffers by size, the smallest first.
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    /**
+     * Creates a pool which keeps up to the given number of free buffers of each size, between 4 KB and 1 MB.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBuffersPerSize) {
+        checkArgument(maxBuffersPerSize >= 0);
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        free = new ArrayDeque[MAX_BUFFER_SIZE_BITS - MIN_BUFFER_SIZE_BITS + 1];
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least the given number of bytes. The caller holds the one reference
+     * to it.
+     */
+    public PooledBuffer take(int minSize) {
+        checkArgument(minSize >= 0);
+        int bits = Math.max(MIN_BUFFER_SIZE_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(minSize, 1) - 1));
+        if (bits > MAX_BUFFER_SIZE_BITS)
+            return new PooledBuffer(null, ByteBuffer.allocateDirect(minSize));
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = free[bits - MIN_BUFFER_SIZE_BITS].poll();
+        }
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(1 << bits);
+        buffer.clear();
+        return new PooledBuffer(this, buffer);
+    }
+
+    /** Returns how many free buffers the pool holds. */
+    public synchronized int getFreeBufferCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> buffers : free)
+            count += buffers.size();
+        return count;
+    }
+
+    private synchronized void recycle(ByteBuffer buffer) {
+        int bits = 31 - Integer.numberOfLeadingZeros(buffer.capacity());
+        ArrayDeque<ByteBuffer> buffers = free[bits - MIN_BUFFER_SIZE_BITS];
+        if (buffers.size() < maxBuffersPerSize)
+            buffers.push(buffer);
+    }
+
+    /**
+     * A reference counted buffer from a {@link BufferPool}. Whoever takes it from the pool fills it and flips it, after
+     * which its contents must not be changed: readers each use their own {@link #view()}.
+     */
+    public static class PooledBuffer {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        /** Returns the underlying buffer, for filling it. */
+        public ByteBuffer buffer() {
+            checkState(references.get() > 0, "Buffer has been released");
+            return buffer;
+        }
+
+        /** Returns a read only view of the bytes between the position and the limit of the buffer. */
+        public ByteBuffer view() {
+            checkState(references.get() > 0, "Buffer has been released");
+            return buffer.asReadOnlyBuffer();
+        }
+
+        /** Takes another reference to the buffer, which must be released in turn. */
+        public PooledBuffer retain() {
+            int previous = references.getAndIncrement();
+            checkState(previous > 0, "Buffer has been released");
+            return this;
+        }
+
+        /** Releases a reference to the buffer. When the last is released, the buffer goes back to its pool. */
+        public void release() {
+            int remaining = references.decrementAndGet();
+            checkState(remaining >= 0, "Buffer released too many times");
+            if (remaining == 0 && pool != null)
+                pool.recycle(buffer);
+        }
+    }
+}
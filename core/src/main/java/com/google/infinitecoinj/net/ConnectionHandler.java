@@ -28,8 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -60,6 +58,8 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // The pooled buffer behind each entry of bytesToWrite, or null for wrapped arrays, to release once it's written.
+    @GuardedBy("lock") private final LinkedList<BufferPool.PooledBuffer> buffersToRelease = new LinkedList<BufferPool.PooledBuffer>();
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -111,17 +111,18 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, with a single
+            // gathering write, then drop the buffers that were written out completely.
+            if (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.getFirst().hasRemaining()) {
+                    bytesToWrite.removeFirst();
+                    BufferPool.PooledBuffer buffer = buffersToRelease.removeFirst();
+                    if (buffer != null)
+                        buffer.release();
                 }
+                if (!bytesToWrite.isEmpty())
+                    setWriteOps();
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
@@ -134,26 +135,49 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        queueBytes(ByteBuffer.wrap(message), null);
+    }
+
+    @Override
+    public void writeBuffer(BufferPool.PooledBuffer buffer) throws IOException {
+        // The bytes are written from a view of their own, so the buffer can be queued on other connections too.
+        queueBytes(buffer.view(), buffer.retain());
+    }
+
+    private void queueBytes(ByteBuffer bytes, @Nullable BufferPool.PooledBuffer buffer) throws IOException {
         lock.lock();
+        if (closeCalled) {
+            // connectionClosed() has already handed back what was queued, and nothing queued now would be written.
+            lock.unlock();
+            if (buffer != null)
+                buffer.release();
+            throw new IOException("Connection closed");
+        }
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (bytesToWriteRemaining + bytes.remaining() > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just dump the message onto the write buffer and call tryWriteBytes. The bytes aren't copied: callers
+            // don't change them once handed over.
+            bytesToWriteRemaining += bytes.remaining();
+            bytesToWrite.offer(bytes);
+            buffersToRelease.offer(buffer);
+            buffer = null;
             setWriteOps();
         } catch (IOException e) {
+            if (buffer != null)
+                buffer.release();
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         } catch (CancelledKeyException e) {
+            if (buffer != null)
+                buffer.release();
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
@@ -179,6 +203,14 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so hand the queued pooled buffers back.
+            for (BufferPool.PooledBuffer buffer : buffersToRelease) {
+                if (buffer != null)
+                    buffer.release();
+            }
+            buffersToRelease.clear();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
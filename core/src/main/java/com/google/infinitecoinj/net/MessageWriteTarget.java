@@ -23,9 +23,16 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be queued as it is, so it must not be changed
+     * afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the bytes between the position and the limit of the given buffer to the remote server. The target takes
+     * its own reference to the buffer for as long as it needs it, so the same buffer can be written to many targets
+     * and the caller releases its reference as usual once done.
+     */
+    void writeBuffer(BufferPool.PooledBuffer buffer) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -104,4 +104,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffer(BufferPool.PooledBuffer buffer) throws IOException {
+        handler.writeTarget.writeBuffer(buffer);
+    }
 }
@@ -18,6 +18,7 @@
 package com.google.infinitecoinj.script;
 
 import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.crypto.SignatureBatch;
 import com.google.infinitecoinj.crypto.TransactionSignature;
 import com.google.infinitecoinj.params.MainNetParams;
 import com.google.common.collect.Lists;
@@ -25,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -37,6 +39,7 @@ import java.util.*;
 import static com.google.infinitecoinj.script.ScriptOpCodes.*;
 import static com.google.infinitecoinj.core.Utils.bytesToHexString;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 // TODO: Make this class a superclass with derived classes giving accessor methods for the various common templates.
@@ -56,6 +59,22 @@ public class Script {
     private static final Logger log = LoggerFactory.getLogger(Script.class);
     public static final long MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
 
+    /** Selects which interpreter {@link #correctlySpends(Transaction, long, Script, boolean)} runs scripts with. */
+    public enum InterpreterMode {
+        /**
+         * Array backed stacks that are reused by each thread, with script numbers handled as longs. This is the
+         * default.
+         */
+        ARRAY_STACK,
+        /** The original interpreter, which uses linked lists for its stacks and BigIntegers for numbers. */
+        LINKED_LIST
+    }
+
+    private static volatile InterpreterMode interpreterMode = InterpreterMode.ARRAY_STACK;
+    @Nullable private static volatile SignatureCache signatureCache = new SignatureCache();
+    // Set while correctlySpendsDeferringSignatures runs on a thread.
+    private static final ThreadLocal<SignatureBatch> deferredSignatures = new ThreadLocal<SignatureBatch>();
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -573,7 +592,44 @@ public class Script {
     
     ////////////////////// Script verification and helpers ////////////////////////////////
     
-    private static boolean castToBool(byte[] data) {
+    /** Sets the interpreter used by all threads from now on. */
+    public static void setInterpreterMode(InterpreterMode mode) {
+        interpreterMode = checkNotNull(mode);
+    }
+
+    public static InterpreterMode getInterpreterMode() {
+        return interpreterMode;
+    }
+
+    /**
+     * Sets the cache of valid signatures that OP_CHECKSIG and OP_CHECKMULTISIG consult before verifying a signature,
+     * or null to always verify. By default there is a cache of {@link SignatureCache#DEFAULT_MAX_SIZE} signatures.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    // Checks a signature found by OP_CHECKSIG or OP_CHECKMULTISIG, going through the signature cache if there is one.
+    // When signatures are being deferred, ones that aren't already known to be valid are assumed to be.
+    static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] sigBytes, byte[] pubKey) {
+        SignatureCache cache = signatureCache;
+        SignatureBatch deferred = deferredSignatures.get();
+        if (deferred != null) {
+            if (cache == null || !cache.isKnownValid(hash.getBytes(), sigBytes, pubKey))
+                deferred.add(hash.getBytes(), sigBytes, pubKey);
+            return true;
+        }
+        if (cache == null)
+            return ECKey.verify(hash.getBytes(), sig, pubKey);
+        return cache.verify(hash.getBytes(), sig, sigBytes, pubKey);
+    }
+
+    static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++)
         {
             // "Can be negative zero" -reference client (see OpenSSL's BN_bn2mpi)
@@ -1043,11 +1099,7 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    stack.add(Utils.singleDigest(stack.pollLast()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
@@ -1118,7 +1170,7 @@ public class Script {
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sig, sigBytes, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1184,7 +1236,7 @@ public class Script {
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, sig, sigs.getFirst(), pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1209,6 +1261,28 @@ public class Script {
         return opCount;
     }
 
+    /**
+     * <p>Runs the scripts as {@link #correctlySpends(Transaction, long, Script, boolean)} does, except that signatures
+     * aren't verified: each one that isn't in the signature cache is assumed to be valid and added to the given batch,
+     * so that the signatures of many inputs can be verified together.</p>
+     *
+     * <p>If every signature added to the batch is then found to be valid, the outcome is exactly what correctlySpends
+     * would have given. If any is invalid the outcome means nothing, because scripts may legitimately contain invalid
+     * signatures, for instance when OP_CHECKMULTISIG tries a signature against a key that didn't make it, and the input
+     * must be checked again with correctlySpends.</p>
+     */
+    public void correctlySpendsDeferringSignatures(Transaction txContainingThis, long scriptSigIndex,
+                                                   Script scriptPubKey, boolean enforceP2SH,
+                                                   SignatureBatch signatures) throws ScriptException {
+        checkState(deferredSignatures.get() == null);
+        deferredSignatures.set(checkNotNull(signatures));
+        try {
+            correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH);
+        } finally {
+            deferredSignatures.remove();
+        }
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
      * @param txContainingThis The transaction in which this input scriptSig resides.
@@ -1228,6 +1302,11 @@ public class Script {
         }
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
+
+        if (interpreterMode == InterpreterMode.ARRAY_STACK) {
+            ScriptInterpreter.get().correctlySpends(this, txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH);
+            return;
+        }
         
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
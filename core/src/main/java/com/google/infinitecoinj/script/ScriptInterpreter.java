@@ -0,0 +1,733 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.script;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.crypto.TransactionSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.google.infinitecoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>Executes scripts for {@link Script#correctlySpends(Transaction, long, Script, boolean)} when the
+ * {@link Script.InterpreterMode#ARRAY_STACK} mode is selected. It follows the original interpreter in {@link Script}
+ * opcode for opcode, with the same checks in the same order, but keeps its stacks in arrays that are reused from one
+ * script to the next on the same thread, and does script number arithmetic on longs instead of going through
+ * {@link java.math.BigInteger} and the MPI encoding. Script numbers are at most 4 bytes long, so the results of any
+ * opcode always fit.</p>
+ *
+ * <p>Instances are not thread safe, {@link #get()} hands out one per thread.</p>
+ */
+class ScriptInterpreter {
+    private static final Logger log = LoggerFactory.getLogger(ScriptInterpreter.class);
+
+    // The encodings of -1 to 16, which are pushed by OP_1NEGATE, OP_1 to OP_16 and most numeric opcodes. Stack items
+    // are never modified so they can be shared.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = encodeNumber(i);
+    }
+
+    private static final ThreadLocal<ScriptInterpreter> interpreters = new ThreadLocal<ScriptInterpreter>() {
+        @Override
+        protected ScriptInterpreter initialValue() {
+            return new ScriptInterpreter();
+        }
+    };
+
+    /** An array backed stack of byte arrays. */
+    static final class Stack {
+        private byte[][] items = new byte[32][];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void push(byte[] item) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+        }
+
+        byte[] pop() {
+            byte[] item = items[--size];
+            items[size] = null;
+            return item;
+        }
+
+        /** Returns the item the given number of places below the top, zero being the top item. */
+        byte[] peek(int depth) {
+            return items[size - 1 - depth];
+        }
+
+        /** Removes and returns the item the given number of places below the top. */
+        byte[] remove(int depth) {
+            int index = size - 1 - depth;
+            byte[] item = items[index];
+            System.arraycopy(items, index + 1, items, index, depth);
+            items[--size] = null;
+            return item;
+        }
+
+        void copyFrom(Stack other) {
+            clear();
+            if (items.length < other.size)
+                items = new byte[other.items.length][];
+            System.arraycopy(other.items, 0, items, 0, other.size);
+            size = other.size;
+        }
+
+        void clear() {
+            Arrays.fill(items, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private final Stack stack = new Stack();
+    private final Stack p2shStack = new Stack();
+    private final Stack altstack = new Stack();
+    // The OP_IF nesting, as a stack of booleans, and how many of them are false.
+    private boolean[] ifStack = new boolean[16];
+    private int ifStackSize;
+    private int ifStackFalseCount;
+    private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+    private final MessageDigest sha1;
+    private boolean inUse;
+
+    private ScriptInterpreter() {
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Returns the interpreter of the current thread, or a new one if that one is busy. */
+    static ScriptInterpreter get() {
+        ScriptInterpreter interpreter = interpreters.get();
+        return interpreter.inUse ? new ScriptInterpreter() : interpreter;
+    }
+
+    /** See {@link Script#correctlySpends(Transaction, long, Script, boolean)}. */
+    void correctlySpends(Script scriptSig, Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                         boolean enforceP2SH) throws ScriptException {
+        inUse = true;
+        try {
+            executeScript(txContainingThis, scriptSigIndex, scriptSig, stack);
+            if (enforceP2SH)
+                p2shStack.copyFrom(stack);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+
+            if (stack.size() == 0)
+                throw new ScriptException("Stack empty at end of script execution.");
+
+            if (!Script.castToBool(stack.pop()))
+                throw new ScriptException("Script resulted in a non-true stack: " + Arrays.deepToString(contents(stack)));
+
+            if (enforceP2SH && scriptPubKey.isPayToScriptHash()) {
+                for (ScriptChunk chunk : scriptSig.chunks)
+                    if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
+                        throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
+
+                Script scriptPubKeyP2SH = new Script(p2shStack.pop());
+
+                executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+
+                if (p2shStack.size() == 0)
+                    throw new ScriptException("P2SH stack empty at end of script execution.");
+
+                if (!Script.castToBool(p2shStack.pop()))
+                    throw new ScriptException("P2SH script execution resulted in a non-true stack");
+            }
+        } finally {
+            stack.clear();
+            p2shStack.clear();
+            altstack.clear();
+            ifStackSize = 0;
+            ifStackFalseCount = 0;
+            inUse = false;
+        }
+    }
+
+    private static byte[][] contents(Stack stack) {
+        byte[][] contents = new byte[stack.size()][];
+        for (int i = 0; i < contents.length; i++)
+            contents[i] = stack.peek(contents.length - 1 - i);
+        return contents;
+    }
+
+    /** Decodes a script number, which is little endian with the top bit of the last byte as the sign. */
+    static long decodeNumber(byte[] chunk) throws ScriptException {
+        if (chunk.length > 4)
+            throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
+        if (chunk.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        int last = chunk.length - 1;
+        if ((chunk[last] & 0x80) != 0)
+            return -(result & ~(0x80L << (8 * last)));
+        return result;
+    }
+
+    /** Encodes a script number in the fewest bytes, as Utils.reverseBytes(Utils.encodeMPI(value, false)) does. */
+    static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16 && SMALL_NUMBERS[(int) value + 1] != null)
+            return SMALL_NUMBERS[(int) value + 1];
+        if (value == 0)
+            return new byte[0];
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int length = (64 - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+        // Add a byte if the top bit is taken, so that it can hold the sign.
+        if (((magnitude >>> (8 * (length - 1))) & 0x80) != 0)
+            length++;
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (negative)
+            result[length - 1] |= 0x80;
+        return result;
+    }
+
+    private void pushIf(boolean value) {
+        if (ifStackSize == ifStack.length)
+            ifStack = Arrays.copyOf(ifStack, ifStackSize * 2);
+        ifStack[ifStackSize++] = value;
+        if (!value)
+            ifStackFalseCount++;
+    }
+
+    private boolean popIf() {
+        boolean value = ifStack[--ifStackSize];
+        if (!value)
+            ifStackFalseCount--;
+        return value;
+    }
+
+    private void executeScript(Transaction txContainingThis, long index, Script script, Stack stack)
+            throws ScriptException {
+        int opCount = 0;
+        int lastCodeSepLocation = 0;
+
+        altstack.clear();
+        ifStackSize = 0;
+        ifStackFalseCount = 0;
+
+        for (ScriptChunk chunk : script.chunks) {
+            boolean shouldExecute = ifStackFalseCount == 0;
+
+            if (!chunk.isOpCode()) {
+                if (chunk.data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                    throw new ScriptException("Attempted to push a data string larger than 520 bytes");
+
+                if (!shouldExecute)
+                    continue;
+
+                stack.push(chunk.data);
+            } else {
+                int opcode = 0xFF & chunk.data[0];
+                if (opcode > OP_16) {
+                    opCount++;
+                    if (opCount > 201)
+                        throw new ScriptException("More script operations than is allowed");
+                }
+
+                if (opcode == OP_VERIF || opcode == OP_VERNOTIF)
+                    throw new ScriptException("Script included OP_VERIF or OP_VERNOTIF");
+
+                if (opcode == OP_CAT || opcode == OP_SUBSTR || opcode == OP_LEFT || opcode == OP_RIGHT ||
+                    opcode == OP_INVERT || opcode == OP_AND || opcode == OP_OR || opcode == OP_XOR ||
+                    opcode == OP_2MUL || opcode == OP_2DIV || opcode == OP_MUL || opcode == OP_DIV ||
+                    opcode == OP_MOD || opcode == OP_LSHIFT || opcode == OP_RSHIFT)
+                    throw new ScriptException("Script included a disabled Script Op.");
+
+                switch (opcode) {
+                case OP_IF:
+                    if (!shouldExecute) {
+                        pushIf(false);
+                        continue;
+                    }
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_IF on an empty stack");
+                    pushIf(Script.castToBool(stack.pop()));
+                    continue;
+                case OP_NOTIF:
+                    if (!shouldExecute) {
+                        pushIf(false);
+                        continue;
+                    }
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_NOTIF on an empty stack");
+                    pushIf(!Script.castToBool(stack.pop()));
+                    continue;
+                case OP_ELSE:
+                    if (ifStackSize == 0)
+                        throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
+                    pushIf(!popIf());
+                    continue;
+                case OP_ENDIF:
+                    if (ifStackSize == 0)
+                        throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
+                    popIf();
+                    continue;
+                }
+
+                if (!shouldExecute)
+                    continue;
+
+                switch (opcode) {
+                // OP_0 is no opcode
+                case OP_1NEGATE:
+                    stack.push(encodeNumber(-1));
+                    break;
+                case OP_1:
+                case OP_2:
+                case OP_3:
+                case OP_4:
+                case OP_5:
+                case OP_6:
+                case OP_7:
+                case OP_8:
+                case OP_9:
+                case OP_10:
+                case OP_11:
+                case OP_12:
+                case OP_13:
+                case OP_14:
+                case OP_15:
+                case OP_16:
+                    stack.push(encodeNumber(Script.decodeFromOpN(opcode)));
+                    break;
+                case OP_NOP:
+                    break;
+                case OP_VERIFY:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_VERIFY on an empty stack");
+                    if (!Script.castToBool(stack.pop()))
+                        throw new ScriptException("OP_VERIFY failed");
+                    break;
+                case OP_RETURN:
+                    throw new ScriptException("Script called OP_RETURN");
+                case OP_TOALTSTACK:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
+                    altstack.push(stack.pop());
+                    break;
+                case OP_FROMALTSTACK:
+                    if (altstack.size() < 1)
+                        throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
+                    stack.push(altstack.pop());
+                    break;
+                case OP_2DROP:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
+                    stack.pop();
+                    stack.pop();
+                    break;
+                case OP_2DUP:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
+                    break;
+                case OP_3DUP:
+                    if (stack.size() < 3)
+                        throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    break;
+                case OP_2OVER:
+                    if (stack.size() < 4)
+                        throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
+                    break;
+                case OP_2ROT:
+                    if (stack.size() < 6)
+                        throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
+                    break;
+                case OP_2SWAP:
+                    if (stack.size() < 4)
+                        throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
+                    stack.push(stack.remove(3));
+                    stack.push(stack.remove(3));
+                    break;
+                case OP_IFDUP:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_IFDUP on an empty stack");
+                    if (Script.castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
+                    break;
+                case OP_DEPTH:
+                    stack.push(encodeNumber(stack.size()));
+                    break;
+                case OP_DROP:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_DROP on an empty stack");
+                    stack.pop();
+                    break;
+                case OP_DUP:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_DUP on an empty stack");
+                    stack.push(stack.peek(0));
+                    break;
+                case OP_NIP:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
+                    stack.remove(1);
+                    break;
+                case OP_OVER:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
+                    stack.push(stack.peek(1));
+                    break;
+                case OP_PICK:
+                case OP_ROLL:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
+                    long val = decodeNumber(stack.pop());
+                    if (val < 0 || val >= stack.size())
+                        throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
+                    break;
+                case OP_ROT:
+                    if (stack.size() < 3)
+                        throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
+                    stack.push(stack.remove(2));
+                    break;
+                case OP_SWAP:
+                case OP_TUCK:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
+                    if (opcode == OP_TUCK)
+                        stack.push(OPSWAPtmpChunk2);
+                    break;
+                case OP_SIZE:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_SIZE on an empty stack");
+                    stack.push(encodeNumber(stack.peek(0).length));
+                    break;
+                case OP_EQUAL:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? new byte[] {1} : new byte[] {0});
+                    break;
+                case OP_EQUALVERIFY:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
+                        throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+                    break;
+                case OP_1ADD:
+                case OP_1SUB:
+                case OP_NEGATE:
+                case OP_ABS:
+                case OP_NOT:
+                case OP_0NOTEQUAL: {
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted a numeric op on an empty stack");
+                    long num = decodeNumber(stack.pop());
+                    long result;
+                    switch (opcode) {
+                    case OP_1ADD:
+                        result = num + 1;
+                        break;
+                    case OP_1SUB:
+                        result = num - 1;
+                        break;
+                    case OP_NEGATE:
+                        result = -num;
+                        break;
+                    case OP_ABS:
+                        result = Math.abs(num);
+                        break;
+                    case OP_NOT:
+                        result = num == 0 ? 1 : 0;
+                        break;
+                    case OP_0NOTEQUAL:
+                        result = num == 0 ? 0 : 1;
+                        break;
+                    default:
+                        throw new AssertionError("Unreachable");
+                    }
+                    stack.push(encodeNumber(result));
+                    break;
+                }
+                case OP_ADD:
+                case OP_SUB:
+                case OP_BOOLAND:
+                case OP_BOOLOR:
+                case OP_NUMEQUAL:
+                case OP_NUMNOTEQUAL:
+                case OP_LESSTHAN:
+                case OP_GREATERTHAN:
+                case OP_LESSTHANOREQUAL:
+                case OP_GREATERTHANOREQUAL:
+                case OP_MIN:
+                case OP_MAX: {
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted a numeric op on a stack with size < 2");
+                    long num2 = decodeNumber(stack.pop());
+                    long num1 = decodeNumber(stack.pop());
+                    long result;
+                    switch (opcode) {
+                    case OP_ADD:
+                        result = num1 + num2;
+                        break;
+                    case OP_SUB:
+                        result = num1 - num2;
+                        break;
+                    case OP_BOOLAND:
+                        result = num1 != 0 && num2 != 0 ? 1 : 0;
+                        break;
+                    case OP_BOOLOR:
+                        result = num1 != 0 || num2 != 0 ? 1 : 0;
+                        break;
+                    case OP_NUMEQUAL:
+                        result = num1 == num2 ? 1 : 0;
+                        break;
+                    case OP_NUMNOTEQUAL:
+                        result = num1 != num2 ? 1 : 0;
+                        break;
+                    case OP_LESSTHAN:
+                        result = num1 < num2 ? 1 : 0;
+                        break;
+                    case OP_GREATERTHAN:
+                        result = num1 > num2 ? 1 : 0;
+                        break;
+                    case OP_LESSTHANOREQUAL:
+                        result = num1 <= num2 ? 1 : 0;
+                        break;
+                    case OP_GREATERTHANOREQUAL:
+                        result = num1 >= num2 ? 1 : 0;
+                        break;
+                    case OP_MIN:
+                        result = Math.min(num1, num2);
+                        break;
+                    case OP_MAX:
+                        result = Math.max(num1, num2);
+                        break;
+                    default:
+                        throw new RuntimeException("Opcode switched at runtime?");
+                    }
+                    stack.push(encodeNumber(result));
+                    break;
+                }
+                case OP_NUMEQUALVERIFY:
+                    if (stack.size() < 2)
+                        throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
+                    if (decodeNumber(stack.pop()) != decodeNumber(stack.pop()))
+                        throw new ScriptException("OP_NUMEQUALVERIFY failed");
+                    break;
+                case OP_WITHIN: {
+                    if (stack.size() < 3)
+                        throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
+                    long num3 = decodeNumber(stack.pop());
+                    long num2 = decodeNumber(stack.pop());
+                    long num1 = decodeNumber(stack.pop());
+                    stack.push(encodeNumber(num2 <= num1 && num1 < num3 ? 1 : 0));
+                    break;
+                }
+                case OP_RIPEMD160: {
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
+                    byte[] dataToHash = stack.pop();
+                    ripemd160.update(dataToHash, 0, dataToHash.length);
+                    byte[] ripmemdHash = new byte[20];
+                    ripemd160.doFinal(ripmemdHash, 0);
+                    stack.push(ripmemdHash);
+                    break;
+                }
+                case OP_SHA1:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_SHA1 on an empty stack");
+                    stack.push(sha1.digest(stack.pop()));
+                    break;
+                case OP_SHA256:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_SHA256 on an empty stack");
+                    stack.push(Utils.singleDigest(stack.pop()));
+                    break;
+                case OP_HASH160:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_HASH160 on an empty stack");
+                    stack.push(Utils.sha256hash160(stack.pop()));
+                    break;
+                case OP_HASH256:
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_SHA256 on an empty stack");
+                    stack.push(Utils.doubleDigest(stack.pop()));
+                    break;
+                case OP_CODESEPARATOR:
+                    lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
+                    break;
+                case OP_CHECKSIG:
+                case OP_CHECKSIGVERIFY:
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode);
+                    break;
+                case OP_CHECKMULTISIG:
+                case OP_CHECKMULTISIGVERIFY:
+                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode);
+                    break;
+                case OP_NOP1:
+                case OP_NOP2:
+                case OP_NOP3:
+                case OP_NOP4:
+                case OP_NOP5:
+                case OP_NOP6:
+                case OP_NOP7:
+                case OP_NOP8:
+                case OP_NOP9:
+                case OP_NOP10:
+                    break;
+
+                default:
+                    throw new ScriptException("Script used a reserved opcode " + opcode);
+                }
+            }
+
+            if (stack.size() + altstack.size() > 1000 || stack.size() + altstack.size() < 0)
+                throw new ScriptException("Stack size exceeded range");
+        }
+
+        if (ifStackSize != 0)
+            throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
+    }
+
+    // Returns the script from the last OP_CODESEPARATOR on, with every push of the given signatures taken out.
+    private static byte[] connectedScript(Script script, int lastCodeSepLocation, byte[]... sigs) {
+        byte[] prog = script.getProgram();
+        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        for (byte[] sig : sigs) {
+            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
+            try {
+                Script.writeBytes(outStream, sig);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen
+            }
+            connectedScript = Script.removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        }
+        return connectedScript;
+    }
+
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, Stack stack,
+                                        int lastCodeSepLocation, int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+
+        byte[] connectedScript = connectedScript(script, lastCodeSepLocation, sigBytes);
+
+        boolean sigValid = false;
+        try {
+            TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            sigValid = Script.verifySignature(hash, sig, sigBytes, pubKey);
+        } catch (Exception e1) {
+            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+            // Because I can't verify there aren't more, we use a very generic Exception catch
+            log.warn(e1.toString());
+        }
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? new byte[] {1} : new byte[] {0});
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    }
+
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, Stack stack,
+                                       int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
+        int pubKeyCount = (int) decodeNumber(stack.pop());
+        if (pubKeyCount < 0 || pubKeyCount > 20)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
+        opCount += pubKeyCount;
+        if (opCount > 201)
+            throw new ScriptException("Total op count > 201 during OP_CHECKMULTISIG(VERIFY)");
+        if (stack.size() < pubKeyCount + 1)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
+
+        byte[][] pubkeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubkeys[i] = stack.pop();
+
+        int sigCount = (int) decodeNumber(stack.pop());
+        if (sigCount < 0 || sigCount > pubKeyCount)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
+        if (stack.size() < sigCount + 1)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
+
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
+
+        byte[] connectedScript = connectedScript(script, lastCodeSepLocation, sigs);
+
+        // Each signature must match one of the remaining public keys, in order.
+        boolean valid = true;
+        int sig = 0, pubKey = 0;
+        while (sig < sigCount) {
+            try {
+                TransactionSignature decoded = TransactionSignature.decodeFromBitcoin(sigs[sig], false);
+                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) decoded.sighashFlags);
+                if (Script.verifySignature(hash, decoded, sigs[sig], pubkeys[pubKey]))
+                    sig++;
+            } catch (Exception e) {
+                // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+                // Because I can't verify there aren't more, we use a very generic Exception catch
+            }
+            pubKey++;
+
+            if (sigCount - sig > pubKeyCount - pubKey) {
+                valid = false;
+                break;
+            }
+        }
+
+        // We uselessly remove a stack object to emulate a reference client bug.
+        stack.pop();
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(valid ? new byte[] {1} : new byte[] {0});
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+}
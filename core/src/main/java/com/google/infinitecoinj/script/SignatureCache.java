@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.script;
+
+import com.google.infinitecoinj.core.ECKey;
+import com.google.infinitecoinj.core.Sha256Hash;
+import com.google.infinitecoinj.core.Utils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which signatures have already been found valid, so that OP_CHECKSIG and OP_CHECKMULTISIG don't run the
+ * ECDSA verification again for a transaction that is seen twice, typically first when it is relayed to us and then
+ * in a block.</p>
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the signature hash, the public key and the encoded signature, so each
+ * takes a fixed small amount of memory whatever the size of the transaction. Only valid signatures are cached: an
+ * invalid one costs whoever sent it a transaction that never confirms, and caching them would let peers fill the
+ * cache with junk. When the cache is full the least recently used entries are dropped.</p>
+ *
+ * <p>The cache is safe to use from several threads at once, such as the workers of a
+ * {@link com.google.infinitecoinj.core.ScriptVerificationScheduler}. The one used by scripts is set with
+ * {@link Script#setSignatureCache(SignatureCache)}.</p>
+ */
+public class SignatureCache {
+    /** The default number of signatures to remember, enough for several full blocks. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache of up to {@link #DEFAULT_MAX_SIZE} signatures. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a cache of up to the given number of signatures. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        this.maxSize = maxSize;
+        this.validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Returns true if the given signature over the given signature hash is valid for the public key, checking it with
+     * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} unless it has been found valid before.
+     *
+     * @param sigHash the hash the signature signs, as calculated by
+     *                {@link com.google.infinitecoinj.core.Transaction#hashForSignature(int, byte[], byte)}
+     * @param signature the decoded signature
+     * @param sigBytes the signature as it appeared in the script, which signature was decoded from
+     * @param pubKey the public key as it appeared in the script
+     */
+    public boolean verify(byte[] sigHash, ECKey.ECDSASignature signature, byte[] sigBytes, byte[] pubKey) {
+        Sha256Hash key = key(sigHash, sigBytes, pubKey);
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash, signature, pubKey);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    /**
+     * Returns true if the given signature has already been found valid, counting a hit if so and a miss if not. This
+     * is for when signatures that aren't known to be valid will be verified some other way, such as in a
+     * {@link com.google.infinitecoinj.crypto.SignatureBatch}.
+     */
+    public boolean isKnownValid(byte[] sigHash, byte[] sigBytes, byte[] pubKey) {
+        if (validSignatures.getIfPresent(key(sigHash, sigBytes, pubKey)) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private static Sha256Hash key(byte[] sigHash, byte[] sigBytes, byte[] pubKey) {
+        // The signature hash has a fixed length and the signature's length is included, so two different triples
+        // can't run together into the same bytes.
+        byte[] bytes = new byte[sigHash.length + 4 + sigBytes.length + pubKey.length];
+        System.arraycopy(sigHash, 0, bytes, 0, sigHash.length);
+        Utils.uint32ToByteArrayLE(sigBytes.length, bytes, sigHash.length);
+        System.arraycopy(sigBytes, 0, bytes, sigHash.length + 4, sigBytes.length);
+        System.arraycopy(pubKey, 0, bytes, sigHash.length + 4 + sigBytes.length, pubKey.length);
+        return Sha256Hash.create(bytes);
+    }
+
+    /** Returns the number of signatures that were found in the cache and so not verified again. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of signatures that weren't in the cache and had to be verified. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the number of valid signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Returns the maximum number of signatures remembered. */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Forgets every signature and resets the counters. */
+    public void clear() {
+        validSignatures.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache: " + size() + " of " + maxSize + " signatures, " + hits + " hits, " + misses + " misses";
+    }
+}
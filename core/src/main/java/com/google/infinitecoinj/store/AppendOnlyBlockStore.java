@@ -0,0 +1,566 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.store;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An AppendOnlyBlockStore keeps every block header it is given in memory mapped files that grow with the chain, so
+ * unlike {@link SPVBlockStore} old headers can always be found again, either by hash or, for the best chain, by
+ * height using {@link #getByHeight(int)}.</p>
+ *
+ * <p>The store is a directory holding:</p>
+ * <ul>
+ *     <li>headers-NNNNN.dat segments of {@link #RECORDS_PER_SEGMENT} records, each the block hash followed by
+ *     {@link StoredBlock#serializeCompact(ByteBuffer)}, in the order the blocks were put.</li>
+ *     <li>heights-NNNNN.dat segments mapping each height of the best chain to the record of its block.</li>
+ *     <li>hashindex-N.dat, the N slot table of a {@link BlockHashIndex} from block hashes to records.</li>
+ *     <li>head.dat, two alternating checksummed copies of the chain head and the sizes of everything above.</li>
+ * </ul>
+ *
+ * <p>As all the indexes are kept on disk, opening the store takes the same few milliseconds however many headers it
+ * holds. Changes are committed by forcing new records and index entries to disk, then writing and forcing the copy of
+ * the head that wasn't written last. So that a fast chain download isn't held up by a disk flush for every block,
+ * {@link #setChainHead(StoredBlock)} only commits once {@link #COMMIT_INTERVAL_HEADS} chain heads have been set or
+ * {@link #COMMIT_INTERVAL_MSEC} have passed since the last commit, and on a re-org. After a crash the store reopens at
+ * the last chain head that was committed, or the one before it if the newest copy was torn. Blocks put after that
+ * are lost and must be downloaded again.</p>
+ */
+public class AppendOnlyBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(AppendOnlyBlockStore.class);
+
+    public static final String HEADER_MAGIC = "AOBS";
+    /** The number of records in each headers segment file, 8 MB worth. */
+    public static final int RECORDS_PER_SEGMENT = 1 << 16;
+    /** The number of heights in each heights segment file, 4 MB worth. */
+    public static final int HEIGHTS_PER_SEGMENT = 1 << 20;
+
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int INITIAL_HASH_INDEX_SIZE = 1 << 15;
+
+    /** {@link #setChainHead(StoredBlock)} commits once this many chain heads have been set since the last commit. */
+    public static final int COMMIT_INTERVAL_HEADS = 1000;
+    /** {@link #setChainHead(StoredBlock)} commits once this many milliseconds have passed since the last commit. */
+    public static final long COMMIT_INTERVAL_MSEC = 1000;
+
+    // File format of head.dat:
+    //   4 header bytes = "AOBS"
+    //   4 bytes, 1 whilst the store is open so that we can tell it wasn't closed, else 0
+    //   two slots of 32 bytes, the one with the higher sequence number and a good checksum being current:
+    //     8 bytes sequence number
+    //     4 bytes number of records
+    //     4 bytes record of the chain head
+    //     4 bytes number of hashes in the hash index
+    //     4 bytes number of slots in the hash index
+    //     4 bytes lowest height of the height index that is being rewritten by a re-org, or -1
+    //     4 bytes CRC32 of the above
+    private static final int HEAD_FILE_SIZE = 8 + 2 * 32;
+    private static final int SLOT_SIZE = 32;
+    private static final int NOT_DIRTY = -1;
+    private static final int OPEN_FLAG_OFFSET = 4;
+
+    protected final NetworkParameters params;
+    protected final File directory;
+    protected ReentrantLock lock = Threading.lock("AppendOnlyBlockStore");
+
+    // Used to stop other applications/processes from opening the store.
+    private RandomAccessFile headFile;
+    private FileLock fileLock;
+    private MappedByteBuffer head;
+
+    private final Segments records;
+    private final Segments heights;
+    private MappedByteBuffer hashTable;
+    private BlockHashIndex hashIndex;
+    private final byte[] scratchHash = new byte[32];
+
+    private long sequence;
+    private int recordCount;
+    private int headRecord;
+    private StoredBlock chainHead;
+    // Chain heads set since the last commit, and when that was.
+    private int uncommittedHeads;
+    private long lastCommitTime;
+
+    /**
+     * Opens the store in the given directory, creating both if they are missing. This operation will block on disk.
+     */
+    public AppendOnlyBlockStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.records = new Segments(directory, "headers", RECORDS_PER_SEGMENT * RECORD_SIZE);
+        this.heights = new Segments(directory, "heights", HEIGHTS_PER_SEGMENT * 4);
+        long start = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File file = new File(directory, "head.dat");
+            boolean exists = file.exists();
+            headFile = new RandomAccessFile(file, "rw");
+            fileLock = headFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            if (!exists) {
+                log.info("Creating new block store in " + directory);
+                headFile.setLength(HEAD_FILE_SIZE);
+            } else if (headFile.length() != HEAD_FILE_SIZE) {
+                throw new BlockStoreException("File size on disk does not match expected size: " +
+                        headFile.length() + " vs " + HEAD_FILE_SIZE);
+            }
+            head = headFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEAD_FILE_SIZE);
+            if (exists)
+                load();
+            else
+                initNewStore();
+            head.putInt(OPEN_FLAG_OFFSET, 1);
+            head.force();
+            log.info("Opened block store with {} headers in {} msec", recordCount,
+                    System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            try {
+                if (headFile != null) headFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void initNewStore() throws Exception {
+        head.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        hashTable = mapHashTable(BlockHashIndex.capacityFor(INITIAL_HASH_INDEX_SIZE));
+        hashIndex = new BlockHashIndex(recordHashes, hashTable.asIntBuffer(), 0);
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    private void load() throws Exception {
+        byte[] magic = new byte[4];
+        head.get(magic);
+        if (!new String(magic, "US-ASCII").equals(HEADER_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        int slot = -1;
+        for (int i = 0; i < 2; i++) {
+            if (isSlotValid(i) && (slot < 0 || head.getLong(slotOffset(i)) > head.getLong(slotOffset(slot))))
+                slot = i;
+        }
+        if (slot < 0)
+            throw new BlockStoreException("Corrupted block store: no valid chain head in " + directory);
+        int offset = slotOffset(slot);
+        sequence = head.getLong(offset);
+        recordCount = head.getInt(offset + 8);
+        headRecord = head.getInt(offset + 12);
+        int hashIndexSize = head.getInt(offset + 16);
+        int hashIndexCapacity = head.getInt(offset + 20);
+        int dirtyFromHeight = head.getInt(offset + 24);
+
+        records.open((recordCount + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT);
+        heights.open(-1);
+        hashTable = mapHashTable(hashIndexCapacity);
+        hashIndex = new BlockHashIndex(recordHashes, hashTable.asIntBuffer(), hashIndexSize);
+        deleteOtherHashTables(hashIndexCapacity);
+        chainHead = readRecord(headRecord);
+        boolean closed = head.getInt(OPEN_FLAG_OFFSET) == 0;
+        if (!closed) {
+            // Index entries for blocks put after the last commit may have reached the disk. They point past the end
+            // of the records and aren't counted in the size, so would fill up the table unseen.
+            long start = System.currentTimeMillis();
+            hashIndex.removeRecordsFrom(recordCount);
+            log.info("Store wasn't closed, checked the hash index in {} msec", System.currentTimeMillis() - start);
+        }
+        if (dirtyFromHeight != NOT_DIRTY) {
+            // We stopped part way through a re-org, so put back the heights of the chain we were on.
+            log.info("Repairing height index from height {}", dirtyFromHeight);
+            writeHeights(headRecord, chainHead, dirtyFromHeight);
+            commit(NOT_DIRTY);
+        } else if (!closed) {
+            commit(NOT_DIRTY);
+        }
+    }
+
+    /** Returns the offset of the given slot in head.dat. */
+    private static int slotOffset(int slot) {
+        return 8 + slot * SLOT_SIZE;
+    }
+
+    private boolean isSlotValid(int slot) {
+        int offset = slotOffset(slot);
+        byte[] bytes = new byte[SLOT_SIZE - 4];
+        head.position(offset);
+        head.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == head.getInt(offset + SLOT_SIZE - 4) && head.getLong(offset) > 0;
+    }
+
+    // Forces everything written since the last commit to disk and then makes it current by writing the next slot of
+    // head.dat, which is forced last. Until the slot is written the previous one is still valid and describes data
+    // that was forced earlier.
+    private void commit(int dirtyFromHeight) throws IOException {
+        records.force();
+        heights.force();
+        hashTable.force();
+        sequence++;
+        int offset = slotOffset((int) (sequence & 1));
+        head.putLong(offset, sequence);
+        head.putInt(offset + 8, recordCount);
+        head.putInt(offset + 12, headRecord);
+        head.putInt(offset + 16, hashIndex.size());
+        head.putInt(offset + 20, hashIndex.capacity());
+        head.putInt(offset + 24, dirtyFromHeight);
+        byte[] bytes = new byte[SLOT_SIZE - 4];
+        head.position(offset);
+        head.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        head.putInt(offset + SLOT_SIZE - 4, (int) crc.getValue());
+        head.force();
+        uncommittedHeads = 0;
+        lastCommitTime = Utils.currentTimeMillis();
+    }
+
+    private MappedByteBuffer mapHashTable(int capacity) throws IOException {
+        return map(hashTableFile(capacity), BlockHashIndex.tableInts(capacity) * 4L);
+    }
+
+    private File hashTableFile(int capacity) {
+        return new File(directory, "hashindex-" + capacity + ".dat");
+    }
+
+    // Removes tables left behind by growing the index, which we may have crashed during.
+    private void deleteOtherHashTables(int capacity) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("hashindex-") && !file.equals(hashTableFile(capacity)) && !file.delete())
+                log.warn("Could not delete old hash index {}", file);
+        }
+    }
+
+    // Moves the hash index into a table twice the size. The new table is written out in full and committed before the
+    // old one goes away, so a crash at any point leaves a usable index.
+    private void growHashIndex() throws IOException {
+        int capacity = hashIndex.capacity() * 2;
+        long start = System.currentTimeMillis();
+        MappedByteBuffer newTable = mapHashTable(capacity);
+        hashIndex = hashIndex.resize(newTable.asIntBuffer());
+        hashTable = newTable;
+        commit(NOT_DIRTY);
+        deleteOtherHashTables(capacity);
+        log.info("Grew hash index to {} slots in {} msec", capacity, System.currentTimeMillis() - start);
+    }
+
+    private final BlockHashIndex.Records recordHashes = new BlockHashIndex.Records() {
+        @Override
+        public boolean hashMatches(int record, byte[] hash) {
+            // Entries for records past the end can be left behind by a crash, they'll be overwritten.
+            if (record >= recordCount)
+                return false;
+            ByteBuffer buffer = recordBuffer(record);
+            buffer.get(scratchHash);
+            return Arrays.equals(scratchHash, hash);
+        }
+    };
+
+    /** Returns the segment holding the given record, positioned at its start. The segment must already be mapped. */
+    private ByteBuffer recordBuffer(int record) {
+        ByteBuffer buffer = records.get(record / RECORDS_PER_SEGMENT);
+        buffer.position((record % RECORDS_PER_SEGMENT) * RECORD_SIZE);
+        return buffer;
+    }
+
+    private StoredBlock readRecord(int record) throws BlockStoreException {
+        ByteBuffer buffer = recordBuffer(record);
+        buffer.position(buffer.position() + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the record of the best chain block at the given height, or -1 if there isn't one. */
+    private int heightRecord(int height) {
+        int segment = height / HEIGHTS_PER_SEGMENT;
+        if (segment >= heights.size())
+            return -1;
+        return heights.get(segment).getInt((height % HEIGHTS_PER_SEGMENT) * 4) - 1;
+    }
+
+    private void setHeightRecord(int height, int record) throws IOException {
+        int segment = height / HEIGHTS_PER_SEGMENT;
+        heights.getOrCreate(segment).putInt((height % HEIGHTS_PER_SEGMENT) * 4, record + 1);
+        heights.markDirty(segment);
+    }
+
+    // Points the heights from that of the given block down to the given height at the block and its ancestors, or
+    // as far down as we have them.
+    private void writeHeights(int record, StoredBlock block, int toHeight) throws BlockStoreException, IOException {
+        for (int height = block.getHeight(); height >= toHeight; height--) {
+            setHeightRecord(height, record);
+            if (height == toHeight || height == 0)
+                break;
+            record = hashIndex.get(block.getHeader().getPrevBlockHash().getBytes());
+            if (record < 0)
+                break;  // The chain started from a checkpoint.
+            block = readRecord(record);
+        }
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = recordCount;
+            int segment = record / RECORDS_PER_SEGMENT;
+            ByteBuffer buffer = records.getOrCreate(segment);
+            buffer.position((record % RECORDS_PER_SEGMENT) * RECORD_SIZE);
+            byte[] hash = block.getHeader().getHash().getBytes();
+            buffer.put(hash);
+            block.serializeCompact(buffer);
+            records.markDirty(segment);
+            recordCount++;
+            hashIndex.put(hash, record);
+            if (hashIndex.needsResize())
+                growHashIndex();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = hashIndex.get(hash.getBytes());
+            return record < 0 ? null : readRecord(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the block at the given height of the best chain, or null if the height is above the chain head or
+     * below the block the chain was started from.
+     */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < 0 || height > chainHead.getHeight())
+                return null;
+            int record = heightRecord(height);
+            return record < 0 ? null : readRecord(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Sha256Hash hash = chainHead.getHeader().getHash();
+            int record = hashIndex.get(hash.getBytes());
+            if (record < 0)
+                throw new BlockStoreException("Chain head was never put into the store: " + hash);
+            int oldHeight = this.chainHead == null ? -1 : this.chainHead.getHeight();
+            // Find how far down the new best chain differs from what the height index says.
+            int forkHeight = chainHead.getHeight();
+            int r = record;
+            StoredBlock block = chainHead;
+            while (forkHeight > 0 && (forkHeight > oldHeight || heightRecord(forkHeight) != r)) {
+                r = hashIndex.get(block.getHeader().getPrevBlockHash().getBytes());
+                if (r < 0)
+                    break;  // The chain started from a checkpoint.
+                block = readRecord(r);
+                if (forkHeight - 1 <= oldHeight && heightRecord(forkHeight - 1) == r)
+                    break;
+                forkHeight--;
+            }
+            // If this is a re-org, heights that are part of the current chain are about to change. Record that first
+            // so we can put them back if we crash before the new head is committed.
+            boolean reorg = forkHeight <= oldHeight;
+            if (reorg)
+                commit(forkHeight);
+            writeHeights(record, chainHead, forkHeight);
+            this.chainHead = chainHead;
+            this.headRecord = record;
+            // Heights above the committed head may reach the disk before the next commit, but they aren't read and
+            // are overwritten as the chain grows again. Those of a re-org are committed straight away.
+            uncommittedHeads++;
+            if (reorg || uncommittedHeads >= COMMIT_INTERVAL_HEADS ||
+                    Utils.currentTimeMillis() - lastCommitTime >= COMMIT_INTERVAL_MSEC)
+                commit(NOT_DIRTY);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            commit(NOT_DIRTY);
+            head.putInt(OPEN_FLAG_OFFSET, 0);
+            head.force();
+            head = null;  // Allow the mappings to be GCd and go away.
+            hashTable = null;
+            records.close();
+            heights.close();
+            headFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    int getHashIndexSize() {
+        lock.lock();
+        try {
+            return hashIndex.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (head == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size)
+                randomAccessFile.setLength(size);
+            // The mapping stays valid once the file is closed.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /** A growing list of fixed size, memory mapped files named prefix-NNNNN.dat. */
+    private static class Segments {
+        private final File directory;
+        private final String prefix;
+        private final int segmentBytes;
+        private final List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+        private final BitSet dirty = new BitSet();
+
+        Segments(File directory, String prefix, int segmentBytes) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.segmentBytes = segmentBytes;
+        }
+
+        private File file(int segment) {
+            return new File(directory, String.format("%s-%05d.dat", prefix, segment));
+        }
+
+        /**
+         * Maps the first count segments, which must exist, or if count is negative as many consecutive segments as
+         * there are.
+         */
+        void open(int count) throws IOException, BlockStoreException {
+            for (int i = 0; count < 0 || i < count; i++) {
+                File file = file(i);
+                if (!file.exists()) {
+                    if (count < 0)
+                        break;
+                    throw new BlockStoreException("Missing block store file " + file);
+                }
+                buffers.add(map(file, segmentBytes));
+            }
+        }
+
+        int size() {
+            return buffers.size();
+        }
+
+        ByteBuffer get(int segment) {
+            return buffers.get(segment);
+        }
+
+        ByteBuffer getOrCreate(int segment) throws IOException {
+            while (buffers.size() <= segment)
+                buffers.add(map(file(buffers.size()), segmentBytes));
+            return buffers.get(segment);
+        }
+
+        void markDirty(int segment) {
+            dirty.set(segment);
+        }
+
+        void force() {
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1))
+                buffers.get(i).force();
+            dirty.clear();
+        }
+
+        void close() {
+            buffers.clear();
+        }
+    }
+}
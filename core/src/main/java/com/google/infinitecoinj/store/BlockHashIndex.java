@@ -0,0 +1,228 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.store;
+
+import java.nio.IntBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An open addressing hash table from block hashes to record numbers, used by the memory mapped block stores to
+ * find a header without scanning their files.</p>
+ *
+ * <p>To keep the table small only a 32 bit fingerprint of each hash is kept in it, so every candidate found by probing
+ * is confirmed against the full hash that the store keeps in the record itself, via {@link Records}. Collisions are
+ * resolved by linear probing and removals shift the following entries back, so there are no tombstones and lookups
+ * stay fast however many headers pass through the table.</p>
+ *
+ * <p>The table is an {@link IntBuffer} of two ints per slot, the record number plus one (zero marks an empty slot)
+ * followed by the fingerprint. It can live on the heap or be a view of a memory mapped file, in which case the index
+ * survives restarts. The table never grows by itself: once {@link #needsResize()} returns true the owner should
+ * allocate a table twice the size and move the entries into it with {@link #resize(IntBuffer)}.</p>
+ *
+ * <p>Not thread safe, the owning store must guard it with its own lock.</p>
+ */
+class BlockHashIndex {
+    /** Gives the index access to the full hashes stored by the owner. */
+    interface Records {
+        /** Returns true if the record with the given number holds the given block hash. */
+        boolean hashMatches(int record, byte[] hash);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Records records;
+    private final IntBuffer table;
+    private final int mask;
+    // How far to shift a 32 bit product right to leave log2(capacity) bits, see home().
+    private final int shift;
+    private int size;
+
+    /** Creates an empty index on the heap, big enough to hold the given number of hashes at a load factor of 1/2. */
+    BlockHashIndex(Records records, int expectedSize) {
+        this(records, IntBuffer.allocate(tableInts(capacityFor(expectedSize))), 0);
+    }
+
+    /**
+     * Creates an index over an existing table which holds the given number of hashes. A zeroed table makes an
+     * empty index.
+     */
+    BlockHashIndex(Records records, IntBuffer table, int size) {
+        int capacity = table.capacity() / 2;
+        checkArgument(capacity >= MIN_CAPACITY && Integer.bitCount(capacity) == 1, "Bad table size: %s", capacity);
+        checkArgument(size >= 0 && size <= capacity);
+        this.records = records;
+        this.table = table;
+        this.mask = capacity - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        this.size = size;
+    }
+
+    /** Returns the smallest power of two number of slots that holds the given number of hashes at a load of 1/2. */
+    static int capacityFor(int expectedSize) {
+        checkArgument(expectedSize >= 0);
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /** Returns how many ints a table with the given number of slots needs. */
+    static int tableInts(int capacity) {
+        return capacity * 2;
+    }
+
+    /** Returns the number of hashes in the index. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the number of slots in the table. */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /** Returns true once the table is more than half full and lookups would start to slow down. */
+    boolean needsResize() {
+        return size * 2 > capacity();
+    }
+
+    /** Moves every entry into the given zeroed table, which should be bigger, and returns the index over it. */
+    BlockHashIndex resize(IntBuffer newTable) {
+        BlockHashIndex resized = new BlockHashIndex(records, newTable, size);
+        for (int i = 0; i <= mask; i++) {
+            int entry = table.get(2 * i);
+            if (entry == 0)
+                continue;
+            int fingerprint = table.get(2 * i + 1);
+            int j = resized.home(fingerprint);
+            while (resized.table.get(2 * j) != 0)
+                j = (j + 1) & resized.mask;
+            resized.set(j, entry, fingerprint);
+        }
+        return resized;
+    }
+
+    /**
+     * Removes the entries for record numbers of count or more, as a crash can leave behind for records that were
+     * never committed, and counts the rest again. Takes time proportional to the capacity.
+     */
+    void removeRecordsFrom(int count) {
+        int capacity = capacity();
+        int[] entries = new int[capacity];
+        int[] fingerprints = new int[capacity];
+        int kept = 0;
+        for (int i = 0; i < capacity; i++) {
+            int entry = table.get(2 * i);
+            if (entry != 0 && entry - 1 < count) {
+                entries[kept] = entry;
+                fingerprints[kept] = table.get(2 * i + 1);
+                kept++;
+            }
+            set(i, 0, 0);
+        }
+        for (int k = 0; k < kept; k++) {
+            int j = home(fingerprints[k]);
+            while (table.get(2 * j) != 0)
+                j = (j + 1) & mask;
+            set(j, entries[k], fingerprints[k]);
+        }
+        size = kept;
+    }
+
+    /** Returns the record number holding the given hash, or -1 if it isn't in the index. */
+    int get(byte[] hash) {
+        int fingerprint = fingerprint(hash);
+        for (int i = home(fingerprint); ; i = (i + 1) & mask) {
+            int entry = table.get(2 * i);
+            if (entry == 0)
+                return -1;
+            if (table.get(2 * i + 1) == fingerprint && records.hashMatches(entry - 1, hash))
+                return entry - 1;
+        }
+    }
+
+    /**
+     * Makes the given hash point to the given record. If the hash is already in the index it is repointed, as the
+     * most recently written copy of a header is the one that counts.
+     */
+    void put(byte[] hash, int record) {
+        checkArgument(record >= 0);
+        int fingerprint = fingerprint(hash);
+        int i = home(fingerprint);
+        for (; ; i = (i + 1) & mask) {
+            int entry = table.get(2 * i);
+            if (entry == 0)
+                break;
+            if (table.get(2 * i + 1) == fingerprint && records.hashMatches(entry - 1, hash)) {
+                table.put(2 * i, record + 1);
+                return;
+            }
+        }
+        set(i, record + 1, fingerprint);
+        size++;
+    }
+
+    /**
+     * Removes the given hash from the index, but only if it currently points to the given record. This must be
+     * called before the record is overwritten, whilst {@link Records#hashMatches(int, byte[])} can still see it.
+     */
+    void remove(byte[] hash, int record) {
+        int fingerprint = fingerprint(hash);
+        int i = home(fingerprint);
+        for (; ; i = (i + 1) & mask) {
+            int entry = table.get(2 * i);
+            if (entry == 0)
+                return;
+            if (entry == record + 1 && table.get(2 * i + 1) == fingerprint)
+                break;
+        }
+        size--;
+        // Shift back any following entries of the same probe run that would become unreachable across the hole.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = table.get(2 * j);
+            if (entry == 0)
+                break;
+            int k = home(table.get(2 * j + 1));
+            boolean reachable = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (reachable)
+                continue;
+            set(i, entry, table.get(2 * j + 1));
+            i = j;
+        }
+        set(i, 0, 0);
+    }
+
+    private void set(int slot, int entry, int fingerprint) {
+        table.put(2 * slot, entry);
+        table.put(2 * slot + 1, fingerprint);
+    }
+
+    private int home(int fingerprint) {
+        // Fibonacci hashing: the top bits of the product depend on every bit of the fingerprint, unlike the low bits.
+        return (fingerprint * 0x9E3779B9) >>> shift;
+    }
+
+    private static int fingerprint(byte[] hash) {
+        // Use the last 4 bytes, not the first 4 which are often zeros in Bitcoin, like Sha256Hash.hashCode() does.
+        int n = hash.length;
+        return (hash[n - 1] & 0xFF) | ((hash[n - 2] & 0xFF) << 8) | ((hash[n - 3] & 0xFF) << 16) |
+               ((hash[n - 4] & 0xFF) << 24);
+    }
+}
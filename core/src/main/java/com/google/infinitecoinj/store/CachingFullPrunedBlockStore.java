@@ -0,0 +1,484 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.store;
+
+import com.google.infinitecoinj.core.Sha256Hash;
+import com.google.infinitecoinj.core.StoredBlock;
+import com.google.infinitecoinj.core.StoredTransactionOutput;
+import com.google.infinitecoinj.core.StoredUndoableBlock;
+import com.google.infinitecoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A FullPrunedBlockStore that keeps recently created and spent unspent transaction outputs in memory in front of
+ * another FullPrunedBlockStore, such as {@link H2FullPrunedBlockStore}, and writes changes back to it only every so
+ * often.</p>
+ *
+ * <p>Outputs that are created and then spent before the next write back never reach the underlying store at all,
+ * and outputs spent soon after being created or looked up are found without a query. Changes are written back,
+ * along with every verified chain head set since the last write back, in one batch of the underlying store once
+ * {@link #getFlushInterval()} blocks have been committed or the cache outgrows {@link #getMaxCacheBytes()}, and
+ * by {@link #flush()} and {@link #close()}. The underlying store therefore always holds a consistent unspent output
+ * set and verified chain head, just not always the latest one.</p>
+ *
+ * <p>Blocks, undo blocks and the chain head go straight through to the underlying store, inside its own batch when
+ * one of ours is open, so undo data is never behind the cache.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of blocks between writes to the underlying store. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 100;
+    /** The default memory budget for cached outputs, in bytes. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64 * 1024 * 1024;
+
+    // A rough guess at the memory used by a cached output apart from its script: the map entry, the outpoint key,
+    // the StoredTransactionOutput with its hash and value, and the CachedOutput.
+    private static final int CACHED_OUTPUT_OVERHEAD = 250;
+
+    // The state of one outpoint. The output is dirty while current and stored differ, and the entry can be dropped
+    // once both are null.
+    private static class CachedOutput {
+        // The output as the underlying store has it, or null if it doesn't.
+        @Nullable StoredTransactionOutput stored;
+        // The unspent output as it is now, or null if it is spent or never existed.
+        @Nullable StoredTransactionOutput current;
+
+        CachedOutput(@Nullable StoredTransactionOutput stored, @Nullable StoredTransactionOutput current) {
+            this.stored = stored;
+            this.current = current;
+        }
+
+        boolean isDirty() {
+            return stored != current;
+        }
+
+        CachedOutput copy() {
+            return new CachedOutput(stored, current);
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final int flushInterval;
+    private final long maxCacheBytes;
+
+    private final ReentrantLock lock = Threading.lock("CachingFullPrunedBlockStore");
+    // Held by the thread with a batch open from beginDatabaseBatchWrite until it commits or aborts.
+    private final ReentrantLock batchLock = Threading.lock("CachingFullPrunedBlockStore batch");
+
+    // In least recently used order, so the eldest clean entries can be evicted.
+    private final LinkedHashMap<StoredTransactionOutPoint, CachedOutput> outputs =
+            new LinkedHashMap<StoredTransactionOutPoint, CachedOutput>(16, 0.75f, true);
+    private final Set<StoredTransactionOutPoint> dirtyOutputs = new HashSet<StoredTransactionOutPoint>();
+    private long cacheBytes;
+
+    // The state of every output the open batch has changed, as it was before the batch, null if it wasn't cached.
+    // Used to undo the batch if it is aborted and to hide its changes from other threads until it is committed.
+    private final Map<StoredTransactionOutPoint, CachedOutput> batchUndo =
+            new HashMap<StoredTransactionOutPoint, CachedOutput>();
+    @Nullable private Thread batchThread;
+    private int verifiedChainHeadsBeforeBatch;
+    private StoredBlock verifiedChainHeadBeforeBatch;
+
+    // Verified chain heads set since the last write back, oldest first. They are all passed on so that the
+    // underlying store prunes its undo blocks just as it would without the cache.
+    private final List<StoredBlock> unwrittenVerifiedChainHeads = new ArrayList<StoredBlock>();
+    private StoredBlock verifiedChainHead;
+    private int blocksSinceFlush;
+
+    /**
+     * Wraps the given store, writing back every {@link #DEFAULT_FLUSH_INTERVAL} blocks or when the cache holds more
+     * than {@link #DEFAULT_MAX_CACHE_BYTES}.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param flushInterval The number of blocks to commit between writes to the underlying store.
+     * @param maxCacheBytes The approximate memory budget of the cache, in bytes. Once it is exceeded the cache is
+     *                      written back and the least recently used outputs are evicted.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, int flushInterval, long maxCacheBytes)
+            throws BlockStoreException {
+        checkArgument(flushInterval > 0);
+        checkArgument(maxCacheBytes > 0);
+        this.store = checkNotNull(store);
+        this.flushInterval = flushInterval;
+        this.maxCacheBytes = maxCacheBytes;
+        this.verifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    /** Returns the number of blocks committed between writes to the underlying store. */
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /** Returns the approximate memory budget of the cache, in bytes. */
+    public long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    /** Returns the number of outputs in the cache, including spent ones that haven't been written back yet. */
+    public int getCachedOutputCount() {
+        lock.lock();
+        try {
+            return outputs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of changes to outputs that haven't been written back yet. */
+    public int getDirtyOutputCount() {
+        lock.lock();
+        try {
+            return dirtyOutputs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long sizeOf(@Nullable CachedOutput entry) {
+        if (entry == null)
+            return 0;
+        StoredTransactionOutput out = entry.current != null ? entry.current : entry.stored;
+        return CACHED_OUTPUT_OVERHEAD + (out == null ? 0 : out.getScriptBytes().length);
+    }
+
+    // Returns the entry for the given outpoint as the current thread should see it: other threads don't see the
+    // changes of an open batch.
+    @Nullable
+    private CachedOutput view(StoredTransactionOutPoint outPoint) {
+        if (batchThread != null && batchThread != Thread.currentThread() && batchUndo.containsKey(outPoint))
+            return batchUndo.get(outPoint);
+        return outputs.get(outPoint);
+    }
+
+    // Replaces the entry for the given outpoint, remembering what it was if a batch is open.
+    private void update(StoredTransactionOutPoint outPoint, @Nullable CachedOutput oldEntry,
+                        @Nullable CachedOutput newEntry) {
+        if (batchThread != null && !batchUndo.containsKey(outPoint))
+            batchUndo.put(outPoint, oldEntry == null ? null : oldEntry.copy());
+        cacheBytes -= sizeOf(oldEntry);
+        if (newEntry == null || (newEntry.stored == null && newEntry.current == null)) {
+            outputs.remove(outPoint);
+            dirtyOutputs.remove(outPoint);
+            return;
+        }
+        cacheBytes += sizeOf(newEntry);
+        outputs.put(outPoint, newEntry);
+        if (newEntry.isDirty())
+            dirtyOutputs.add(outPoint);
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        lock.lock();
+        try {
+            CachedOutput entry = view(outPoint);
+            if (entry != null)
+                return entry.current;
+            StoredTransactionOutput out = store.getTransactionOutput(hash, index);
+            if (out != null && batchThread == Thread.currentThread()) {
+                // Keep what we read during a batch, it is likely to be spent by the block being connected.
+                outputs.put(outPoint, new CachedOutput(out, out));
+                cacheBytes += sizeOf(outputs.get(outPoint));
+            }
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        lock.lock();
+        try {
+            CachedOutput entry = outputs.get(outPoint);
+            if (entry == null)
+                update(outPoint, null, new CachedOutput(null, out));
+            else if (entry.current == null)
+                update(outPoint, entry, new CachedOutput(entry.stored, out));
+            // Otherwise the output is already there and, like the database stores do, we ignore the duplicate.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        lock.lock();
+        try {
+            CachedOutput entry = outputs.get(outPoint);
+            if (entry == null) {
+                StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+                entry = new CachedOutput(stored, stored);
+            }
+            if (entry.current == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            // If the underlying store never saw the output this drops it from the cache altogether.
+            update(outPoint, outputs.get(outPoint), new CachedOutput(entry.stored, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            boolean anyCached = false;
+            for (int i = 0; i < numOutputs; i++) {
+                CachedOutput entry = view(new StoredTransactionOutPoint(hash, i));
+                if (entry == null)
+                    continue;
+                if (entry.current != null)
+                    return true;
+                anyCached = true;
+            }
+            if (!anyCached)
+                return store.hasUnspentOutputs(hash, numOutputs);
+            // Some outputs are spent in the cache but maybe not yet in the store, so ask about the others one by one.
+            for (int i = 0; i < numOutputs; i++) {
+                if (view(new StoredTransactionOutPoint(hash, i)) == null && store.getTransactionOutput(hash, i) != null)
+                    return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            return verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            verifiedChainHead = chainHead;
+            unwrittenVerifiedChainHeads.add(chainHead);
+            // The underlying store's verified chain head only moves on when we write back, but its chain head has
+            // to keep up as it would have done.
+            if (store.getChainHead().getHeight() < chainHead.getHeight())
+                store.setChainHead(chainHead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batchLock.isHeldByCurrentThread())
+            return;  // Nested calls are treated as one batch.
+        batchLock.lock();
+        lock.lock();
+        try {
+            store.beginDatabaseBatchWrite();
+            batchThread = Thread.currentThread();
+            verifiedChainHeadsBeforeBatch = unwrittenVerifiedChainHeads.size();
+            verifiedChainHeadBeforeBatch = verifiedChainHead;
+        } catch (BlockStoreException e) {
+            batchLock.unlock();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (!batchLock.isHeldByCurrentThread()) {
+            store.commitDatabaseBatchWrite();
+            return;
+        }
+        lock.lock();
+        try {
+            if (unwrittenVerifiedChainHeads.size() > verifiedChainHeadsBeforeBatch)
+                blocksSinceFlush++;
+            boolean flush = blocksSinceFlush >= flushInterval || cacheBytes > maxCacheBytes;
+            try {
+                if (flush)
+                    writeBack();
+                store.commitDatabaseBatchWrite();
+            } catch (BlockStoreException e) {
+                // The underlying store didn't take the block, so neither do we.
+                if (unwrittenVerifiedChainHeads.size() > verifiedChainHeadsBeforeBatch)
+                    blocksSinceFlush--;
+                store.abortDatabaseBatchWrite();
+                undoBatch();
+                throw e;
+            }
+            batchUndo.clear();
+            batchThread = null;
+            if (flush)
+                written();
+        } finally {
+            lock.unlock();
+            batchLock.unlock();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!batchLock.isHeldByCurrentThread()) {
+            store.abortDatabaseBatchWrite();
+            return;
+        }
+        lock.lock();
+        try {
+            store.abortDatabaseBatchWrite();
+            undoBatch();
+        } finally {
+            lock.unlock();
+            batchLock.unlock();
+        }
+    }
+
+    // Puts every output and verified chain head back the way it was before the open batch.
+    private void undoBatch() {
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> undo : batchUndo.entrySet()) {
+            StoredTransactionOutPoint outPoint = undo.getKey();
+            CachedOutput oldEntry = undo.getValue();
+            cacheBytes -= sizeOf(outputs.remove(outPoint));
+            dirtyOutputs.remove(outPoint);
+            if (oldEntry != null) {
+                outputs.put(outPoint, oldEntry);
+                cacheBytes += sizeOf(oldEntry);
+                if (oldEntry.isDirty())
+                    dirtyOutputs.add(outPoint);
+            }
+        }
+        batchUndo.clear();
+        batchThread = null;
+        while (unwrittenVerifiedChainHeads.size() > verifiedChainHeadsBeforeBatch)
+            unwrittenVerifiedChainHeads.remove(unwrittenVerifiedChainHeads.size() - 1);
+        verifiedChainHead = verifiedChainHeadBeforeBatch;
+    }
+
+    /**
+     * Writes every change to the unspent outputs, and the verified chain head, to the underlying store now. Must not
+     * be called with a batch open.
+     */
+    public void flush() throws BlockStoreException {
+        checkState(!batchLock.isHeldByCurrentThread(), "Cannot flush inside a batch");
+        batchLock.lock();
+        lock.lock();
+        try {
+            store.beginDatabaseBatchWrite();
+            try {
+                writeBack();
+                store.commitDatabaseBatchWrite();
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+            written();
+        } finally {
+            lock.unlock();
+            batchLock.unlock();
+        }
+    }
+
+    // Sends the dirty outputs and the verified chain heads to the underlying store, which must have a batch open.
+    private void writeBack() throws BlockStoreException {
+        long start = System.currentTimeMillis();
+        for (StoredTransactionOutPoint outPoint : dirtyOutputs) {
+            CachedOutput entry = outputs.get(outPoint);
+            if (entry.stored != null)
+                store.removeUnspentTransactionOutput(entry.stored);
+            if (entry.current != null)
+                store.addUnspentTransactionOutput(entry.current);
+        }
+        for (StoredBlock chainHead : unwrittenVerifiedChainHeads)
+            store.setVerifiedChainHead(chainHead);
+        log.info("Wrote back {} outputs and {} blocks in {} msec", dirtyOutputs.size(),
+                unwrittenVerifiedChainHeads.size(), System.currentTimeMillis() - start);
+    }
+
+    // Marks everything as written once the underlying store has committed it, and evicts the least recently used
+    // outputs if we are over budget.
+    private void written() {
+        for (StoredTransactionOutPoint outPoint : dirtyOutputs) {
+            CachedOutput entry = outputs.get(outPoint);
+            if (entry.current == null) {
+                cacheBytes -= sizeOf(entry);
+                outputs.remove(outPoint);
+            } else {
+                entry.stored = entry.current;
+            }
+        }
+        dirtyOutputs.clear();
+        unwrittenVerifiedChainHeads.clear();
+        blocksSinceFlush = 0;
+        Iterator<CachedOutput> it = outputs.values().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            cacheBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    /** Writes back everything that is cached and closes the underlying store. */
+    public void close() throws BlockStoreException {
+        flush();
+        store.close();
+    }
+}
@@ -27,8 +27,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -49,6 +55,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    // Parsing and planning SQL costs more than running the small queries below, so each connection (and so each
+    // thread) keeps the statements it has prepared. Statements from the cache must not be closed by their users.
+    private ThreadLocal<StatementCache> statements;
+    // Bumped by resetStore, which drops the tables every cached statement was prepared against. A thread finding its
+    // cache is from an older generation closes its statements and prepares them again.
+    private final AtomicInteger statementGeneration = new AtomicInteger();
+    // Unspent output changes made since beginDatabaseBatchWrite, which are sent as JDBC batches on commit.
+    private ThreadLocal<PendingOutputs> pendingOutputs;
     private String connectionURL;
     private int fullStoreDepth;
 
@@ -86,6 +100,40 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    static final String INSERT_HEADER = "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String UPDATE_HEADER_WAS_UNDOABLE = "UPDATE headers SET wasUndoable=? WHERE hash=?";
+    static final String SELECT_HEADER = "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?";
+    static final String INSERT_UNDOABLE_BLOCK = "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+        + " VALUES(?, ?, ?, ?)";
+    static final String UPDATE_UNDOABLE_BLOCK = "UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+        + " WHERE hash = ?";
+    static final String SELECT_UNDOABLE_BLOCK = "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?";
+    static final String DELETE_UNDOABLE_BLOCKS = "DELETE FROM undoableBlocks WHERE height <= ?";
+    static final String UPDATE_SETTING = "UPDATE settings SET value = ? WHERE name = ?";
+    static final String SELECT_OPEN_OUTPUT = "SELECT height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash = ? AND index = ?";
+    static final String INSERT_OPEN_OUTPUT = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
+        + "VALUES (?, ?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final String SELECT_OPEN_OUTPUT_INDEXES = "SELECT index FROM openOutputs WHERE hash = ?";
+
+    /** Unspent output changes that haven't been sent to the database yet. */
+    private static class PendingOutputs {
+        // Outputs to insert, in the order they were added.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Outputs to delete from the database. These are deleted before the inserts, so an output can be both.
+        final Set<StoredTransactionOutPoint> removed = new HashSet<StoredTransactionOutPoint>();
+    }
+
+    /** The statements one connection has prepared, and the generation of the tables they were prepared against. */
+    private static class StatementCache {
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        int generation;
+    }
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -102,6 +150,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<StatementCache>();
+        pendingOutputs = new ThreadLocal<PendingOutputs>();
 
         try {
             Class.forName(driver);
@@ -156,6 +206,37 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException(ex);
         }
     }
+
+    /** Returns a prepared statement for the given SQL on this thread's connection, which must not be closed. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        StatementCache cache = statements.get();
+        int generation = statementGeneration.get();
+        if (cache == null) {
+            cache = new StatementCache();
+            cache.generation = generation;
+            statements.set(cache);
+        } else if (cache.generation != generation) {
+            // The store was reset, possibly by another thread, since these were prepared.
+            closeStatements(cache);
+            cache.generation = generation;
+        }
+        PreparedStatement s = cache.statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.statements.put(sql, s);
+        }
+        return s;
+    }
+
+    // Only the thread owning the cache may call this, as a connection is not shared between threads.
+    private static void closeStatements(StatementCache cache) throws SQLException {
+        try {
+            for (PreparedStatement s : cache.statements.values())
+                s.close();
+        } finally {
+            cache.statements.clear();
+        }
+    }
     
     public synchronized void close() {
         for (Connection conn : allConnections) {
@@ -171,6 +252,12 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
+            // Invalidates the statements cached by every thread. The others close theirs on next use.
+            statementGeneration.incrementAndGet();
+            StatementCache cache = statements.get();
+            if (cache != null)
+                closeStatements(cache);
+            pendingOutputs.remove();
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
@@ -347,9 +434,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare(INSERT_HEADER);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -359,21 +444,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare(UPDATE_HEADER_WAS_UNDOABLE);
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -416,9 +499,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare(INSERT_UNDOABLE_BLOCK);
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -429,7 +510,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -440,9 +520,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     throw new BlockStoreException(e);
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
+                PreparedStatement s = prepare(UPDATE_UNDOABLE_BLOCK);
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -452,7 +530,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -467,23 +544,26 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_HEADER);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
             if (!results.next()) {
+                results.close();
                 return null;
             }
             // Parse it.
-            if (wasUndoableOnly && !results.getBoolean(4))
-                return null;
+            boolean wasUndoable = results.getBoolean(4);
             BigInteger chainWork = new BigInteger(results.getBytes(1));
             int height = results.getInt(2);
-            Block b = new Block(params, results.getBytes(3));
+            byte[] header = results.getBytes(3);
+            results.close();
+            if (wasUndoableOnly && !wasUndoable)
+                return null;
+            Block b = new Block(params, header);
             b.verifyHeader();
             return new StoredBlock(b, chainWork, height);
         } catch (SQLException ex) {
@@ -495,14 +575,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
     
@@ -519,21 +591,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_UNDOABLE_BLOCK);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
             if (!results.next()) {
+                results.close();
                 return null;
             }
             // Parse it.
             byte[] txOutChanges = results.getBytes(1);
             byte[] transactions = results.getBytes(2);
+            results.close();
             StoredUndoableBlock block;
             if (txOutChanges == null) {
                 int offset = 0;
@@ -568,11 +640,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -586,12 +653,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -607,12 +672,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -623,11 +686,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare(DELETE_UNDOABLE_BLOCKS);
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -636,69 +697,95 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = pending.added.get(outPoint);
+            if (out != null)
+                return new StoredTransactionOutput(hash, index, out.getValue(), out.getHeight(), true,
+                        out.getScriptBytes());
+            if (pending.removed.contains(outPoint))
+                return null;
+        }
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
             ResultSet results = s.executeQuery();
             if (!results.next()) {
+                results.close();
                 return null;
             }
             // Parse it.
             int height = results.getInt(1);
             BigInteger value = new BigInteger(results.getBytes(2));
+            byte[] scriptBytes = results.getBytes(3);
+            results.close();
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            return new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            // Adding an output that is already there is ignored, as the INSERT below would be.
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (!pending.added.containsKey(outPoint))
+                pending.added.put(outPoint, out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            insertUnspentTransactionOutput(out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void insertUnspentTransactionOutput(StoredTransactionOutput out) throws SQLException {
+        try {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            bindUnspentTransactionOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+                throw e;
         }
     }
 
+    private static void bindUnspentTransactionOutput(PreparedStatement s, StoredTransactionOutput out)
+            throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+    }
+
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (pending.added.remove(outPoint) != null)
+                return;
+            // Whether the database really has it is checked when the batch is written.
+            if (!pending.removed.add(outPoint))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
             int updateCount = s.getUpdateCount();
-            s.close();
             if (updateCount == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
@@ -706,6 +793,39 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Sends the pending output changes to the database as two JDBC batches, one of deletes and one of inserts.
+    private void writePendingOutputs(PendingOutputs pending) throws SQLException, BlockStoreException {
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            for (StoredTransactionOutPoint outPoint : pending.removed) {
+                s.setBytes(1, outPoint.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int)outPoint.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch()) {
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            }
+        }
+        if (!pending.added.isEmpty()) {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.added.values()) {
+                bindUnspentTransactionOutput(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                // Probably an output that was already in the database, which the unbatched insert ignores. Go
+                // through them again one at a time, so that only that kind of failure is ignored.
+                s.clearBatch();
+                for (StoredTransactionOutput out : pending.added.values())
+                    insertUnspentTransactionOutput(out);
+            }
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -713,20 +833,41 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        // A re-org begins a batch for each block it disconnects and connects before committing them all at once.
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputs());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        PendingOutputs pending = pendingOutputs.get();
+        pendingOutputs.remove();
         try {
+            if (pending != null)
+                writePendingOutputs(pending);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
+            rollbackQuietly();
             throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            rollbackQuietly();
+            throw e;
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            conn.get().rollback();
+            conn.get().setAutoCommit(true);
+        } catch (SQLException e) {
+            log.error("Failed to roll back a failed batch write", e);
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputs.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -737,24 +878,49 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        Set<Long> removedIndexes = null;
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+                if (pending.added.containsKey(outPoint))
+                    return true;
+                if (pending.removed.contains(outPoint)) {
+                    if (removedIndexes == null)
+                        removedIndexes = new HashSet<Long>();
+                    removedIndexes.add((long) i);
+                }
+            }
+        }
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            if (removedIndexes == null) {
+                PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS);
+                s.setBytes(1, hash.getBytes());
+                ResultSet results = s.executeQuery();
+                if (!results.next()) {
+                    results.close();
+                    throw new BlockStoreException("Got no results from a COUNT(*) query");
+                }
+                int count = results.getInt(1);
+                results.close();
+                return count != 0;
+            }
+            // Some outputs of this transaction are about to be deleted, so look for any others.
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT_INDEXES);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try {
+                while (results.next()) {
+                    // index is actually an unsigned int
+                    if (!removedIndexes.contains(results.getInt(1) & 0xFFFFFFFFL))
+                        return true;
+                }
+                return false;
+            } finally {
+                results.close();
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 }
@@ -86,15 +86,32 @@ public class SPVBlockStore implements BlockStore {
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    // Finds the slot a header lives in when it isn't in the caches above, so a miss costs the same whatever the size
+    // of the ring instead of a scan through all of it. Slot numbers count records from the end of the prologue. The
+    // index lives on the heap and is rebuilt from the ring each time the store is opened.
+    private BlockHashIndex hashIndex;
+    private long indexRebuildTimeMillis;
+    private final byte[] scratchHash = new byte[32];
+
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers. Will create the
+     * given file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, otherwise the file must have been created with the same number of headers. This operation
+     * will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -126,7 +143,9 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                rebuildIndex();
             } else {
+                hashIndex = createIndex();
                 initNewStore(params);
             }
         } catch (Exception e) {
@@ -139,6 +158,57 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    private BlockHashIndex createIndex() {
+        return new BlockHashIndex(new BlockHashIndex.Records() {
+            @Override
+            public boolean hashMatches(int slot, byte[] hash) {
+                buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+                buffer.get(scratchHash);
+                return Arrays.equals(scratchHash, hash);
+            }
+        }, numHeaders);
+    }
+
+    // Reads the hash of every record in the ring into a fresh index, oldest first so that if a header was stored
+    // more than once the newest copy wins, as it would with a backwards scan from the cursor.
+    private void rebuildIndex() {
+        long start = System.currentTimeMillis();
+        lock.lock();
+        try {
+            hashIndex = createIndex();
+            int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            byte[] hash = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                int slot = (cursorSlot + i) % numHeaders;
+                buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+                buffer.get(hash);
+                if (!isEmptyRecord(hash))
+                    hashIndex.put(hash, slot);
+            }
+            indexRebuildTimeMillis = System.currentTimeMillis() - start;
+            log.info("Rebuilt block hash index of {} headers in {} msec", hashIndex.size(), indexRebuildTimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Slots that were never written to are all zeros, which can never be the hash of a real header.
+    private static boolean isEmptyRecord(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long it took to rebuild the in memory hash index from the ring when this store was opened, or zero
+     * if the store was newly created.
+     */
+    public long getIndexRebuildTimeMillis() {
+        return indexRebuildTimeMillis;
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
@@ -172,12 +242,21 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // Forget whatever header is about to be overwritten, unless a newer copy of it lives elsewhere.
+            buffer.position(cursor);
+            byte[] oldHash = new byte[32];
+            buffer.get(oldHash);
+            if (!isEmptyRecord(oldHash))
+                hashIndex.remove(oldHash, slot);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
+            byte[] hashBytes = hash.getBytes();
+            buffer.put(hashBytes);
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            hashIndex.put(hashBytes, slot);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -195,32 +274,15 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            int slot = hashIndex.get(hash.getBytes());
+            if (slot < 0) {
+                notFoundCache.put(hash, notFoundMarker);
+                return null;
+            }
+            buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
@@ -26,20 +26,25 @@ import com.google.infinitecoinj.script.Script;
 import com.google.infinitecoinj.wallet.WalletTransaction;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import org.infinitecoinj.wallet.Protos;
 import org.infinitecoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -68,6 +73,12 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
 
+    /**
+     * The id of the extension that numbers wallet journal records, see {@link #walletChangesToProto}. A snapshot
+     * written with a journal carries it too, giving the number of the last record the snapshot includes.
+     */
+    public static final String JOURNAL_EXTENSION_ID = "com.google.infinitecoinj.wallet.journal";
+
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
@@ -124,40 +135,8 @@ public class WalletProtobufSerializer {
             walletBuilder.addTransaction(txProto);
         }
 
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
-            }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
-        }
+        for (ECKey key : wallet.getKeys())
+            walletBuilder.addKey(makeKeyProto(key));
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -201,6 +180,9 @@ public class WalletProtobufSerializer {
         }
 
         populateExtensions(wallet, walletBuilder);
+        if (wallet.getJournalSequence() > 0)
+            walletBuilder.addExtension(makeJournalExtension(wallet.getJournalSequence(), 0, 0,
+                    Collections.<Sha256Hash>emptyList()));
 
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
@@ -208,6 +190,110 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    /**
+     * <p>Returns a wallet journal record describing changes made to the wallet, to be appended to a journal kept
+     * next to a snapshot of the wallet written by {@link #walletToProto(Wallet)}. The record is a wallet message that
+     * holds only the transactions that changed, the keys that were added, the last block seen and the wallet
+     * extensions, as they don't say when they change. Its
+     * {@link #JOURNAL_EXTENSION_ID} extension gives the record number, the transactions that were removed, and how
+     * many blocks were added to the chain, as every building transaction not in the record is that much deeper.</p>
+     *
+     * <p>Records are read back with {@link #replayJournal(Protos.Wallet, InputStream)}. You don't normally need
+     * this yourself, see {@link com.google.infinitecoinj.wallet.WalletFiles#setJournaled(boolean)}.</p>
+     *
+     * @param transactions the transactions that changed, other than by getting deeper in the chain
+     * @param removedTransactions the hashes of the transactions that are no longer in the wallet
+     * @param keys the keys that were added
+     * @param blocks the number of blocks added to the best chain
+     * @param work the work done by those blocks
+     */
+    public Protos.Wallet walletChangesToProto(Wallet wallet, List<WalletTransaction> transactions,
+                                              List<Sha256Hash> removedTransactions, List<ECKey> keys, int blocks,
+                                              BigInteger work) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        for (WalletTransaction wtx : transactions)
+            walletBuilder.addTransaction(makeTxProto(wtx));
+        for (ECKey key : keys)
+            walletBuilder.addKey(makeKeyProto(key));
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        populateExtensions(wallet, walletBuilder);
+        walletBuilder.addExtension(makeJournalExtension(wallet.getJournalSequence(), blocks, work.longValue(),
+                removedTransactions));
+        return walletBuilder.build();
+    }
+
+    // The journal extension holds the record number, the number of blocks and their work, then the removed
+    // transaction hashes.
+    private static Protos.Extension makeJournalExtension(long sequence, int blocks, long work,
+                                                         List<Sha256Hash> removedTransactions) {
+        ByteBuffer data = ByteBuffer.allocate(8 + 4 + 8 + 4 + 32 * removedTransactions.size());
+        data.putLong(sequence).putInt(blocks).putLong(work).putInt(removedTransactions.size());
+        for (Sha256Hash hash : removedTransactions)
+            data.put(hash.getBytes());
+        return Protos.Extension.newBuilder()
+                .setId(JOURNAL_EXTENSION_ID)
+                .setData(ByteString.copyFrom(data.array()))
+                .setMandatory(false)
+                .build();
+    }
+
+    @Nullable
+    private static Protos.Extension findJournalExtension(Protos.Wallet walletProto) {
+        for (Protos.Extension extension : walletProto.getExtensionList()) {
+            if (extension.getId().equals(JOURNAL_EXTENSION_ID))
+                return extension;
+        }
+        return null;
+    }
+
+    /** Returns the number of the last journal record included in the given wallet, or zero if there is none. */
+    public static long getJournalSequence(Protos.Wallet walletProto) {
+        Protos.Extension extension = findJournalExtension(walletProto);
+        return extension == null ? 0 : extension.getData().asReadOnlyByteBuffer().getLong();
+    }
+
+    private static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
@@ -364,19 +450,28 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            Wallet wallet = new Wallet(params);
-            readWallet(walletProto, wallet);
-            return wallet;
+            return readWallet(parseToProto(input));
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * <p>Loads a wallet from the given protocol buffer, as {@link #readWallet(java.io.InputStream)} does from a
+     * stream.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        Wallet wallet = new Wallet(params);
+        readWallet(walletProto, wallet);
+        return wallet;
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -472,6 +567,7 @@ public class WalletProtobufSerializer {
         }
 
         loadExtensions(wallet, walletProto);
+        wallet.setJournalSequence(getJournalSequence(walletProto));
 
         if (walletProto.hasVersion()) {
             wallet.setVersion(walletProto.getVersion());
@@ -485,6 +581,8 @@ public class WalletProtobufSerializer {
         final Map<String, WalletExtension> extensions = wallet.getExtensions();
         for (Protos.Extension extProto : walletProto.getExtensionList()) {
             String id = extProto.getId();
+            if (id.equals(JOURNAL_EXTENSION_ID))
+                continue;  // Read by readWallet.
             WalletExtension extension = extensions.get(id);
             if (extension == null) {
                 if (extProto.getMandatory()) {
@@ -516,6 +614,115 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
+    /**
+     * <p>Applies the records of a wallet journal, as made by {@link #walletChangesToProto}, to the given wallet and
+     * returns the result. Records the wallet already includes are skipped, so the same journal can be replayed onto a
+     * snapshot written after some of it. Replaying stops at a damaged record, as a crash while one was being appended
+     * leaves, or at a gap in the record numbers, logging a warning in either case: the records after those can't be
+     * applied without the ones before.</p>
+     *
+     * <p>Building transactions that aren't in a record are made deeper by the blocks it adds. This is done once at the
+     * end rather than for each record, so replaying is proportional to the size of the wallet plus the journal.</p>
+     */
+    public static Protos.Wallet replayJournal(Protos.Wallet walletProto, InputStream journal) throws IOException {
+        long sequence = getJournalSequence(walletProto);
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        for (Protos.Transaction txProto : walletProto.getTransactionList())
+            transactions.put(txProto.getHash(), txProto);
+        Map<ByteString, Protos.Key> keys = new LinkedHashMap<ByteString, Protos.Key>();
+        for (Protos.Key keyProto : walletProto.getKeyList())
+            keys.put(keyProto.getPublicKey(), keyProto);
+        Map<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+        for (Protos.Extension extension : walletProto.getExtensionList())
+            extensions.put(extension.getId(), extension);
+        Protos.Wallet.Builder walletBuilder = walletProto.toBuilder();
+        // The blocks and work added since the start, and where they stood when each transaction read from the
+        // journal was written. Transactions from the snapshot are behind by all of them.
+        int blocks = 0;
+        long work = 0;
+        Map<ByteString, Integer> blocksWhenWritten = new HashMap<ByteString, Integer>();
+        Map<ByteString, Long> workWhenWritten = new HashMap<ByteString, Long>();
+        int records = 0;
+        while (true) {
+            Protos.Wallet record;
+            try {
+                record = Protos.Wallet.parseDelimitedFrom(journal);
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Wallet journal ends with a damaged record after record {}, ignoring it", sequence);
+                break;
+            }
+            if (record == null)
+                break;  // End of the journal.
+            Protos.Extension extension = findJournalExtension(record);
+            if (extension == null) {
+                log.warn("Wallet journal has a record without a number after record {}, ignoring the rest", sequence);
+                break;
+            }
+            ByteBuffer data = extension.getData().asReadOnlyByteBuffer();
+            long recordSequence = data.getLong();
+            if (recordSequence <= sequence)
+                continue;  // Already included.
+            if (recordSequence != sequence + 1) {
+                log.warn("Wallet journal is missing record {}, ignoring the rest", sequence + 1);
+                break;
+            }
+            sequence = recordSequence;
+            blocks += data.getInt();
+            work += data.getLong();
+            int numRemoved = data.getInt();
+            for (int i = 0; i < numRemoved; i++) {
+                byte[] hash = new byte[32];
+                data.get(hash);
+                transactions.remove(ByteString.copyFrom(hash));
+            }
+            for (Protos.Transaction txProto : record.getTransactionList()) {
+                transactions.put(txProto.getHash(), txProto);
+                blocksWhenWritten.put(txProto.getHash(), blocks);
+                workWhenWritten.put(txProto.getHash(), work);
+            }
+            for (Protos.Key keyProto : record.getKeyList())
+                keys.put(keyProto.getPublicKey(), keyProto);
+            if (record.hasLastSeenBlockHash()) {
+                walletBuilder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+                walletBuilder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+            }
+            if (record.hasLastSeenBlockTimeSecs())
+                walletBuilder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+            for (Protos.Extension recordExtension : record.getExtensionList())
+                extensions.put(recordExtension.getId(), recordExtension);
+            records++;
+        }
+        log.info("Replayed {} wallet journal records, up to record {}", records, sequence);
+
+        walletBuilder.clearTransaction();
+        for (Protos.Transaction txProto : transactions.values()) {
+            Integer writtenAt = blocksWhenWritten.get(txProto.getHash());
+            int missedBlocks = blocks - (writtenAt == null ? 0 : writtenAt);
+            Long workWrittenAt = workWhenWritten.get(txProto.getHash());
+            long missedWork = work - (workWrittenAt == null ? 0 : workWrittenAt);
+            walletBuilder.addTransaction(addDepth(txProto, missedBlocks, missedWork));
+        }
+        walletBuilder.clearKey().addAllKey(keys.values());
+        extensions.put(JOURNAL_EXTENSION_ID, makeJournalExtension(sequence, 0, 0, Collections.<Sha256Hash>emptyList()));
+        walletBuilder.clearExtension().addAllExtension(extensions.values());
+        return walletBuilder.build();
+    }
+
+    // Makes a building transaction deeper by the given blocks and work, as TransactionConfidence.notifyWorkDone does.
+    private static Protos.Transaction addDepth(Protos.Transaction txProto, int blocks, long work) {
+        if (blocks == 0 || !txProto.hasConfidence())
+            return txProto;
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return txProto;
+        Protos.TransactionConfidence.Builder confidenceBuilder = confidence.toBuilder();
+        if (confidence.hasDepth())
+            confidenceBuilder.setDepth(confidence.getDepth() + blocks);
+        if (confidence.hasWorkDone())
+            confidenceBuilder.setWorkDone(confidence.getWorkDone() + work);
+        return txProto.toBuilder().setConfidence(confidenceBuilder).build();
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
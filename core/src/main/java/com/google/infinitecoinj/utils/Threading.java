@@ -26,6 +26,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -195,4 +197,52 @@ public class Threading {
                 }
             })
     );
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Splitting work over an executor.
+    //
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** A part of some work, the items [from, to), that one task handles. See {@link #runInParallel}. */
+    public interface Range {
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits the items [0, size) into contiguous ranges, at most one per processor and each of at least minPerTask
+     * items, and runs them on the given executor, returning once they are all done. Everything runs on the calling
+     * thread if there is no executor or only enough items for one task. An unchecked exception thrown by a task is
+     * rethrown as is.
+     */
+    public static void runInParallel(@Nullable ExecutorService executor, int size, int minPerTask, final Range range) {
+        int numTasks = executor == null ? 1 : Math.max(1, Math.min(size / minPerTask,
+                Runtime.getRuntime().availableProcessors()));
+        if (numTasks == 1) {
+            range.run(0, size);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numTasks);
+        for (int task = 0; task < numTasks; task++) {
+            final int from = (int) ((long) size * task / numTasks);
+            final int to = (int) ((long) size * (task + 1) / numTasks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    range.run(from, to);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.wallet;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.script.Script;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that looks for a set of coins which pays the target closely enough that no change output is
+ * needed, preferring the set that wastes least. Waste is the fee paid for the inputs plus whatever is paid over the
+ * target, which is lost to the miners. Paying less than the cost of a change output over the target is better than
+ * creating one, as the change would cost that much to create and later spend. This keeps transactions small and
+ * avoids change outputs close to the dust limit, which suits wallets that make many payments.</p>
+ *
+ * <p>The search is a depth first branch and bound over the candidates from largest to smallest, which gives up on a
+ * branch as soon as it can no longer reach the target, goes beyond the target by more than the cost of change, or
+ * already costs more in inputs than the best set found. It stops after a fixed number of steps, or sooner if it runs
+ * out of the given time budget. If no such set is found, which is usual when the wallet holds few coins, the selection
+ * is left to a {@link DefaultCoinSelector} and the transaction gets change as it would without this class.</p>
+ *
+ * <p>Fees are estimated from the fee per kilobyte as if they were charged per byte, so the costs are only a guide to
+ * the fee {@link Wallet#completeTx(Wallet.SendRequest)} will work out.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    private static final Logger log = LoggerFactory.getLogger(BranchAndBoundCoinSelector.class);
+
+    /** The time budget used by the default constructor, in milliseconds. */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 50;
+
+    // Outpoint, script length and sequence number are 41 bytes. A signature is at most 73 bytes and a public key 65,
+    // each with a push opcode.
+    private static final int PAY_TO_ADDRESS_INPUT_SIZE = 41 + 74 + 66;
+    private static final int PAY_TO_PUBKEY_INPUT_SIZE = 41 + 74;
+    // Value, script length and a pay to address script.
+    private static final int CHANGE_OUTPUT_SIZE = 8 + 1 + 25;
+    // The most steps a search takes, as Bitcoin Core does, so that finding a good set isn't followed by a long and
+    // rarely fruitful hunt for a better one. The time budget is for machines that can't take this many in time.
+    private static final int MAX_STEPS = 100000;
+    // How many steps the search takes between looking at the clock.
+    private static final int STEPS_PER_CLOCK_CHECK = 1024;
+
+    private final BigInteger feePerKb;
+    private final long timeBudgetNanos;
+    private final DefaultCoinSelector fallback = new DefaultCoinSelector() {
+        @Override
+        protected boolean shouldSelect(Transaction tx) {
+            return BranchAndBoundCoinSelector.this.shouldSelect(tx);
+        }
+    };
+
+    /**
+     * Creates a selector that estimates fees with {@link Wallet.SendRequest#DEFAULT_FEE_PER_KB} and searches for up to
+     * {@link #DEFAULT_TIME_BUDGET_MILLIS}.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Wallet.SendRequest.DEFAULT_FEE_PER_KB, DEFAULT_TIME_BUDGET_MILLIS);
+    }
+
+    /**
+     * @param feePerKb the fee per kilobyte the transaction will pay, normally that of the
+     *                 {@link Wallet.SendRequest}
+     * @param timeBudgetMillis how long each selection may search before falling back to the default selector
+     */
+    public BranchAndBoundCoinSelector(BigInteger feePerKb, long timeBudgetMillis) {
+        checkArgument(feePerKb.signum() >= 0, "Negative fee per kb");
+        checkArgument(timeBudgetMillis >= 0, "Negative time budget");
+        this.feePerKb = checkNotNull(feePerKb);
+        this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+    }
+
+    @Override
+    public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+        // Selecting everything, as for the balance or emptying the wallet, has nothing to search for.
+        if (target.equals(NetworkParameters.MAX_MONEY))
+            return fallback.select(target, candidates);
+        CoinSelection selection = search(target.longValue(), candidates);
+        if (selection != null)
+            return selection;
+        return fallback.select(target, candidates);
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable, as with DefaultCoinSelector. */
+    protected boolean shouldSelect(Transaction tx) {
+        return DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // One candidate output, with what it's worth and what it costs to spend.
+    private static class Coin implements Comparable<Coin> {
+        final TransactionOutput output;
+        final long value;
+        final long cost;
+
+        Coin(TransactionOutput output, long cost) {
+            this.output = output;
+            this.value = output.getValue().longValue();
+            this.cost = cost;
+        }
+
+        @Override
+        public int compareTo(Coin other) {
+            // Largest first, and of those equal in value, the cheapest first.
+            int c = Longs.compare(other.value, value);
+            return c != 0 ? c : Longs.compare(cost, other.cost);
+        }
+    }
+
+    // Returns the set of coins that wastes least without needing change, or null if none was found in time.
+    private CoinSelection search(long target, LinkedList<TransactionOutput> candidates) {
+        long upperBound = target + feeForBytes(CHANGE_OUTPUT_SIZE + PAY_TO_ADDRESS_INPUT_SIZE);
+        List<Coin> usable = new ArrayList<Coin>(candidates.size());
+        for (TransactionOutput output : candidates) {
+            // A coin worth more than the upper bound can't be in any set, so the search needn't step past it.
+            if (output.getValue().longValue() <= upperBound && shouldSelect(output.getParentTransaction()))
+                usable.add(new Coin(output, feeForBytes(inputSize(output))));
+        }
+        Collections.sort(usable);
+        int n = usable.size();
+        Coin[] coins = usable.toArray(new Coin[n]);
+        // remaining[i] is the value of coins[i] and every coin after it.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + coins[i].value;
+        if (remaining[0] < target)
+            return null;
+
+        // The indexes of the coins in the current set, in increasing order. Every coin before the last of them that
+        // isn't in the set has been left out, so the next coin to decide on is the one after it.
+        int[] selected = new int[n];
+        int depth = 0;
+        long value = 0, cost = 0;
+        int[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+        int next = 0;
+        long steps = 0;
+        long startTime = System.nanoTime();
+        while (true) {
+            if (steps == MAX_STEPS)
+                break;
+            if (steps++ % STEPS_PER_CLOCK_CHECK == 0 && System.nanoTime() - startTime >= timeBudgetNanos) {
+                log.info("Coin selection search ran out of time after {} steps", steps);
+                break;
+            }
+            boolean backtrack;
+            if (value + remaining[next] < target || value > upperBound || cost > bestWaste) {
+                backtrack = true;
+            } else if (value >= target) {
+                long waste = cost + value - target;
+                if (waste < bestWaste) {
+                    bestWaste = waste;
+                    best = Arrays.copyOf(selected, depth);
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                if (depth == 0)
+                    break;  // Every branch has been tried.
+                // Leave out the last coin added, and any coins just like it as they would give the same sets.
+                int last = selected[--depth];
+                value -= coins[last].value;
+                cost -= coins[last].cost;
+                next = last + 1;
+                while (next < n && coins[next].compareTo(coins[last]) == 0)
+                    next++;
+            } else {
+                selected[depth++] = next;
+                value += coins[next].value;
+                cost += coins[next].cost;
+                next++;
+            }
+        }
+        if (best == null)
+            return null;
+        long total = 0;
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>(best.length);
+        for (int index : best) {
+            gathered.add(coins[index].output);
+            total += coins[index].value;
+        }
+        return new CoinSelection(BigInteger.valueOf(total), gathered);
+    }
+
+    private long feeForBytes(int bytes) {
+        return feePerKb.longValue() * bytes / 1000;
+    }
+
+    private static int inputSize(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            if (script.isSentToRawPubKey())
+                return PAY_TO_PUBKEY_INPUT_SIZE;
+        } catch (ScriptException e) {
+            // Assume the worst.
+        }
+        return PAY_TO_ADDRESS_INPUT_SIZE;
+    }
+}
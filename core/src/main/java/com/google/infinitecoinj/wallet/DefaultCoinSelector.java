@@ -12,25 +12,34 @@ import java.util.*;
 
 /**
  * This class implements a {@link com.google.infinitecoinj.wallet.CoinSelector} which attempts to get the highest priority
- * possible. This means that the transaction is the most likely to get confirmed. Note that this means we may end up
- * "spending" more priority than would be required to get the transaction we are creating confirmed.
+ * possible. This means that the transaction is the most likely to get confirmed. It spends the oldest coins first, and
+ * of those that are equally old the largest, so we may end up "spending" more priority than would be required to get
+ * the transaction we are creating confirmed.
  */
 public class DefaultCoinSelector implements CoinSelector {
     public CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
-        long target = biTarget.longValue();
-        HashSet<TransactionOutput> selected = new HashSet<TransactionOutput>();
-        // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<TransactionOutput>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
         if (!biTarget.equals(NetworkParameters.MAX_MONEY)) {
             sortOutputs(sortedOutputs);
         }
+        return selectFromSorted(biTarget, sortedOutputs);
+    }
+
+    /**
+     * Like {@link #select(java.math.BigInteger, java.util.LinkedList)}, but for candidates that are already in the
+     * order {@link #sortOutputs(java.util.ArrayList)} would put them in, such as those returned by
+     * {@link com.google.infinitecoinj.core.Wallet#calculateAllSpendCandidates(boolean)}. The wallet uses this instead
+     * of select when given a DefaultCoinSelector itself. Sub-classes always go through select.
+     */
+    public CoinSelection selectFromSorted(BigInteger biTarget, Iterable<TransactionOutput> candidates) {
+        long target = biTarget.longValue();
+        HashSet<TransactionOutput> selected = new HashSet<TransactionOutput>();
         // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
         // bit over (excessive value will be change).
         long total = 0;
-        for (TransactionOutput output : sortedOutputs) {
+        for (TransactionOutput output : candidates) {
             if (total >= target) break;
             // Only pick chain-included transactions, or transactions that are ours and pending.
             if (!shouldSelect(output.getParentTransaction())) continue;
@@ -42,6 +51,7 @@ public class DefaultCoinSelector implements CoinSelector {
         return new CoinSelection(BigInteger.valueOf(total), selected);
     }
 
+    /** Sorts the outputs deepest first, then by descending value, so that pending outputs come last. */
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
         Collections.sort(outputs, new Comparator<TransactionOutput>() {
             public int compare(TransactionOutput a, TransactionOutput b) {
@@ -53,14 +63,10 @@ public class DefaultCoinSelector implements CoinSelector {
                     depth1 = conf1.getDepthInBlocks();
                 if (conf2.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
                     depth2 = conf2.getDepthInBlocks();
-                BigInteger aValue = a.getValue();
-                BigInteger bValue = b.getValue();
-                BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
+                if (depth1 != depth2)
+                    return depth1 > depth2 ? -1 : 1;
+                // Equally deep, so sort by value to get the lowest transaction size.
+                int c2 = b.getValue().compareTo(a.getValue());
                 if (c2 != 0) return c2;
                 // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
                 BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
@@ -16,29 +16,44 @@
 
 package com.google.infinitecoinj.wallet;
 
+import com.google.infinitecoinj.core.Utils;
 import com.google.infinitecoinj.core.Wallet;
+import com.google.infinitecoinj.store.WalletProtobufSerializer;
 import com.google.infinitecoinj.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.infinitecoinj.wallet.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import java.io.File;
-import java.io.IOException;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.util.ArrayDeque;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * <p>Large wallets can be saved with a journal, see {@link #setJournaled(boolean)}. Then each save appends a record of
+ * what changed to a journal file next to the wallet file, rather than writing the whole wallet again, and the journal
+ * is merged into the wallet file in the background once it grows large. {@link Wallet#loadFromFile(java.io.File)}
+ * reads both.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
 
+    /** The size the journal may grow to before it's merged into the wallet file, by default. */
+    public static final long DEFAULT_MAX_JOURNAL_SIZE = 4 * 1024 * 1024;
+
     private final Wallet wallet;
     private final ScheduledThreadPoolExecutor executor;
     private final File file;
@@ -46,11 +61,24 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final File journalFile;
+    // Held while writing the files. Writers take it before they unlock the wallet (see Wallet.saveChangesTo), so the
+    // wallet lock is always taken first.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Writes made by the wallet and not yet done, in the order the wallet made them.
+    @GuardedBy("this") private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<PendingWrite>();
 
     private volatile Listener vListener;
+    private volatile boolean vJournaled;
+    private volatile long vMaxJournalSize = DEFAULT_MAX_JOURNAL_SIZE;
+    // Set when the journal can't be added to, as it doesn't match the wallet file, so the next save must write the
+    // whole wallet.
+    private volatile boolean vSnapshotRequired = true;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
+     * When the wallet is journaled another thread may be waiting for the save with the wallet locked, so don't use
+     * the wallet from these methods.
      */
     public interface Listener {
         /**
@@ -61,6 +89,7 @@ public class WalletFiles {
 
         /**
          * Called on the auto-save thread after the newly created temporary file has been filled with data and renamed.
+         * Appending to the journal doesn't call either method.
          */
         public void onAfterAutoSave(File newlySavedFile);
     }
@@ -78,8 +107,9 @@ public class WalletFiles {
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
         this.executor.allowCoreThreadTimeOut(true);
         this.wallet = checkNotNull(wallet);
-        // File must only be accessed from the auto-save executor from now on, to avoid simultaneous access.
+        // File must only be written with the write lock held from now on, to avoid simultaneous access.
         this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
@@ -92,7 +122,10 @@ public class WalletFiles {
                     return null;
                 }
                 log.info("Background saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-                saveNowInternal();
+                if (vJournaled)
+                    wallet.saveChangesTo(WalletFiles.this);  // Writes after unlocking the wallet.
+                else
+                    saveNowInternal();
                 return null;
             }
         };
@@ -110,7 +143,13 @@ public class WalletFiles {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
         // but they will serialize (using different temp files).
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-        saveNowInternal();
+        if (vJournaled) {
+            // Writes on this thread, along with anything a background save left for us. The caller usually has the
+            // wallet locked, so this must never wait for the auto-save thread, which may be waiting for the lock.
+            wallet.saveChangesTo(this);
+        } else {
+            saveNowInternal();
+        }
     }
 
     private void saveNowInternal() throws IOException {
@@ -132,4 +171,211 @@ public class WalletFiles {
             return;   // Already pending.
         executor.schedule(saver, delay, delayTimeUnit);
     }
+
+    /**
+     * <p>Sets whether saves append what changed to a journal, rather than writing the whole wallet to the wallet file.
+     * This makes saving a large wallet much cheaper, particularly after each new block, when all that changed is the
+     * depth of the transactions. The journal is kept in a file named after the wallet file with ".journal" added and
+     * is merged into the wallet file on the auto-save thread once it's larger than
+     * {@link #setMaxJournalSize(long)}. Changes the journal can't describe, like removing a key, still write the whole
+     * wallet. The first save after this is called writes the whole wallet too.</p>
+     *
+     * <p>The wallet file can only be read by {@link Wallet#loadFromFile(java.io.File)} or
+     * {@link #readWalletProto(java.io.File)}, as they apply the journal. It's off by default.</p>
+     */
+    public void setJournaled(boolean journaled) {
+        vSnapshotRequired = true;
+        vJournaled = journaled;
+    }
+
+    /** Returns the wallet file the wallet is saved to. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns whether saves append to a journal, see {@link #setJournaled(boolean)}. */
+    public boolean isJournaled() {
+        return vJournaled;
+    }
+
+    /** Sets how large the journal may grow, in bytes, before it's merged into the wallet file. */
+    public void setMaxJournalSize(long maxJournalSize) {
+        checkArgument(maxJournalSize >= 0);
+        this.vMaxJournalSize = maxJournalSize;
+    }
+
+    /** Returns true if the next save must write the whole wallet, as the journal can't be added to. */
+    public boolean isSnapshotRequired() {
+        return vSnapshotRequired;
+    }
+
+    /**
+     * Queues the given wallet, including the number of the last journal record it holds, to be written to the wallet
+     * file, replacing the journal, by the next {@link #flush()}. Called by {@link Wallet#saveChangesTo(WalletFiles)}
+     * with the wallet locked, so writes are queued in the order the wallet made them.
+     */
+    public synchronized void writeSnapshot(Protos.Wallet walletProto) {
+        vSnapshotRequired = false;
+        pendingWrites.add(new PendingWrite(walletProto, true));
+    }
+
+    /**
+     * Queues the given journal record to be appended to the journal by the next {@link #flush()}. Called by
+     * {@link Wallet#saveChangesTo(WalletFiles)} with the wallet locked, so records are queued in the order they are
+     * numbered.
+     */
+    public synchronized void appendToJournal(Protos.Wallet record) {
+        pendingWrites.add(new PendingWrite(record, false));
+    }
+
+    /**
+     * Takes the lock that keeps writers to the files in order. {@link Wallet#saveChangesTo(WalletFiles)} calls this
+     * before it unlocks the wallet and then {@link #flush()}, so that the files are written in the order the writes
+     * were queued without holding the wallet lock.
+     */
+    public void lockForWriting() {
+        writeLock.lock();
+    }
+
+    /**
+     * Does the writes queued so far on the calling thread, then releases the lock taken by {@link #lockForWriting()}.
+     * After a write fails those queued behind it are dropped and the whole wallet is saved again later.
+     */
+    public void flush() throws IOException {
+        checkState(writeLock.isHeldByCurrentThread());
+        try {
+            PendingWrite write;
+            while ((write = nextWrite()) != null) {
+                try {
+                    if (write.snapshot)
+                        writeSnapshotInternal(write.proto);
+                    else
+                        appendToJournalInternal(write.proto);
+                } catch (IOException e) {
+                    failed(e);
+                    throw e;
+                } catch (RuntimeException e) {
+                    failed(e);
+                    throw e;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private synchronized PendingWrite nextWrite() {
+        return pendingWrites.poll();
+    }
+
+    private synchronized void failed(Exception e) {
+        log.error("Failed to save wallet, will try again writing all of it", e);
+        vSnapshotRequired = true;
+        pendingWrites.clear();
+        saveLater();
+    }
+
+    private void appendToJournalInternal(Protos.Wallet record) throws IOException {
+        // After a failed write the wallet is saved whole, as the journal may be missing a record.
+        if (vSnapshotRequired)
+            return;
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        try {
+            record.writeDelimitedTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (journalFile.length() > vMaxJournalSize)
+            compact();
+    }
+
+    // Merges the journal into the wallet file. Runs with the write lock held, so nothing is appended meanwhile, and
+    // reads both files rather than the wallet so that the wallet isn't locked.
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        long journalSize = journalFile.length();
+        writeSnapshotInternal(readWalletProto(file));
+        log.info("Merged {} bytes of journal into the wallet file in {}msec", journalSize,
+                System.currentTimeMillis() - now);
+    }
+
+    private void writeSnapshotInternal(Protos.Wallet walletProto) throws IOException {
+        long now = System.currentTimeMillis();
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        final Listener listener = vListener;
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            walletProto.writeTo(stream);
+            // As in Wallet.saveToFile, make the bits hit the disk before the rename.
+            stream.flush();
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                canonical.delete();
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            if (stream != null)
+                stream.close();
+            if (temp.delete())
+                log.warn("Deleted temp file after failed save.");
+        }
+        // Everything in the journal is in the wallet file now. Should we crash before deleting it, the records are
+        // numbered no higher than the wallet file says it holds and will be skipped.
+        if (journalFile.exists() && !journalFile.delete())
+            throw new IOException("Failed to delete " + journalFile);
+        if (listener != null)
+            listener.onAfterAutoSave(file);
+        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+    }
+
+    private static class PendingWrite {
+        final Protos.Wallet proto;
+        final boolean snapshot;
+
+        PendingWrite(Protos.Wallet proto, boolean snapshot) {
+            this.proto = proto;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in, see {@link #setJournaled(boolean)}. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Reads the given wallet file and applies its journal, if it has one. Damaged records at the end of the journal,
+     * as a crash while appending leaves, are ignored.
+     */
+    public static Protos.Wallet readWalletProto(File walletFile) throws IOException {
+        Protos.Wallet walletProto;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            walletProto = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+        File journal = getJournalFile(walletFile);
+        if (journal.exists()) {
+            stream = new BufferedInputStream(new FileInputStream(journal));
+            try {
+                walletProto = WalletProtobufSerializer.replayJournal(walletProto, stream);
+            } finally {
+                stream.close();
+            }
+        }
+        return walletProto;
+    }
 }
@@ -17,6 +17,7 @@
 package com.google.infinitecoinj.core;
 
 
+import com.google.infinitecoinj.net.BufferPool;
 import com.google.infinitecoinj.params.MainNetParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
@@ -249,6 +250,45 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testSerializeToPooledBuffer() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        BufferPool pool = new BufferPool(1);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT, new ECKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        BufferPool.PooledBuffer buffer = bs.serialize(tx, pool);
+        assertArrayEquals(bos.toByteArray(), toByteArray(buffer));
+        buffer.retain();
+        buffer.release();
+        assertEquals(0, pool.getFreeBufferCount());
+        buffer.release();
+        assertEquals(1, pool.getFreeBufferCount());
+        // The released buffer is handed out again.
+        buffer = bs.serialize(tx, pool);
+        assertEquals(0, pool.getFreeBufferCount());
+        buffer.release();
+
+        // A message bigger than the first buffer tried.
+        Transaction big = new Transaction(params);
+        for (int i = 0; i < 200; i++)
+            big.addOutput(Utils.CENT, new ECKey());
+        bos = new ByteArrayOutputStream();
+        bs.serialize(big, bos);
+        buffer = bs.serialize(big, pool);
+        assertArrayEquals(bos.toByteArray(), toByteArray(buffer));
+        buffer.release();
+    }
+
+    private static byte[] toByteArray(BufferPool.PooledBuffer buffer) {
+        ByteBuffer view = buffer.view();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
@@ -174,6 +174,75 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInOrder() throws Exception {
+        // Blocks arriving backwards, with a fork off b2, all connect once b1 does.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block b3fork = b2.createNextBlock(new ECKey().toAddress(unitTestParams));
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(b3fork));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b2));
+        assertEquals(b2.getHash(), chain.getOrphanRoot(b4.getHash()).getHash());
+        assertTrue(chain.add(b1));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertFalse(chain.isOrphan(b3fork.getHash()));
+        assertNotNull(blockStore.get(b3fork.getHash()));
+    }
+
+    @Test
+    public void orphanFailingToConnectKeepsItsSiblings() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        // A sibling of b2 with the wrong difficulty, which is only found out when it connects.
+        Block b2bad = b1.createNextBlock(new ECKey().toAddress(unitTestParams));
+        b2bad.setDifficultyTarget(b2bad.getDifficultyTarget() - 1);
+        b2bad.solve();
+        assertFalse(chain.add(b2bad));
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        try {
+            chain.add(b1);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        // The orphans after the bad one were left waiting, and connect when b2 turns up again.
+        assertTrue(chain.isOrphan(b2.getHash()));
+        assertTrue(chain.isOrphan(b3.getHash()));
+        assertTrue(chain.add(b2));
+        assertEquals(b3.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertFalse(chain.isOrphan(b3.getHash()));
+    }
+
+    @Test
+    public void orphanPoolLimit() throws Exception {
+        // Room for two headers.
+        chain.setMaxOrphanBlocksSize(Block.HEADER_SIZE * 2);
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        // The oldest was dropped to make room.
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertTrue(chain.isOrphan(b3.getHash()));
+        assertTrue(chain.isOrphan(b4.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        // Once it's downloaded again, the rest connect.
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertFalse(chain.isOrphan(b4.getHash()));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.store.MemoryBlockStore;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockDownloadSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockChain chain;
+    private BlockDownloadScheduler scheduler;
+    private List<Block> blocks;
+    private List<Block> downloaded;
+
+    // Records what it's asked to send, rather than having a connection.
+    private class TestPeer extends Peer {
+        final List<Message> sent = new ArrayList<Message>();
+        final long bestHeight;
+        boolean closed;
+
+        TestPeer(int port, long bestHeight) throws Exception {
+            super(params, new VersionMessage(params, 0), chain,
+                    new PeerAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), port));
+            this.bestHeight = bestHeight;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public long getBestHeight() {
+            return bestHeight;
+        }
+
+        @Override
+        void invokeOnBlocksDownloaded(Block block) {
+            downloaded.add(block);
+        }
+
+        // Returns the hashes of the blocks asked for since the last call.
+        List<Sha256Hash> takeRequestedBlocks() {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            for (Message message : sent) {
+                if (message instanceof GetDataMessage) {
+                    for (InventoryItem item : ((GetDataMessage) message).getItems()) {
+                        assertEquals(InventoryItem.Type.Block, item.type);
+                        hashes.add(item.hash);
+                    }
+                }
+            }
+            sent.clear();
+            return hashes;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        scheduler = new BlockDownloadScheduler(params, chain);
+        Address coinbaseTo = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < 40; i++) {
+            prev = prev.createNextBlock(coinbaseTo, prev.getTimeSeconds() + 60);
+            blocks.add(prev);
+        }
+        downloaded = new ArrayList<Block>();
+    }
+
+    private List<Block> headers(int from, int to) {
+        List<Block> headers = new ArrayList<Block>();
+        for (Block block : blocks.subList(from, to))
+            headers.add(block.cloneAsHeader());
+        return headers;
+    }
+
+    private Block block(Sha256Hash hash) {
+        for (Block block : blocks)
+            if (block.getHash().equals(hash))
+                return block;
+        throw new AssertionError(hash);
+    }
+
+    @Test
+    public void downloadsAcrossPeersInOrder() throws Exception {
+        TestPeer peer1 = new TestPeer(1, 40);
+        TestPeer peer2 = new TestPeer(2, 20);
+        scheduler.addPeer(peer1);
+        scheduler.addPeer(peer2);
+        scheduler.requestHeaders(peer1);
+        GetHeadersMessage getheaders = (GetHeadersMessage) peer1.sent.remove(0);
+        assertEquals(params.getGenesisBlock().getHash(), getheaders.getLocator().get(0));
+
+        scheduler.receiveHeaders(peer1, headers(0, 40));
+        List<Sha256Hash> requested1 = peer1.takeRequestedBlocks();
+        List<Sha256Hash> requested2 = peer2.takeRequestedBlocks();
+        // The blocks are shared out, but no peer is asked for more than its limit or for blocks above its chain height.
+        assertEquals(BlockDownloadScheduler.MAX_BLOCKS_IN_FLIGHT_PER_PEER, requested1.size());
+        assertEquals(10, requested2.size());
+        for (Sha256Hash hash : requested2)
+            assertTrue(blocks.indexOf(block(hash)) < 20);
+        assertEquals(blocks.get(0).getHash(), requested1.get(0));
+
+        // Blocks arriving ahead of their parents wait for them.
+        for (Sha256Hash hash : requested2)
+            assertTrue(scheduler.receiveBlock(peer2, block(hash)));
+        assertEquals(0, chain.getBestChainHeight());
+        assertTrue(peer2.takeRequestedBlocks().isEmpty());
+
+        // As peer 1 delivers it's asked for the rest.
+        List<Sha256Hash> requested = requested1;
+        while (!requested.isEmpty()) {
+            for (Sha256Hash hash : requested)
+                assertTrue(scheduler.receiveBlock(peer1, block(hash)));
+            requested = peer1.takeRequestedBlocks();
+        }
+        assertEquals(40, chain.getBestChainHeight());
+        assertEquals(blocks, downloaded);
+
+        // A block that isn't part of the download is left to the peer.
+        Block other = blocks.get(39).createNextBlock(null);
+        assertFalse(scheduler.receiveBlock(peer1, other));
+    }
+
+    @Test
+    public void stalledRequestsMoveToAnotherPeer() throws Exception {
+        TestPeer peer1 = new TestPeer(1, 40);
+        TestPeer peer2 = new TestPeer(2, 40);
+        scheduler.addPeer(peer1);
+        scheduler.addPeer(peer2);
+        scheduler.requestHeaders(peer1);
+        peer1.sent.clear();
+        scheduler.receiveHeaders(peer1, headers(0, 2));
+        List<Sha256Hash> requested1 = peer1.takeRequestedBlocks();
+        List<Sha256Hash> requested2 = peer2.takeRequestedBlocks();
+        assertEquals(1, requested1.size());
+        assertEquals(1, requested2.size());
+
+        // Peer 2 delivers, peer 1 doesn't.
+        scheduler.receiveBlock(peer2, block(requested2.get(0)));
+        Utils.rollMockClock(5);
+        scheduler.checkForStalls();
+        assertTrue(peer2.takeRequestedBlocks().isEmpty());
+        Utils.rollMockClock(6);
+        scheduler.checkForStalls();
+        assertEquals(requested1, peer2.takeRequestedBlocks());
+        assertTrue(peer1.takeRequestedBlocks().isEmpty());
+
+        // The block is accepted from whichever peer sends it first.
+        assertTrue(scheduler.receiveBlock(peer1, block(requested1.get(0))));
+        assertEquals(2, chain.getBestChainHeight());
+
+        // Requests to a peer that goes away are given to another.
+        scheduler.receiveHeaders(peer1, headers(2, 3));
+        assertEquals(1, peer1.takeRequestedBlocks().size());
+        scheduler.removePeer(peer1);
+        assertTrue(peer2.takeRequestedBlocks().isEmpty());
+        scheduler.sendRequests();
+        assertEquals(1, peer2.takeRequestedBlocks().size());
+    }
+
+    @Test
+    public void headersBeforeFastCatchupAreNotDownloaded() throws Exception {
+        TestPeer peer = new TestPeer(1, 40);
+        scheduler.addPeer(peer);
+        scheduler.setDownloadParameters(blocks.get(10).getTimeSeconds(), false);
+        scheduler.requestHeaders(peer);
+        peer.sent.clear();
+        scheduler.receiveHeaders(peer, headers(0, 12));
+        assertEquals(10, chain.getBestChainHeight());
+        assertEquals(2, peer.takeRequestedBlocks().size());
+    }
+
+    // Headers for the first two blocks, then a block with the wrong difficulty, which only the chain notices, and one
+    // building on it.
+    private List<Block> headersWithBadBlock() {
+        Block bad = blocks.get(1).createNextBlock(new ECKey().toAddress(params), blocks.get(1).getTimeSeconds() + 60);
+        bad.setDifficultyTarget(bad.getDifficultyTarget() - 1);
+        bad.solve();
+        blocks.set(2, bad);
+        blocks.set(3, bad.createNextBlock(new ECKey().toAddress(params), bad.getTimeSeconds() + 60));
+        return headers(0, 4);
+    }
+
+    @Test
+    public void badBlockIsDroppedAndItsSenderDisconnected() throws Exception {
+        TestPeer peer1 = new TestPeer(1, 40);
+        TestPeer peer2 = new TestPeer(2, 40);
+        scheduler.addPeer(peer1);
+        scheduler.addPeer(peer2);
+        scheduler.requestHeaders(peer1);
+        peer1.sent.clear();
+        List<Block> headers = headersWithBadBlock();
+        scheduler.receiveHeaders(peer1, headers);
+        // The blocks alternate between the peers.
+        assertEquals(Lists.newArrayList(blocks.get(0).getHash(), blocks.get(2).getHash()),
+                peer1.takeRequestedBlocks());
+        assertEquals(Lists.newArrayList(blocks.get(1).getHash(), blocks.get(3).getHash()),
+                peer2.takeRequestedBlocks());
+        scheduler.receiveBlock(peer2, blocks.get(3));
+        scheduler.receiveBlock(peer2, blocks.get(1));
+        scheduler.receiveBlock(peer1, blocks.get(0));
+        assertEquals(2, chain.getBestChainHeight());
+        assertFalse(peer1.closed);
+
+        scheduler.receiveBlock(peer1, blocks.get(2));
+        assertEquals(2, chain.getBestChainHeight());
+        assertTrue(peer1.closed);
+        assertFalse(peer2.closed);
+        scheduler.removePeer(peer1);
+        // Headers are fetched from the other peer now, and the bad block isn't asked for again.
+        assertTrue(peer2.sent.remove(0) instanceof GetHeadersMessage);
+        scheduler.receiveHeaders(peer2, headers);
+        assertTrue(peer2.takeRequestedBlocks().isEmpty());
+    }
+
+    @Test
+    public void badHeaderBeforeFastCatchupSwitchesHeadersPeer() throws Exception {
+        TestPeer peer1 = new TestPeer(1, 40);
+        TestPeer peer2 = new TestPeer(2, 40);
+        scheduler.addPeer(peer1);
+        scheduler.addPeer(peer2);
+        scheduler.setDownloadParameters(blocks.get(10).getTimeSeconds(), false);
+        scheduler.requestHeaders(peer1);
+        peer1.sent.clear();
+        List<Block> headers = headersWithBadBlock();
+        scheduler.receiveHeaders(peer1, headers);
+        assertEquals(2, chain.getBestChainHeight());
+        assertTrue(peer1.closed);
+        scheduler.removePeer(peer1);
+        // Rather than asking the same peer again, headers are fetched from the other one.
+        assertTrue(peer1.sent.isEmpty());
+        assertTrue(peer2.sent.remove(0) instanceof GetHeadersMessage);
+        // Which sends the bad header too, so isn't asked again either.
+        scheduler.receiveHeaders(peer2, headers);
+        assertEquals(2, chain.getBestChainHeight());
+        assertTrue(peer2.sent.isEmpty());
+    }
+
+    @Test
+    public void forkedHeadersReplaceQueued() throws Exception {
+        TestPeer peer = new TestPeer(1, 40);
+        scheduler.addPeer(peer);
+        scheduler.requestHeaders(peer);
+        peer.sent.clear();
+        scheduler.receiveHeaders(peer, headers(0, 5));
+        assertEquals(5, peer.takeRequestedBlocks().size());
+        // The peer went over to a fork from block 2.
+        Block fork = blocks.get(2).createNextBlock(new ECKey().toAddress(params));
+        scheduler.receiveHeaders(peer, Lists.newArrayList(fork.cloneAsHeader()));
+        assertEquals(Lists.newArrayList(fork.getHash()), peer.takeRequestedBlocks());
+        for (int i = 0; i < 3; i++)
+            scheduler.receiveBlock(peer, blocks.get(i));
+        scheduler.receiveBlock(peer, fork);
+        assertEquals(fork.getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unconnectedHeaders() throws Exception {
+        TestPeer peer = new TestPeer(1, 40);
+        scheduler.addPeer(peer);
+        scheduler.requestHeaders(peer);
+        scheduler.receiveHeaders(peer, headers(1, 5));
+    }
+}
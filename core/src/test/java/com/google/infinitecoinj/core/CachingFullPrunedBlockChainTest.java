@@ -0,0 +1,85 @@
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.store.BlockStoreException;
+import com.google.infinitecoinj.store.CachingFullPrunedBlockStore;
+import com.google.infinitecoinj.store.FullPrunedBlockStore;
+import com.google.infinitecoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore over a MemoryFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        // Write back after every block so that undo blocks are pruned as the tests expect.
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 1, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        MemoryFullPrunedBlockStore underlying = new MemoryFullPrunedBlockStore(params, 10);
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1000, Long.MAX_VALUE);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        // The spends below aren't signed, only the movement of outputs through the cache matters here.
+        chain.setRunScripts(false);
+        ECKey outKey = new ECKey();
+
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        // Spend the first coinbase and then its output again in the next block.
+        Transaction spend = new Transaction(params);
+        spend.addOutput(new TransactionOutput(params, spend, Utils.toNanoCoins(50, 0), new byte[] {}));
+        spend.addInput(coinbase.getOutput(0));
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(spend);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        Transaction spend2 = new Transaction(params);
+        spend2.addOutput(new TransactionOutput(params, spend2, Utils.toNanoCoins(50, 0), new byte[] {}));
+        spend2.addInput(spend.getOutput(0));
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(spend2);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+
+        // Nothing has reached the underlying store yet apart from the headers.
+        assertEquals(rollingBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(rollingBlock.getHash(), underlying.getChainHead().getHeader().getHash());
+        assertEquals(params.getGenesisBlock().getHash(), underlying.getVerifiedChainHead().getHeader().getHash());
+        assertNull(underlying.getTransactionOutput(coinbase.getHash(), 0));
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNull(store.getTransactionOutput(spend.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(spend.getHash(), 1));
+        assertNotNull(store.getTransactionOutput(spend2.getHash(), 0));
+        assertNotNull(store.getUndoBlock(rollingBlock.getHash()));
+
+        // The output created and spent between write backs is never written at all.
+        store.flush();
+        assertEquals(0, store.getDirtyOutputCount());
+        assertEquals(rollingBlock.getHash(), underlying.getVerifiedChainHead().getHeader().getHash());
+        assertNull(underlying.getTransactionOutput(spend.getHash(), 0));
+        assertNotNull(underlying.getTransactionOutput(spend2.getHash(), 0));
+        assertTrue(underlying.hasUnspentOutputs(spend2.getHash(), 1));
+        assertFalse(underlying.hasUnspentOutputs(coinbase.getHash(), 1));
+        store.close();
+    }
+}
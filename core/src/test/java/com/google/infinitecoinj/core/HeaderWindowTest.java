@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.store.BlockStoreException;
+import com.google.infinitecoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeaderWindowTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private Address coinbaseTo;
+    private int lookups;
+    private MemoryBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        coinbaseTo = new ECKey().toAddress(params);
+        store = new MemoryBlockStore(params) {
+            @Override
+            public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                lookups++;
+                return super.get(hash);
+            }
+        };
+    }
+
+    private StoredBlock extend(StoredBlock prev, int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(coinbaseTo));
+            store.put(prev);
+        }
+        return prev;
+    }
+
+    @Test
+    public void rolls() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock head = extend(genesis, 3);
+        HeaderWindow window = new HeaderWindow(5);
+        // The first time, the window is filled from the store, as far back as the genesis block.
+        window.setHead(head, store);
+        assertEquals(genesis, window.get(0));
+        assertEquals(head, window.get(3));
+        assertEquals(genesis, window.getAncestor(head, 0));
+        assertNull(window.get(4));
+        assertNull(window.get(-1));
+
+        // Blocks on top don't need the store, and the oldest drop out.
+        lookups = 0;
+        StoredBlock cursor = head;
+        for (int i = 0; i < 10; i++) {
+            cursor = extend(cursor, 1);
+            window.setHead(cursor, store);
+        }
+        assertEquals(0, lookups);
+        assertEquals(cursor, window.get(13));
+        assertEquals(cursor.getPrev(store), window.getAncestor(cursor, 12));
+        assertNotNull(window.get(9));
+        assertNull(window.get(8));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock split = extend(genesis, 5);
+        StoredBlock oldHead = extend(split, 3);
+        StoredBlock newHead = extend(split, 4);
+        HeaderWindow window = new HeaderWindow(20);
+        window.setHead(oldHead, store);
+        assertEquals(oldHead, window.getAncestor(oldHead, 8));
+        assertNull(window.getAncestor(newHead, 6));
+
+        window.setHead(newHead, store);
+        assertEquals(newHead, window.get(9));
+        assertEquals(newHead.getPrev(store), window.getAncestor(newHead, 8));
+        assertEquals(split, window.getAncestor(newHead, 5));
+        assertEquals(genesis, window.getAncestor(newHead, 0));
+        // Blocks of the old chain are no longer on the best chain.
+        assertNull(window.getAncestor(oldHead, 5));
+
+        // Going back to a chain that's lower, as a block store rolled back would.
+        window.setHead(split, store);
+        assertEquals(split, window.get(5));
+        assertNull(window.get(6));
+        assertNull(window.getAncestor(newHead, 5));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorkPreVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ProofOfWorkPreVerifier preVerifier;
+    private List<Block> seen;
+    private BlockChain chain;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        preVerifier = new ProofOfWorkPreVerifier(3);
+        seen = new ArrayList<Block>();
+        // Records every block the chain is asked to verify.
+        chain = new BlockChain(params, new MemoryBlockStore(params)) {
+            @Override
+            public boolean add(Block block) throws VerificationException, PrunedException {
+                seen.add(block);
+                return super.add(block);
+            }
+        };
+        Address coinbaseTo = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        preVerifier.shutdown();
+    }
+
+    @Test
+    public void validBlocksAreAdded() throws Exception {
+        assertEquals(-1, preVerifier.verifyProofOfWork(blocks));
+        assertEquals(10, preVerifier.addAll(chain, blocks));
+        assertEquals(blocks, seen);
+        assertEquals(10, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void badProofOfWorkIsRejectedBeforeTheChain() throws Exception {
+        Block bad = blocks.get(6).cloneAsHeader();
+        do {
+            bad.setNonce(bad.getNonce() + 1);
+        } while (bad.hasValidProofOfWork());
+        List<Block> batch = new ArrayList<Block>(blocks.subList(0, 6));
+        batch.add(bad);
+        batch.addAll(blocks.subList(7, 10));
+        assertEquals(6, preVerifier.verifyProofOfWork(batch));
+        try {
+            preVerifier.addAll(chain, batch);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().startsWith("Hash is higher than target"));
+        }
+        // The blocks before the bad one went in, the bad one and those after it never reached the chain.
+        assertEquals(blocks.subList(0, 6), seen);
+        assertEquals(6, chain.getBestChainHeight());
+    }
+}
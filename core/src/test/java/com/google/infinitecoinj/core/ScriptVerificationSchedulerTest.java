@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.crypto.TransactionSignature;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.script.Script;
+import com.google.infinitecoinj.script.ScriptBuilder;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int NUM_INPUTS = 12;
+
+    private ScriptVerificationScheduler scheduler;
+    private List<ECKey> keys;
+    private List<Script> prevOutScripts;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new ScriptVerificationScheduler(3);
+        keys = new ArrayList<ECKey>();
+        prevOutScripts = new ArrayList<Script>();
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            prevOutScripts.add(ScriptBuilder.createOutputScript(key));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    // Spends an output to each key, signing the inputs with a mix of sighash types.
+    private Transaction spend() throws Exception {
+        Transaction prev = new Transaction(params);
+        for (Script script : prevOutScripts)
+            prev.addOutput(Utils.CENT, script);
+        Transaction tx = new Transaction(params);
+        for (TransactionOutput output : prev.getOutputs())
+            tx.addInput(output);
+        for (int i = 0; i < NUM_INPUTS; i++)
+            tx.addOutput(Utils.CENT, new ECKey());
+        Transaction.SigHash[] types = {Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE};
+        List<TransactionSignature> signatures = new ArrayList<TransactionSignature>();
+        for (int i = 0; i < NUM_INPUTS; i++)
+            signatures.add(tx.calculateSignature(i, keys.get(i), prevOutScripts.get(i), types[i % types.length],
+                    i % 4 == 3));
+        for (int i = 0; i < NUM_INPUTS; i++)
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signatures.get(i)));
+        return tx;
+    }
+
+    @Test
+    public void verifiesInputsAgainstTheirOwnOutputs() throws Exception {
+        for (boolean batchSignatures : new boolean[] {true, false}) {
+            scheduler.setBatchSignatureVerification(batchSignatures);
+            ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+            batch.add(spend(), prevOutScripts, true);
+            batch.add(spend(), prevOutScripts, true);
+            assertEquals(2 * NUM_INPUTS, batch.size());
+            batch.verify();
+
+            // The same scripts given in another order don't match up with the inputs.
+            batch = scheduler.newBatch();
+            batch.add(spend(), Lists.reverse(prevOutScripts), true);
+            try {
+                batch.verify();
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+        }
+        assertEquals(2, scheduler.getBlocksVerified());
+        assertEquals(4 * NUM_INPUTS, scheduler.getInputsVerified());
+    }
+
+    @Test
+    public void failingInputFailsTheBatch() throws Exception {
+        for (boolean batchSignatures : new boolean[] {true, false}) {
+            scheduler.setBatchSignatureVerification(batchSignatures);
+            ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+            batch.add(spend(), prevOutScripts, true);
+            // The last input of the second transaction is signed by the wrong key.
+            Transaction bad = spend();
+            TransactionSignature wrong = bad.calculateSignature(NUM_INPUTS - 1, keys.get(0),
+                    prevOutScripts.get(NUM_INPUTS - 1), Transaction.SigHash.ALL, false);
+            bad.getInput(NUM_INPUTS - 1).setScriptSig(ScriptBuilder.createInputScript(wrong));
+            batch.add(bad, prevOutScripts, true);
+            batch.add(spend(), prevOutScripts, true);
+            try {
+                batch.verify();
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+        }
+        assertEquals(0, scheduler.getBlocksVerified());
+
+        // The scheduler carries on with the next block.
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        batch.add(spend(), prevOutScripts, true);
+        batch.verify();
+        assertEquals(1, scheduler.getBlocksVerified());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.infinitecoinj.script.ScriptOpCodes.OP_CHECKSIG;
+import static com.google.infinitecoinj.script.ScriptOpCodes.OP_CODESEPARATOR;
+import static org.junit.Assert.*;
+
+public class SignatureHasherTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final Random random = new Random(42);
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = new Transaction(params);
+        for (int i = 0; i < 20; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = new TransactionInput(params, tx, new byte[0],
+                    new TransactionOutPoint(params, random.nextInt(4), new Sha256Hash(hash)));
+            // Some inputs are signed already, their scripts mustn't affect the hashes.
+            if (i % 3 == 0)
+                input.setScriptBytes(new byte[] {1, 2, 3});
+            if (i % 5 == 0)
+                input.setSequenceNumber(i);
+            tx.addInput(input);
+        }
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        tx.addOutput(Utils.toNanoCoins(2, 0), new ECKey().toAddress(params));
+        tx.setLockTime(1234);
+        connectedScript = new ScriptBuilder().op(OP_CODESEPARATOR).data(new ECKey().getPubKey()).op(OP_CODESEPARATOR)
+                .op(OP_CHECKSIG).build().getProgram();
+    }
+
+    @Test
+    public void matchesSimplifiedTransaction() throws Exception {
+        byte[] serialized = tx.bitcoinSerialize();
+        for (byte type : new byte[] {1, 0, 0x41, 0x7f}) {
+            assertTrue(SignatureHasher.supports(type));
+            SignatureHasher hasher = new SignatureHasher(tx);
+            // In order, then backwards to exercise restarting the midstate.
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                assertEquals(tx.hashForSignatureBySimplifying(i, connectedScript, type),
+                        hasher.hashForSignature(i, connectedScript, type));
+            for (int i = tx.getInputs().size() - 1; i >= 0; i--)
+                assertEquals(tx.hashForSignatureBySimplifying(i, connectedScript, type),
+                        tx.hashForSignature(i, connectedScript, type));
+        }
+        assertTrue(Arrays.equals(serialized, tx.bitcoinSerialize()));
+    }
+
+    @Test
+    public void unsupportedTypes() throws Exception {
+        assertFalse(SignatureHasher.supports((byte) 2));
+        assertFalse(SignatureHasher.supports((byte) 3));
+        assertFalse(SignatureHasher.supports((byte) 0x81));
+        assertFalse(SignatureHasher.supports((byte) 0x83));
+        try {
+            new SignatureHasher(tx).hashForSignature(0, connectedScript, (byte) 0x81);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void changedTransaction() throws Exception {
+        Sha256Hash hash = tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL, false);
+        tx.getInput(2).setSequenceNumber(5);
+        Sha256Hash changed = tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL, false);
+        assertFalse(hash.equals(changed));
+        assertEquals(tx.hashForSignatureBySimplifying(1, connectedScript, (byte) 1), changed);
+        tx.getOutput(0).setValue(BigInteger.ONE);
+        assertEquals(tx.hashForSignatureBySimplifying(1, connectedScript, (byte) 1),
+                tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL, false));
+    }
+}
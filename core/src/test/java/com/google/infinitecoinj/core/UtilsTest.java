@@ -20,6 +20,14 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.infinitecoinj.core.Utils.*;
 import static org.junit.Assert.*;
@@ -117,4 +125,53 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDigests() {
+        byte[] input = "hello world".getBytes();
+        String single = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+        String dbl = "bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b74423";
+        assertEquals(single, bytesToHexString(singleDigest(input)));
+        assertEquals(dbl, bytesToHexString(doubleDigest(input)));
+
+        byte[] padded = new byte[input.length + 4];
+        System.arraycopy(input, 0, padded, 2, input.length);
+        assertEquals(single, bytesToHexString(singleDigest(padded, 2, input.length)));
+        assertEquals(dbl, bytesToHexString(doubleDigest(padded, 2, input.length)));
+        assertEquals(dbl, bytesToHexString(doubleDigestTwoBuffers(input, 0, 5, input, 5, input.length - 5)));
+
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 2, input.length);
+        assertEquals(single, bytesToHexString(singleDigest(buffer)));
+        assertFalse(buffer.hasRemaining());
+        ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+        direct.put(input).flip();
+        assertEquals(dbl, bytesToHexString(doubleDigest(direct)));
+        assertFalse(direct.hasRemaining());
+    }
+
+    @Test
+    public void testDigestsFromManyThreads() throws Exception {
+        final byte[] input = new byte[250];
+        final byte[] expected = doubleDigest(input);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!Arrays.equals(expected, doubleDigest(input)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.core;
+
+import com.google.infinitecoinj.core.TransactionConfidence.ConfidenceType;
+import com.google.infinitecoinj.utils.TestUtils;
+import com.google.infinitecoinj.utils.TestWithWallet;
+import com.google.infinitecoinj.wallet.DefaultCoinSelector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static com.google.infinitecoinj.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the balances the wallet keeps up to date against those worked out from scratch, as transactions arrive, are
+ * spent, die and move between chains.
+ */
+public class WalletBalanceTest extends TestWithWallet {
+    private Address someoneElse;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        someoneElse = new ECKey().toAddress(params);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private Block addBlock(Block prev, Address coinbaseTo, Transaction... transactions) throws Exception {
+        Block block = prev.createNextBlock(coinbaseTo);
+        for (Transaction tx : transactions) {
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            block.addTransaction(tx);
+        }
+        block.solve();
+        assertTrue(chain.add(block));
+        return block;
+    }
+
+    private void assertBalancesConsistent() {
+        assertTrue(wallet.isBalanceConsistent());
+        // A sub-class of the default selector doesn't get the cached balance.
+        BigInteger available = wallet.getBalance(new DefaultCoinSelector() {});
+        assertEquals(available, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+    }
+
+    @Test
+    public void balancesFollowTheWallet() throws Exception {
+        // An immature coinbase counts towards the estimated balance only.
+        Block b1 = params.getGenesisBlock().createNextBlockWithCoinbase(myKey.getPubKey());
+        assertTrue(chain.add(b1));
+        assertBalancesConsistent();
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertTrue(wallet.getBalance(Wallet.BalanceType.ESTIMATED).signum() > 0);
+
+        // Receive, first pending and then in a block.
+        // The amounts are well above the dust limit, so that the spend below gets change.
+        BigInteger value = Utils.toNanoCoins(3000, 0);
+        Transaction received = createFakeTx(params, value, myAddress);
+        wallet.receivePending(received, null);
+        assertBalancesConsistent();
+        Block b2 = addBlock(b1, someoneElse, received);
+        assertBalancesConsistent();
+        assertEquals(value, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+
+        // Spend, leaving change.
+        Transaction spend = wallet.createSend(someoneElse, Utils.toNanoCoins(1000, 0));
+        wallet.commitTx(spend);
+        assertBalancesConsistent();
+        Block head = addBlock(b2, someoneElse, spend);
+        assertBalancesConsistent();
+        assertEquals(Utils.toNanoCoins(2000, 0), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+
+        // Confidence changes as blocks arrive, until the coinbase is mature.
+        for (int i = 0; i < params.getSpendableCoinbaseDepth(); i++) {
+            head = addBlock(head, someoneElse);
+            assertBalancesConsistent();
+        }
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+
+        // A pending payment to us is killed by a double spend in a block.
+        TestUtils.DoubleSpends doubleSpends = TestUtils.createFakeDoubleSpendTxns(params, myAddress);
+        BigInteger estimated = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+        wallet.receivePending(doubleSpends.t1, null);
+        assertBalancesConsistent();
+        addBlock(head, someoneElse, doubleSpends.t2);
+        assertBalancesConsistent();
+        assertEquals(ConfidenceType.DEAD, wallet.getTransaction(doubleSpends.t1.getHash()).getConfidence()
+                .getConfidenceType());
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // A longer chain from b2 takes the spend and the maturing blocks away. The spend goes back to pending and the
+        // coinbase is immature again.
+        Block fork = b2;
+        for (int i = 0; i < params.getSpendableCoinbaseDepth() + 3; i++) {
+            fork = fork.createNextBlock(someoneElse);
+            chain.add(fork);
+            assertBalancesConsistent();
+        }
+        assertEquals(fork.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(ConfidenceType.PENDING, wallet.getTransaction(spend.getHash()).getConfidence()
+                .getConfidenceType());
+    }
+
+    @Test
+    public void killedSpendReturnsItsInputs() throws Exception {
+        Block head = addBlock(params.getGenesisBlock(), someoneElse,
+                createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress));
+        head = addBlock(head, someoneElse, createFakeTx(params, Utils.toNanoCoins(2, 0), myAddress));
+        assertBalancesConsistent();
+        // Spend everything, then see a block with a double spend of only one of the coins.
+        Transaction send1 = wallet.createSend(someoneElse, Utils.toNanoCoins(2, 90));
+        Transaction send2 = wallet.createSend(someoneElse, Utils.toNanoCoins(1, 0));
+        send2 = new Transaction(params, send2.bitcoinSerialize());
+        wallet.commitTx(send1);
+        assertBalancesConsistent();
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        addBlock(head, someoneElse, send2);
+        assertBalancesConsistent();
+        assertEquals(Utils.toNanoCoins(2, 0), wallet.getBalance());
+    }
+}
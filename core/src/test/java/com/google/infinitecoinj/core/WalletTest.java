@@ -18,6 +18,7 @@ package com.google.infinitecoinj.core;
 
 import com.google.infinitecoinj.core.Transaction.SigHash;
 import com.google.infinitecoinj.core.Wallet.SendRequest;
+import com.google.infinitecoinj.wallet.CoinSelection;
 import com.google.infinitecoinj.wallet.DefaultCoinSelector;
 import com.google.infinitecoinj.wallet.RiskAnalysis;
 import com.google.infinitecoinj.crypto.KeyCrypter;
@@ -34,6 +35,7 @@ import com.google.infinitecoinj.wallet.WalletFiles;
 import com.google.infinitecoinj.wallet.WalletTransaction;
 import com.google.infinitecoinj.wallet.WalletTransaction.Pool;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import org.infinitecoinj.wallet.Protos;
@@ -47,12 +49,18 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -532,7 +540,8 @@ public class WalletTest extends TestWithWallet {
         Threading.waitForUserCode();
         assertEquals(bitcoinValueToFriendlyString(wallet.getBalance()), "0.90");
         assertEquals(null, txn[0]);
-        assertEquals(2, confTxns.size());
+        // Only send1 appearing in the chain is announced, not tx1 getting deeper.
+        assertEquals(1, confTxns.size());
         assertEquals(txn[1].getHash(), send1.getHash());
         assertEquals(bitcoinValueToFriendlyString(bigints[2]), "1.00");
         assertEquals(bitcoinValueToFriendlyString(bigints[3]), "0.90");
@@ -547,7 +556,69 @@ public class WalletTest extends TestWithWallet {
         confTxns.clear();
         wallet.notifyNewBestBlock(b4.storedBlock);
         Threading.waitForUserCode();
-        assertEquals(3, confTxns.size());
+        // No transaction reached a depth that is announced.
+        assertEquals(0, confTxns.size());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        // But tx1 reaching the depth at which coinbases mature is.
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, confTxns.size());
+        assertEquals(tx1, confTxns.getFirst());
+    }
+
+    @Test
+    public void depthThresholds() throws Exception {
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        ListenableFuture<Transaction> depthFuture = tx1.getConfidence().getDepthFuture(3);
+        wallet.addDepthThreshold(2);
+        Threading.waitForUserCode();
+        // Record the depths at which tx1 is announced, besides the one at which it appears.
+        List<Integer> depths = Lists.newArrayList();
+        for (int i = 0; i < 7; i++) {
+            confTxns.clear();
+            BigInteger work = tx1.getConfidence().getWorkDone();
+            StoredBlock block = createFakeBlock(blockStore).storedBlock;
+            wallet.notifyNewBestBlock(block);
+            Threading.waitForUserCode();
+            // Depth and work are worked out from the blocks the wallet has seen, whether announced or not.
+            assertEquals(i + 2, tx1.getConfidence().getDepthInBlocks());
+            assertEquals(work.add(block.getHeader().getWork()), tx1.getConfidence().getWorkDone());
+            if (!confTxns.isEmpty())
+                depths.add(tx1.getConfidence().getDepthInBlocks());
+            assertEquals(i >= 1, depthFuture.isDone());
+        }
+        // The added threshold, the depth future's, coinbase maturity and the default.
+        assertEquals(Arrays.asList(2, 3, 5, 6), depths);
+    }
+
+    @Test
+    public void javaSerializedConfidenceKeepsItsDepth() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tx1);
+        out.close();
+        // The wallet's counter, and every transaction it schedules, stays behind.
+        assertFalse(new String(bytes.toByteArray(), "ISO-8859-1").contains(DepthCounter.class.getName()));
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Transaction tx2 = (Transaction) in.readObject();
+        // The copy has the depth the counter added up to, but no longer follows it.
+        assertEquals(3, tx2.getConfidence().getDepthInBlocks());
+        assertEquals(tx1.getConfidence().getWorkDone(), tx2.getConfidence().getWorkDone());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(3, tx2.getConfidence().getDepthInBlocks());
     }
 
     @Test
@@ -1330,6 +1401,37 @@ public class WalletTest extends TestWithWallet {
         assertTrue("Wallet is not an encrypted wallet", encryptedWallet.getEncryptionType() == EncryptionType.ENCRYPTED_SCRYPT_AES);
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey key = new ECKey();
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertFalse(wallet.hasKey(key));
+        wallet.addKey(key);
+        assertEquals(myKey, wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+        assertSame(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertSame(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        // Another object with the same public key, which also can't be added twice.
+        ECKey sameKey = new ECKey(null, key.getPubKey());
+        assertTrue(wallet.hasKey(sameKey));
+        assertEquals(0, wallet.addKeys(Lists.newArrayList(sameKey)));
+        assertTrue(wallet.removeKey(sameKey));
+        assertFalse(wallet.removeKey(sameKey));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertFalse(wallet.isPubKeyMine(key.getPubKey()));
+        assertTrue(wallet.isPubKeyHashMine(myKey.getPubKeyHash()));
+
+        // Encrypting and decrypting replaces the keys, and the lookups must find the new ones.
+        ECKey encryptedKey = encryptedWallet.findKeyFromPubHash(myEncryptedAddress.getHash160());
+        assertTrue(encryptedKey.isEncrypted());
+        encryptedWallet.decrypt(aesKey);
+        ECKey decryptedKey = encryptedWallet.findKeyFromPubHash(myEncryptedAddress.getHash160());
+        assertFalse(decryptedKey.isEncrypted());
+        assertSame(decryptedKey, encryptedWallet.findKeyFromPubKey(encryptedKey.getPubKey()));
+        encryptedWallet.encrypt(keyCrypter, aesKey);
+        assertTrue(encryptedWallet.findKeyFromPubKey(encryptedKey.getPubKey()).isEncrypted());
+    }
+
     @Test
     public void encryptionDecryptionBadPassword() throws Exception {
         // Check the wallet is currently encrypted
@@ -1447,6 +1549,28 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void subclassedDefaultCoinSelector() throws Exception {
+        // A sub-class of DefaultCoinSelector that overrides select() must be used as it is, not in the way the wallet
+        // uses DefaultCoinSelector itself.
+        Transaction older = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction newer = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        SendRequest req = SendRequest.to(new ECKey().toAddress(params), Utils.toNanoCoins(1, 0));
+        req.coinSelector = new DefaultCoinSelector() {
+            @Override
+            public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+                // The newest first.
+                return selectFromSorted(target, Lists.reverse(candidates));
+            }
+        };
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getInputs().size());
+        assertEquals(newer.getHash(), req.tx.getInput(0).getOutpoint().getHash());
+        // Whereas the default selector takes the oldest.
+        assertEquals(older.getHash(), wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(1, 0))
+                .getInput(0).getOutpoint().getHash());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void respectMaxStandardSize() throws Exception {
         // Check that we won't create txns > 100kb. Average tx size is ~220 bytes so this would have to be enormous.
@@ -1463,6 +1587,128 @@ public class WalletTest extends TestWithWallet {
         wallet.completeTx(req);
     }
 
+    @Test
+    public void batchPayments() throws Exception {
+        // Big enough that the change isn't dust.
+        for (int i = 0; i < 4; i++)
+            sendMoneyToWallet(Utils.toNanoCoins(10000, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Map<Address, BigInteger> payments = new LinkedHashMap<Address, BigInteger>();
+        for (int i = 0; i < 10; i++)
+            payments.put(new ECKey().toAddress(params), Utils.toNanoCoins(1, i));
+        List<Transaction> txns = wallet.sendBatchOffline(SendRequest.to(params, payments));
+        // Everything fits in one transaction, with the payments in order and then change.
+        assertEquals(1, txns.size());
+        Transaction tx = txns.get(0);
+        assertEquals(11, tx.getOutputs().size());
+        int i = 0;
+        for (Map.Entry<Address, BigInteger> payment : payments.entrySet()) {
+            assertEquals(payment.getKey(), tx.getOutput(i).getScriptPubKey().getToAddress(params));
+            assertEquals(payment.getValue(), tx.getOutput(i++).getValue());
+        }
+        assertTrue(wallet.getPendingTransactions().contains(tx));
+
+        // Too many payments for one transaction, so they are split over several that spend different coins.
+        payments.clear();
+        for (i = 0; i < 3100; i++)
+            payments.put(new Address(params, Utils.sha256hash160(Ints.toByteArray(i))), Utils.CENT);
+        txns = wallet.sendBatchOffline(SendRequest.to(params, payments));
+        assertTrue(txns.size() > 1);
+        Set<TransactionOutPoint> spent = new HashSet<TransactionOutPoint>();
+        int numPayments = 0;
+        for (Transaction part : txns) {
+            assertTrue(part.bitcoinSerialize().length <= Transaction.MAX_STANDARD_TX_SIZE);
+            assertTrue(wallet.getPendingTransactions().contains(part));
+            for (TransactionInput input : part.getInputs())
+                assertTrue(spent.add(input.getOutpoint()));
+            for (TransactionOutput output : part.getOutputs())
+                if (!output.isMine(wallet))
+                    numPayments++;
+        }
+        assertEquals(3100, numPayments);
+
+        // If there isn't enough money for all the payments, none are made, even those that would fit.
+        payments.clear();
+        for (i = 0; i < 3100; i++)
+            payments.put(new Address(params, Utils.sha256hash160(Ints.toByteArray(i))), Utils.CENT);
+        payments.put(new ECKey().toAddress(params), Utils.toNanoCoins(100000, 0));
+        int numPending = wallet.getPendingTransactions().size();
+        BigInteger balance = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+        try {
+            wallet.sendBatchOffline(SendRequest.to(params, payments));
+            fail();
+        } catch (InsufficientMoneyException e) {
+            // Expected.
+        }
+        assertEquals(numPending, wallet.getPendingTransactions().size());
+        assertEquals(balance, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void parallelSigning() throws Exception {
+        // Sweep an encrypted wallet with many inputs spread over a few keys.
+        List<ECKey> keys = Lists.newArrayList(encryptedWallet.getKeys());
+        for (int i = 0; i < 2; i++)
+            keys.add(encryptedWallet.addNewEncryptedKey(keyCrypter, aesKey));
+        StoredBlock block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)),
+                BigInteger.ONE, 1);
+        for (int i = 0; i < 60; i++) {
+            Transaction tx = createFakeTx(params, Utils.toNanoCoins(1000, 0), keys.get(i % keys.size()).toAddress(params));
+            encryptedWallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(new ECKey().toAddress(params));
+            req.aesKey = wrongAesKey;
+            req.signingExecutor = executor;
+            try {
+                encryptedWallet.completeTx(req);
+                fail();
+            } catch (KeyCrypterException e) {
+                assertEquals("Could not decrypt bytes", e.getMessage());
+            }
+
+            req = Wallet.SendRequest.emptyWallet(new ECKey().toAddress(params));
+            req.aesKey = aesKey;
+            req.signingExecutor = executor;
+            encryptedWallet.completeTx(req);
+            assertEquals(60, req.tx.getInputs().size());
+            for (TransactionInput input : req.tx.getInputs()) {
+                input.getScriptSig().correctlySpends(req.tx, req.tx.getInputs().indexOf(input),
+                        input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void signInputsWithEachSigHashType() throws Exception {
+        // Only SIGHASH_ALL hashes come from the signature hasher, but the other types sign too, in parallel or not.
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (SigHash type : SigHash.values()) {
+                for (ExecutorService signingExecutor : new ExecutorService[]{null, executor}) {
+                    Transaction tx = new Transaction(params);
+                    for (int i = 0; i < 20; i++) {
+                        tx.addInput(createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress).getOutput(0));
+                        tx.addOutput(Utils.toNanoCoins(0, 50), new ECKey().toAddress(params));
+                    }
+                    tx.signInputs(type, wallet, null, signingExecutor);
+                    for (int i = 0; i < tx.getInputs().size(); i++) {
+                        TransactionInput input = tx.getInput(i);
+                        byte[] signature = input.getScriptSig().getChunks().get(0).data;
+                        assertEquals(TransactionSignature.calcSigHashValue(type, false),
+                                signature[signature.length - 1]);
+                        input.getScriptSig().correctlySpends(tx, i,
+                                input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void feeSolverAndCoinSelectionTest() throws Exception {
         // Tests basic fee solving works
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import com.google.infinitecoinj.core.Utils;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ScryptHasherTest {
+    // The Litecoin genesis block header and its proof of work hash.
+    private static final String GENESIS_HEADER =
+            "01000000000000000000000000000000000000000000000000000000000000000000000" +
+            "0d9ced4ed1130f7b7faad9be25323ffafa33232a17c3edf6cfd97bee6bafbdd97b9aa8e4e" +
+            "f0ff0f1ecd513f7c";
+    private static final String GENESIS_POW_HASH =
+            "0000050c34a64b415b6b15b37f2216634b5b1669cb9a2e38d76f7213b0671e00";
+
+    @After
+    public void tearDown() {
+        ScryptHasher.setMode(ScryptHasher.Mode.JAVA);
+    }
+
+    @Test
+    public void genesisHeader() {
+        byte[] hash = ScryptHasher.hash(Hex.decode(GENESIS_HEADER));
+        assertEquals(GENESIS_POW_HASH, Utils.bytesToHexString(Utils.reverseBytes(hash)));
+    }
+
+    @Test
+    public void matchesLibrary() throws Exception {
+        Random random = new Random(1);
+        // Cover keys shorter and longer than the SHA-256 block size as well as the header size.
+        for (int length : new int[] {0, 1, 32, 63, 64, 65, 80, 80, 80, 128}) {
+            byte[] input = new byte[length];
+            random.nextBytes(input);
+            assertArrayEquals(SCrypt.scrypt(input, input, 1024, 1, 1, 32), ScryptHasher.hash(input));
+        }
+    }
+
+    @Test
+    public void range() {
+        byte[] header = Hex.decode(GENESIS_HEADER);
+        byte[] padded = new byte[header.length + 10];
+        System.arraycopy(header, 0, padded, 7, header.length);
+        assertArrayEquals(ScryptHasher.hash(header), ScryptHasher.hash(padded, 7, header.length));
+    }
+
+    @Test
+    public void libraryMode() {
+        byte[] header = Hex.decode(GENESIS_HEADER);
+        byte[] expected = ScryptHasher.hash(header);
+        ScryptHasher.setMode(ScryptHasher.Mode.LIBRARY);
+        assertArrayEquals(expected, ScryptHasher.hash(header));
+        assertArrayEquals(expected, Utils.scryptDigest(Arrays.copyOf(header, header.length)));
+    }
+}
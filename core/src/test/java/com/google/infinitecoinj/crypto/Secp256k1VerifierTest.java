@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import com.google.infinitecoinj.core.ECKey;
+import com.google.infinitecoinj.core.Sha256Hash;
+import com.google.infinitecoinj.core.Utils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Secp256k1VerifierTest {
+    private final Random random = new Random(42);
+
+    @After
+    public void tearDown() {
+        ECKey.setVerificationEngine(ECKey.VerificationEngine.SECP256K1);
+    }
+
+    @Test
+    public void curveConstants() throws Exception {
+        assertEquals(ECKey.CURVE.getN(), Secp256k1Verifier.N);
+        byte[] g = ECKey.publicKeyFromPrivate(BigInteger.ONE, false);
+        assertEquals(Secp256k1Verifier.GX, new BigInteger(1, Arrays.copyOfRange(g, 1, 33)));
+        assertEquals(Secp256k1Verifier.GY, new BigInteger(1, Arrays.copyOfRange(g, 33, 65)));
+        BigInteger three = BigInteger.valueOf(3);
+        assertEquals(BigInteger.ONE, Secp256k1Verifier.BETA.modPow(three, Secp256k1Verifier.P));
+        assertEquals(BigInteger.ONE, Secp256k1Verifier.LAMBDA.modPow(three, Secp256k1Verifier.N));
+        // Multiplying G by lambda only multiplies its x co-ordinate by beta.
+        byte[] lambdaG = ECKey.publicKeyFromPrivate(Secp256k1Verifier.LAMBDA, false);
+        assertEquals(Secp256k1Verifier.BETA.multiply(Secp256k1Verifier.GX).mod(Secp256k1Verifier.P),
+                new BigInteger(1, Arrays.copyOfRange(lambdaG, 1, 33)));
+        assertEquals(Secp256k1Verifier.GY, new BigInteger(1, Arrays.copyOfRange(lambdaG, 33, 65)));
+    }
+
+    @Test
+    public void fieldArithmetic() throws Exception {
+        BigInteger p = Secp256k1Verifier.P;
+        int[] tt = new int[16];
+        int[] z = Secp256k1Field.create();
+        for (int i = 0; i < 1000; i++) {
+            BigInteger x = new BigInteger(256, random).mod(p);
+            BigInteger y = new BigInteger(256, random).mod(p);
+            // Values just below the prime exercise the carries of the reduction.
+            if (i % 4 == 0)
+                x = p.subtract(BigInteger.valueOf(random.nextInt(4) + 1));
+            int[] fx = Secp256k1Field.fromBigInteger(x);
+            int[] fy = Secp256k1Field.fromBigInteger(y);
+            Secp256k1Field.multiply(fx, fy, z, tt);
+            assertEquals(x.multiply(y).mod(p), Secp256k1Field.toBigInteger(z));
+            Secp256k1Field.add(fx, fy, z);
+            assertEquals(x.add(y).mod(p), Secp256k1Field.toBigInteger(z));
+            Secp256k1Field.subtract(fx, fy, z);
+            assertEquals(x.subtract(y).mod(p), Secp256k1Field.toBigInteger(z));
+            Secp256k1Field.negate(fx, z);
+            assertEquals(x.negate().mod(p), Secp256k1Field.toBigInteger(z));
+            BigInteger root = x.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+            assertEquals(root.multiply(root).mod(p).equals(x), Secp256k1Field.sqrt(fx, fx, tt));
+            assertEquals(root, Secp256k1Field.toBigInteger(fx));
+        }
+    }
+
+    @Test
+    public void split() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger k = new BigInteger(256, random).mod(Secp256k1Verifier.N);
+            BigInteger[] split = Secp256k1Verifier.split(k);
+            assertEquals(k, split[0].add(split[1].multiply(Secp256k1Verifier.LAMBDA)).mod(Secp256k1Verifier.N));
+            assertTrue(split[0].abs().bitLength() <= 129);
+            assertTrue(split[1].abs().bitLength() <= 129);
+        }
+    }
+
+    @Test
+    public void wnaf() throws Exception {
+        for (int w = 2; w <= 8; w++) {
+            for (int i = 0; i < 100; i++) {
+                BigInteger k = new BigInteger(130, random);
+                int[] digits = Secp256k1Verifier.wnaf(k, w);
+                BigInteger sum = BigInteger.ZERO;
+                int lastNonZero = -w;
+                for (int bit = 0; bit < digits.length; bit++) {
+                    int digit = digits[bit];
+                    if (digit == 0)
+                        continue;
+                    assertTrue(Math.abs(digit) % 2 == 1 && Math.abs(digit) < 1 << (w - 1));
+                    assertTrue(bit - lastNonZero >= w);
+                    lastNonZero = bit;
+                    sum = sum.add(BigInteger.valueOf(digit).shiftLeft(bit));
+                }
+                assertEquals(k, sum);
+            }
+        }
+    }
+
+    @Test
+    public void agreesWithGenericVerifier() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            // Alternate between compressed and uncompressed public keys.
+            ECKey key = i % 2 == 0 ? new ECKey() : new ECKey(new BigInteger(255, random));
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+            byte[] otherHash = Arrays.copyOf(hash, 32);
+            otherHash[random.nextInt(32)] ^= 1;
+            byte[] otherPub = new ECKey().getPubKey();
+            for (ECKey.VerificationEngine engine : ECKey.VerificationEngine.values()) {
+                ECKey.setVerificationEngine(engine);
+                assertTrue(ECKey.verify(hash, sig, key.getPubKey()));
+                assertFalse(ECKey.verify(otherHash, sig, key.getPubKey()));
+                assertFalse(ECKey.verify(hash, sig, otherPub));
+                assertFalse(ECKey.verify(hash, new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE)),
+                        key.getPubKey()));
+            }
+        }
+    }
+
+    @Test
+    public void hybridPublicKeys() throws Exception {
+        ECKey key = new ECKey(new BigInteger(255, random));
+        byte[] hash = Sha256Hash.create(new byte[] {1}).getBytes();
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        byte[] pub = key.getPubKey();
+        assertEquals(65, pub.length);
+        byte[] hybrid = Arrays.copyOf(pub, 65);
+        boolean odd = (pub[64] & 1) == 1;
+        hybrid[0] = (byte) (odd ? 0x07 : 0x06);
+        assertTrue(Secp256k1Verifier.verify(hash, sig.r, sig.s, hybrid));
+        hybrid[0] = (byte) (odd ? 0x06 : 0x07);
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, hybrid));
+    }
+
+    @Test
+    public void rejectsInvalidInput() throws Exception {
+        ECKey key = new ECKey(new BigInteger(255, random));
+        byte[] hash = Sha256Hash.create(new byte[] {2}).getBytes();
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        byte[] pub = key.getPubKey();
+        assertTrue(Secp256k1Verifier.verify(hash, sig.r, sig.s, pub));
+
+        // Components out of range.
+        assertFalse(Secp256k1Verifier.verify(hash, BigInteger.ZERO, sig.s, pub));
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, Secp256k1Verifier.N, pub));
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r.add(Secp256k1Verifier.N), sig.s, pub));
+
+        // A point that isn't on the curve.
+        byte[] offCurve = Arrays.copyOf(pub, 65);
+        offCurve[64] ^= 1;
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, offCurve));
+
+        // Bad encodings.
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, new byte[0]));
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, Arrays.copyOf(pub, 64)));
+        byte[] badPrefix = Arrays.copyOf(pub, 65);
+        badPrefix[0] = 0x05;
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, badPrefix));
+        // An x co-ordinate with no point on the curve.
+        byte[] noPoint = Utils.parseAsHexOrBase58("020000000000000000000000000000000000000000000000000000000000000005");
+        assertFalse(Secp256k1Verifier.verify(hash, sig.r, sig.s, noPoint));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.crypto;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.infinitecoinj.script.Script;
+import com.google.infinitecoinj.script.ScriptBuilder;
+import com.google.infinitecoinj.script.SignatureCache;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.infinitecoinj.script.ScriptOpCodes.OP_CHECKSIG;
+import static com.google.infinitecoinj.script.ScriptOpCodes.OP_NOT;
+import static org.junit.Assert.*;
+
+public class SignatureBatchTest {
+    private final Random random = new Random(42);
+    private ExecutorService executor;
+    private SignatureCache signatureCache;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        // Make sure every signature goes through the batch.
+        signatureCache = Script.getSignatureCache();
+        Script.setSignatureCache(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        Script.setSignatureCache(signatureCache);
+        ECKey.setVerificationEngine(ECKey.VerificationEngine.SECP256K1);
+    }
+
+    // Fills a batch with signatures from a few keys, making every seventh one invalid.
+    private SignatureBatch createBatch(int size, boolean[] expected) {
+        List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey(new BigInteger(255, random)));
+        SignatureBatch batch = new SignatureBatch();
+        for (int i = 0; i < size; i++) {
+            ECKey key = keys.get(i % keys.size());
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+            expected[i] = i % 7 != 3;
+            if (!expected[i])
+                hash[0] ^= 1;
+            assertEquals(i, batch.add(hash, signature, key.getPubKey()));
+        }
+        return batch;
+    }
+
+    @Test
+    public void verify() throws Exception {
+        for (ECKey.VerificationEngine engine : ECKey.VerificationEngine.values()) {
+            ECKey.setVerificationEngine(engine);
+            boolean[] expected = new boolean[100];
+            SignatureBatch batch = createBatch(100, expected);
+            assertTrue(Arrays.equals(expected, batch.verify(executor)));
+            assertTrue(Arrays.equals(expected, batch.verify(null)));
+            assertEquals(3, batch.findFirstInvalid(executor));
+            assertEquals(3, batch.findFirstInvalid(null));
+        }
+    }
+
+    @Test
+    public void allValid() throws Exception {
+        boolean[] expected = new boolean[5];
+        SignatureBatch batch = createBatch(3, expected);
+        assertEquals(-1, batch.findFirstInvalid(executor));
+        assertEquals(-1, new SignatureBatch().findFirstInvalid(executor));
+        assertEquals(0, new SignatureBatch().verify(executor).length);
+    }
+
+    @Test
+    public void badEncodings() throws Exception {
+        ECKey key = new ECKey();
+        byte[] hash = new byte[32];
+        byte[] signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+        SignatureBatch batch = new SignatureBatch();
+        batch.add(hash, signature, key.getPubKey());
+        batch.add(hash, new byte[] {0x30, 0x01}, key.getPubKey());
+        batch.add(hash, signature, new byte[] {0x02, 0x01});
+        assertTrue(Arrays.equals(new boolean[] {true, false, false}, batch.verify(executor)));
+    }
+
+    @Test
+    public void blockScripts() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        Script payToKey = ScriptBuilder.createOutputScript(key1);
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(1, Lists.newArrayList(key1, key2));
+        // A script that is only satisfied by an invalid signature.
+        Script invalidSignature = new ScriptBuilder().data(key1.getPubKey()).op(OP_CHECKSIG).op(OP_NOT)
+                .build();
+        List<Script> prevOutScripts = Lists.newArrayList(payToKey, multiSig, invalidSignature);
+
+        Transaction prev = new Transaction(params);
+        for (Script script : prevOutScripts)
+            prev.addOutput(Utils.toNanoCoins(1, 0), script);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.toNanoCoins(3, 0), new ECKey());
+        for (TransactionOutput output : prev.getOutputs())
+            tx.addInput(output);
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, payToKey, Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig1));
+        // Signed by the second key, so that OP_CHECKMULTISIG first tries the signature against the wrong key.
+        TransactionSignature sig2 = tx.calculateSignature(1, key2, multiSig, Transaction.SigHash.ALL, false);
+        tx.getInput(1).setScriptSig(ScriptBuilder.createMultiSigInputScript(sig2));
+        tx.getInput(2).setScriptSig(ScriptBuilder.createInputScript(sig1));
+
+        ScriptVerificationScheduler scheduler = new ScriptVerificationScheduler(2);
+        for (boolean batchSignatures : new boolean[] {true, false}) {
+            scheduler.setBatchSignatureVerification(batchSignatures);
+            ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+            batch.add(tx, prevOutScripts, true);
+            batch.verify();
+
+            // A signature for the wrong transaction fails.
+            Transaction bad = new Transaction(params, tx.bitcoinSerialize());
+            bad.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig2));
+            batch = scheduler.newBatch();
+            batch.add(bad, prevOutScripts, true);
+            try {
+                batch.verify();
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+        }
+        scheduler.shutdown();
+    }
+}
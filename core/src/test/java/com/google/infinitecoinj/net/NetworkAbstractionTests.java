@@ -27,6 +27,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.net.SocketFactory;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -550,4 +551,92 @@ public class NetworkAbstractionTests {
 
         server.stopAndWait();
     }
+
+    @Test
+    public void sharedBufferOutlivesClosedConnection() throws Exception {
+        // Writes one pooled buffer to two connections and closes one of them while the message may still be queued.
+        final SettableFuture<Protos.TwoWayChannelMessage> client2MessageReceived = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAndWait();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> client1Handler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {}
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+        MessageWriteTarget client1 = openConnection(new InetSocketAddress("localhost", 4243), client1Handler);
+        ProtobufParser<Protos.TwoWayChannelMessage> client2Handler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                        if (client2MessageReceived.isDone())
+                            fail.set(true);
+                        client2MessageReceived.set(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+        MessageWriteTarget client2 = openConnection(new InetSocketAddress("localhost", 4243), client2Handler);
+
+        // A message as large as the parsers allow, so it's unlikely to be written out in one go.
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                .setClientVersion(Protos.ClientVersion.newBuilder()
+                        .setMajor(1)
+                        .setPreviousChannelContractHash(ByteString.copyFrom(new byte[0x10000 - 12])))
+                .build();
+        byte[] messageBytes = msg.toByteArray();
+        byte[] messageLength = new byte[4];
+        Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
+        BufferPool pool = new BufferPool(1);
+        pool.take(messageLength.length + messageBytes.length).release();
+        int baseline = pool.getFreeBufferCount();
+        BufferPool.PooledBuffer buffer = pool.take(messageLength.length + messageBytes.length);
+        buffer.buffer().put(messageLength).put(messageBytes).flip();
+
+        client1.writeBuffer(buffer);
+        client2.writeBuffer(buffer);
+        client1.closeConnection();
+        // A closed connection takes no more.
+        try {
+            client1.writeBuffer(buffer);
+            fail.set(true);
+        } catch (IOException e) {
+            // Expected.
+        }
+        buffer.release();
+
+        assertEquals(msg, client2MessageReceived.get());
+        // Every reference to the buffer was released, so it went back to the pool.
+        assertEquals(baseline, pool.getFreeBufferCount());
+
+        client2.closeConnection();
+        server.stopAndWait();
+    }
 }
@@ -433,4 +433,48 @@ public class ScriptTest {
         }
         in.close();
     }
+
+    @Test
+    public void dataDrivenLinkedListInterpreter() throws Exception {
+        // The original interpreter must give the same results as the default one on all of the above, without
+        // signatures being taken from the cache.
+        SignatureCache signatureCache = Script.getSignatureCache();
+        Script.setSignatureCache(null);
+        Script.setInterpreterMode(Script.InterpreterMode.LINKED_LIST);
+        try {
+            dataDrivenValidScripts();
+            dataDrivenInvalidScripts();
+            dataDrivenValidTransactions();
+            dataDrivenInvalidTransactions();
+        } finally {
+            Script.setInterpreterMode(Script.InterpreterMode.ARRAY_STACK);
+            Script.setSignatureCache(signatureCache);
+        }
+    }
+
+    @Test
+    public void scriptNumbers() throws Exception {
+        List<Long> values = new ArrayList<Long>();
+        for (long i = -70000; i <= 70000; i++)
+            values.add(i);
+        for (int bits = 15; bits < 33; bits++) {
+            for (long delta = -2; delta <= 2; delta++) {
+                values.add((1L << bits) + delta);
+                values.add(-(1L << bits) + delta);
+            }
+        }
+        for (long value : values) {
+            byte[] expected = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+            byte[] encoded = ScriptInterpreter.encodeNumber(value);
+            assertArrayEquals(expected, encoded);
+            if (encoded.length <= 4)
+                assertEquals(value, ScriptInterpreter.decodeNumber(encoded));
+        }
+        // Non-minimal encodings and negative zero decode like the original interpreter does.
+        assertEquals(0, ScriptInterpreter.decodeNumber(new byte[] {(byte) 0x80}));
+        assertEquals(0, ScriptInterpreter.decodeNumber(new byte[] {0, 0, 0, (byte) 0x80}));
+        assertEquals(1, ScriptInterpreter.decodeNumber(new byte[] {1, 0, 0, 0}));
+        assertEquals(-1, ScriptInterpreter.decodeNumber(new byte[] {1, 0, 0, (byte) 0x80}));
+        assertEquals(-0x7fffffffL, ScriptInterpreter.decodeNumber(new byte[] {-1, -1, -1, -1}));
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.script;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private NetworkParameters params;
+    private ECKey key;
+    private Transaction tx;
+    private Script scriptPubKey;
+    private SignatureCache cache;
+    private SignatureCache previousCache;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key);
+        tx = new Transaction(params);
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(params, 0, prev), scriptPubKey, key);
+        previousCache = Script.getSignatureCache();
+        cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(previousCache);
+    }
+
+    @Test
+    public void cachesValidSignatures() throws Exception {
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+        // The same transaction seen again, for example in a block, isn't verified again.
+        Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+        copy.getInput(0).getScriptSig().correctlySpends(copy, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void doesNotCacheInvalidSignatures() throws Exception {
+        Script otherScriptPubKey = ScriptBuilder.createOutputScript(new ECKey());
+        for (int i = 0; i < 2; i++) {
+            try {
+                tx.getInput(0).getScriptSig().correctlySpends(tx, 0, otherScriptPubKey, true);
+                fail();
+            } catch (ScriptException e) {
+                // Expected.
+            }
+        }
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            byte[] hash = Sha256Hash.create(BigInteger.valueOf(i).toByteArray()).getBytes();
+            ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+            assertTrue(cache.verify(hash, sig, sig.encodeToDER(), key.getPubKey()));
+            assertTrue(cache.verify(hash, sig, sig.encodeToDER(), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+        assertEquals(30, cache.getHitCount());
+        assertEquals(30, cache.getMissCount());
+    }
+}
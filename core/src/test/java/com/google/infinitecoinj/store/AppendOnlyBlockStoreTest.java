@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.store;
+
+import com.google.infinitecoinj.core.Address;
+import com.google.infinitecoinj.core.ECKey;
+import com.google.infinitecoinj.core.NetworkParameters;
+import com.google.infinitecoinj.core.Sha256Hash;
+import com.google.infinitecoinj.core.StoredBlock;
+import com.google.infinitecoinj.core.Utils;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AppendOnlyBlockStoreTest {
+    private NetworkParameters params;
+    private Address to;
+    private File directory;
+
+    @Before
+    public void setUp() {
+        params = UnitTestParams.get();
+        to = new ECKey().toAddress(params);
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private List<StoredBlock> extend(BlockStore store, StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < count; i++) {
+            from = from.build(from.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(from);
+            blocks.add(from);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        AppendOnlyBlockStore store = new AppendOnlyBlockStore(params, directory);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(genesis, store.getByHeight(0));
+
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(extend(store, genesis, 20));
+        store.setChainHead(chain.get(20));
+        store.close();
+
+        // Everything can be found again by hash and height once reopened.
+        store = new AppendOnlyBlockStore(params, directory);
+        assertEquals(chain.get(20), store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.getByHeight(block.getHeight()));
+        }
+        assertNull(store.getByHeight(21));
+        assertNull(store.getByHeight(-1));
+        assertNull(store.get(new Sha256Hash("0000000000000000000000000000000000000000000000000000000000000001")));
+        store.close();
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        AppendOnlyBlockStore store = new AppendOnlyBlockStore(params, directory);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = extend(store, genesis, 10);
+        store.setChainHead(main.get(9));
+
+        // Fork off at height 5 with a longer chain.
+        List<StoredBlock> fork = extend(store, main.get(4), 8);
+        store.setChainHead(fork.get(7));
+        for (int height = 1; height <= 5; height++)
+            assertEquals(main.get(height - 1), store.getByHeight(height));
+        for (int height = 6; height <= 13; height++)
+            assertEquals(fork.get(height - 6), store.getByHeight(height));
+        store.close();
+
+        // Go back to the original chain, now shorter than the fork was.
+        store = new AppendOnlyBlockStore(params, directory);
+        store.setChainHead(main.get(9));
+        for (int height = 1; height <= 10; height++)
+            assertEquals(main.get(height - 1), store.getByHeight(height));
+        assertNull(store.getByHeight(11));
+        // Blocks of the abandoned fork are still there by hash.
+        for (StoredBlock block : fork)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void crash() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+        AppendOnlyBlockStore store = new AppendOnlyBlockStore(params, directory);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> committed = extend(store, genesis, 10);
+        Utils.rollMockClockMillis(AppendOnlyBlockStore.COMMIT_INTERVAL_MSEC);
+        store.setChainHead(committed.get(9));
+        // Soon after a commit, new chain heads wait for the next one.
+        List<StoredBlock> uncommitted = extend(store, committed.get(9), 5);
+        for (StoredBlock block : uncommitted)
+            store.setChainHead(block);
+
+        // Copying the files of the open store gets what a crash would leave if everything had reached the disk.
+        File crashed = Files.createTempDir();
+        try {
+            for (File file : directory.listFiles())
+                Files.copy(file, new File(crashed, file.getName()));
+            AppendOnlyBlockStore recovered = new AppendOnlyBlockStore(params, crashed);
+            assertEquals(committed.get(9), recovered.getChainHead());
+            assertNull(recovered.getByHeight(11));
+            for (StoredBlock block : uncommitted)
+                assertNull(recovered.get(block.getHeader().getHash()));
+            // The index entries of the lost blocks are gone, so the hash index isn't fuller than it says.
+            assertEquals(11, recovered.getHashIndexSize());
+            // The lost blocks can be put again.
+            for (StoredBlock block : uncommitted) {
+                recovered.put(block);
+                recovered.setChainHead(block);
+            }
+            assertEquals(16, recovered.getHashIndexSize());
+            for (StoredBlock block : uncommitted)
+                assertEquals(block, recovered.getByHeight(block.getHeight()));
+            recovered.close();
+        } finally {
+            delete(crashed);
+        }
+
+        // Closing commits.
+        store.close();
+        store = new AppendOnlyBlockStore(params, directory);
+        assertEquals(uncommitted.get(4), store.getChainHead());
+        assertEquals(16, store.getHashIndexSize());
+        store.close();
+    }
+}
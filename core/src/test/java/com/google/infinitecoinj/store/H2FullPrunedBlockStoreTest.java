@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.store;
+
+import com.google.infinitecoinj.core.Sha256Hash;
+import com.google.infinitecoinj.core.StoredTransactionOutput;
+import com.google.infinitecoinj.core.Utils;
+import com.google.infinitecoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private File dir;
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("h2blockstore", null);
+        dir.delete();
+        dir.mkdir();
+        store = new H2FullPrunedBlockStore(UnitTestParams.get(), new File(dir, "test").getAbsolutePath(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    private static StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, 0, Utils.CENT, 1, false, new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void addThenRemoveInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.commitDatabaseBatchWrite();
+
+        // The two cancelled out, so neither reached the database.
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void removeOfMissingOutputFailsAtCommit() throws Exception {
+        StoredTransactionOutput added = output(1);
+        StoredTransactionOutput missing = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(added);
+        // The database isn't asked until the batch is written.
+        store.removeUnspentTransactionOutput(missing);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        // The whole batch was rolled back, and the store is usable again outside of a batch.
+        assertNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+        store.addUnspentTransactionOutput(added);
+        assertNotNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+        store.removeUnspentTransactionOutput(added);
+        assertNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+    }
+
+    @Test
+    public void duplicateInsertInBatch() throws Exception {
+        // Re-applying changes that already reached the database adds outputs it already has, which is ignored.
+        StoredTransactionOutput existing = output(1);
+        StoredTransactionOutput fresh = output(2);
+        store.addUnspentTransactionOutput(existing);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(existing);
+        store.addUnspentTransactionOutput(fresh);
+        store.commitDatabaseBatchWrite();
+
+        assertNotNull(store.getTransactionOutput(existing.getHash(), existing.getIndex()));
+        assertNotNull(store.getTransactionOutput(fresh.getHash(), fresh.getIndex()));
+        // There is just one copy of each to remove.
+        store.removeUnspentTransactionOutput(existing);
+        store.removeUnspentTransactionOutput(fresh);
+        assertFalse(store.hasUnspentOutputs(existing.getHash(), 1));
+        assertFalse(store.hasUnspentOutputs(fresh.getHash(), 1));
+    }
+
+    @Test
+    public void resetInvalidatesStatementsOfOtherThreads() throws Exception {
+        final StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Callable<StoredTransactionOutput> lookup = new Callable<StoredTransactionOutput>() {
+                @Override
+                public StoredTransactionOutput call() throws Exception {
+                    return store.getTransactionOutput(out.getHash(), out.getIndex());
+                }
+            };
+            // The other thread prepares and caches its statements against the tables resetStore drops.
+            assertNotNull(other.submit(lookup).get());
+            store.resetStore();
+            assertNull(other.submit(lookup).get());
+            other.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    store.addUnspentTransactionOutput(out);
+                    return null;
+                }
+            }).get();
+            assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        } finally {
+            other.shutdown();
+        }
+    }
+}
@@ -24,8 +24,11 @@ import com.google.infinitecoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +61,59 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void wrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final int numHeaders = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, numHeaders);
+        assertEquals(0, store.getIndexRebuildTimeMillis());
+
+        // Go round the ring two and a half times, so every slot has been overwritten at least once.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < numHeaders * 5 / 2; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(next);
+            blocks.add(next);
+            prev = next;
+        }
+        // Store a header that is still in the ring a second time, then push its first copy out of the ring.
+        StoredBlock again = blocks.get(blocks.size() - 2);
+        store.put(again);
+        store.setChainHead(prev);
+        store.close();
+
+        // The caches are gone once reopened, so lookups have to go through the rebuilt index.
+        store = new SPVBlockStore(params, f, numHeaders);
+        int firstKept = blocks.size() - numHeaders + 1;
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < firstKept)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertEquals(prev, store.getChainHead());
+        store.close();
+
+        // The header stored twice survives losing its older copy, whether or not the index was rebuilt in between.
+        store = new SPVBlockStore(params, f, numHeaders);
+        prev = store.getChainHead();
+        for (int i = 0; i < numHeaders - 1; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(next);
+            prev = next;
+        }
+        store.close();
+        store = new SPVBlockStore(params, f, numHeaders);
+        assertEquals(again, store.get(again.getHeader().getHash()));
+        assertNull(store.get(blocks.get(blocks.size() - 3).getHeader().getHash()));
+        store.close();
+    }
 }
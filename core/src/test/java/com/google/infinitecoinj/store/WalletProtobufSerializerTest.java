@@ -9,6 +9,8 @@ import com.google.infinitecoinj.script.ScriptBuilder;
 import com.google.infinitecoinj.utils.BriefLogFormatter;
 import com.google.infinitecoinj.utils.TestUtils;
 import com.google.infinitecoinj.utils.Threading;
+import com.google.infinitecoinj.wallet.WalletFiles;
+import com.google.common.io.Files;
 import com.google.protobuf.ByteString;
 import org.infinitecoinj.wallet.Protos;
 import org.junit.Before;
@@ -16,12 +18,14 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.infinitecoinj.utils.TestUtils.createFakeTx;
 import static org.junit.Assert.*;
@@ -307,6 +311,159 @@ public class WalletProtobufSerializerTest {
         assertEquals(0, wallet5.getExtensions().size());
     }
 
+    @Test
+    public void journal() throws Exception {
+        File f = File.createTempFile("journal", ".wallet");
+        f.deleteOnExit();
+        File journal = WalletFiles.getJournalFile(f);
+        journal.deleteOnExit();
+        // A long delay keeps background saves out of the way, so that saveNow decides what's written.
+        WalletFiles files = myWallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.setJournaled(true);
+        files.saveNow();
+        assertFalse(journal.exists());
+
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        Block b1 = params.getGenesisBlock().createNextBlock(myAddress);
+        Block b2 = b1.createNextBlock(myAddress);
+        assertTrue(chain.add(b1));
+        files.saveNow();
+        assertTrue(chain.add(b2));
+        ECKey key2 = new ECKey();
+        myWallet.addKey(key2);
+        assertTrue(journal.exists());
+
+        // The transaction from the first block was saved before the second, and got deeper.
+        Wallet wallet2 = Wallet.loadFromFile(f);
+        assertEquals(2, wallet2.getTransactions(false).size());
+        for (Transaction tx : myWallet.getTransactions(false)) {
+            TransactionConfidence confidence = wallet2.getTransaction(tx.getHash()).getConfidence();
+            assertEquals(tx.getConfidence().getAppearedAtChainHeight(), confidence.getAppearedAtChainHeight());
+            assertEquals(tx.getConfidence().getDepthInBlocks(), confidence.getDepthInBlocks());
+            assertEquals(tx.getConfidence().getWorkDone(), confidence.getWorkDone());
+        }
+        assertNotNull(wallet2.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(b2.getHash(), wallet2.getLastBlockSeenHash());
+        assertEquals(myWallet.getBalance(), wallet2.getBalance());
+        assertEquals(myWallet.getJournalSequence(), wallet2.getJournalSequence());
+        assertEquals(WALLET_DESCRIPTION, wallet2.getDescription());
+
+        // A record cut short by a crash is ignored.
+        ByteArrayOutputStream damaged = new ByteArrayOutputStream();
+        damaged.write(Files.toByteArray(journal));
+        damaged.write(new byte[]{50, 1, 2});
+        Protos.Wallet snapshot = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(Files.toByteArray(f)));
+        Wallet wallet3 = new WalletProtobufSerializer().readWallet(
+                WalletProtobufSerializer.replayJournal(snapshot, new ByteArrayInputStream(damaged.toByteArray())));
+        assertNotNull(wallet3.findKeyFromPubKey(key2.getPubKey()));
+
+        // Once the journal is too large it's merged into the wallet file.
+        files.setMaxJournalSize(0);
+        Block b3 = b2.createNextBlock(myAddress);
+        assertTrue(chain.add(b3));
+        files.saveNow();
+        assertFalse(journal.exists());
+        Wallet wallet4 = Wallet.loadFromFile(f);
+        assertEquals(3, wallet4.getTransactions(false).size());
+        assertEquals(3, wallet4.getTransaction(b1.getTransactions().get(1).getHash()).getConfidence().getDepthInBlocks());
+        assertNotNull(wallet4.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(myWallet.getJournalSequence(), wallet4.getJournalSequence());
+    }
+
+    @Test
+    public void saveToFileWhileJournaled() throws Exception {
+        File f = File.createTempFile("journal", ".wallet");
+        f.deleteOnExit();
+        File journal = WalletFiles.getJournalFile(f);
+        journal.deleteOnExit();
+        WalletFiles files = myWallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.setJournaled(true);
+        files.saveNow();
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        Block b1 = params.getGenesisBlock().createNextBlock(myAddress);
+        Block b2 = b1.createNextBlock(myAddress);
+        Block b3 = b2.createNextBlock(myAddress);
+        assertTrue(chain.add(b1));
+        files.saveNow();
+        assertTrue(journal.exists());
+
+        // Saving by hand replaces the journal, so the block it saved isn't counted again by the next record.
+        assertTrue(chain.add(b2));
+        myWallet.saveToFile(f);
+        assertFalse(journal.exists());
+        assertTrue(chain.add(b3));
+        files.saveNow();
+        assertTrue(journal.exists());
+
+        Wallet wallet2 = Wallet.loadFromFile(f);
+        assertEquals(3, wallet2.getTransactions(false).size());
+        for (Transaction tx : myWallet.getTransactions(false)) {
+            TransactionConfidence confidence = wallet2.getTransaction(tx.getHash()).getConfidence();
+            assertEquals(tx.getConfidence().getDepthInBlocks(), confidence.getDepthInBlocks());
+            assertEquals(tx.getConfidence().getWorkDone(), confidence.getWorkDone());
+        }
+        assertEquals(3, wallet2.getTransaction(b1.getTransactions().get(1).getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(myWallet.getJournalSequence(), wallet2.getJournalSequence());
+    }
+
+    // Lets the test hold the wallet lock, as the wallet does while it saves after a change.
+    private static class LockableWallet extends Wallet {
+        LockableWallet(NetworkParameters params) {
+            super(params);
+        }
+
+        void lock() {
+            lock.lock();
+        }
+
+        void unlock() {
+            lock.unlock();
+        }
+
+        boolean isLockWaitedFor() {
+            return lock.hasQueuedThreads();
+        }
+    }
+
+    @Test
+    public void saveNowDuringBackgroundSave() throws Exception {
+        File f = File.createTempFile("journal", ".wallet");
+        f.deleteOnExit();
+        WalletFiles.getJournalFile(f).deleteOnExit();
+        final LockableWallet wallet = new LockableWallet(params);
+        wallet.addKey(myKey);
+        final WalletFiles files = wallet.autosaveToFile(f, 0, TimeUnit.SECONDS, null);
+        files.setJournaled(true);
+        files.saveNow();
+
+        // Saves immediately while a background save waits for the wallet lock.
+        final ECKey key2 = new ECKey();
+        Thread saving = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock();
+                try {
+                    files.saveLater();
+                    while (!wallet.isLockWaitedFor())
+                        Thread.sleep(10);
+                    wallet.addKey(key2);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.unlock();
+                }
+            }
+        };
+        saving.setDaemon(true);
+        saving.start();
+        saving.join(10000);
+        assertFalse("Deadlocked saving the wallet", saving.isAlive());
+
+        Wallet wallet2 = Wallet.loadFromFile(f);
+        assertNotNull(wallet2.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(wallet.getJournalSequence(), wallet2.getJournalSequence());
+    }
+
     private static class SomeFooExtension implements WalletExtension {
         private final byte[] data = new byte[]{1, 2, 3};
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.infinitecoinj.wallet;
+
+import com.google.infinitecoinj.core.*;
+import com.google.infinitecoinj.params.UnitTestParams;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    // With a fee of 1000 per kilobyte, the costs are the sizes in bytes.
+    private static final BigInteger FEE_PER_KB = BigInteger.valueOf(1000);
+
+    private Transaction tx;
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = new Transaction(params);
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        address = new ECKey().toAddress(params);
+    }
+
+    private TransactionOutput output(long value) {
+        return tx.addOutput(BigInteger.valueOf(value), address);
+    }
+
+    private static BigInteger sum(CoinSelection selection) {
+        BigInteger total = BigInteger.ZERO;
+        for (TransactionOutput output : selection.gathered)
+            total = total.add(output.getValue());
+        return total;
+    }
+
+    @Test
+    public void avoidsChange() throws Exception {
+        // The greedy selector takes the two largest and makes change, but two of the small ones fit exactly.
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        TransactionOutput a = output(100000), b = output(90000), c = output(30000), d = output(20000);
+        candidates.add(a);
+        candidates.add(b);
+        candidates.add(c);
+        candidates.add(d);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, 1000);
+        CoinSelection selection = selector.select(BigInteger.valueOf(50000), candidates);
+        assertEquals(2, selection.gathered.size());
+        assertTrue(selection.gathered.contains(c));
+        assertTrue(selection.gathered.contains(d));
+        assertEquals(BigInteger.valueOf(50000), selection.valueGathered);
+
+        // A single input that overpays by less than the cost of change beats two that match exactly.
+        TransactionOutput e = output(50100);
+        candidates.add(e);
+        selection = selector.select(BigInteger.valueOf(50000), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertTrue(selection.gathered.contains(e));
+        assertEquals(BigInteger.valueOf(50100), selection.valueGathered);
+    }
+
+    @Test
+    public void fallsBack() throws Exception {
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        candidates.add(output(100000));
+        candidates.add(output(70000));
+        // Nothing comes close enough, so the default selector picks and there will be change.
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, 1000);
+        CoinSelection selection = selector.select(BigInteger.valueOf(50000), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertEquals(BigInteger.valueOf(100000), selection.valueGathered);
+        // Not enough money at all.
+        selection = selector.select(BigInteger.valueOf(500000), candidates);
+        assertEquals(BigInteger.valueOf(170000), selection.valueGathered);
+        // Everything.
+        selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+        assertEquals(BigInteger.valueOf(170000), selection.valueGathered);
+    }
+
+    @Test
+    public void unselectable() throws Exception {
+        Transaction pending = new Transaction(params);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        candidates.add(pending.addOutput(BigInteger.valueOf(50000), address));
+        TransactionOutput usable = output(60000);
+        candidates.add(usable);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, 1000);
+        CoinSelection selection = selector.select(BigInteger.valueOf(50000), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertTrue(selection.gathered.contains(usable));
+    }
+
+    @Test
+    public void manyCandidates() throws Exception {
+        Random random = new Random(42);
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (int i = 0; i < 2000; i++)
+            candidates.add(output(1000 + random.nextInt(1000000)));
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, 1000);
+        long upperBound = 1234567 + 34 + 181;
+        for (int i = 0; i < 10; i++) {
+            CoinSelection selection = selector.select(BigInteger.valueOf(1234567), candidates);
+            assertEquals(sum(selection), selection.valueGathered);
+            assertTrue(selection.valueGathered.longValue() >= 1234567);
+            assertTrue(selection.valueGathered.longValue() <= upperBound);
+        }
+        // Without any time to search, the default selector is used.
+        CoinSelection selection = new BranchAndBoundCoinSelector(FEE_PER_KB, 0)
+                .select(BigInteger.valueOf(1234567), candidates);
+        assertEquals(new DefaultCoinSelector().select(BigInteger.valueOf(1234567), candidates).valueGathered,
+                selection.valueGathered);
+    }
+}
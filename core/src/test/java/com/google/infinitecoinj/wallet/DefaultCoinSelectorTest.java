@@ -21,6 +21,7 @@ import com.google.infinitecoinj.params.RegTestParams;
 import com.google.infinitecoinj.params.UnitTestParams;
 import com.google.infinitecoinj.utils.TestUtils;
 import com.google.infinitecoinj.utils.TestWithWallet;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -28,6 +29,9 @@ import org.junit.Test;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
@@ -90,24 +94,80 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
     }
 
     @Test
-    public void coinAgeOrdering() throws Exception {
-        // Send three transactions in four blocks on top of each other. Coin age of t1 is 1*4=4, coin age of t2 = 2*2=4
-        // and t3=0.01.
+    public void depthThenValueOrdering() throws Exception {
+        // Send three transactions in four blocks on top of each other. t1 is the deepest, t2 has the highest value.
         Transaction t1 = checkNotNull(sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN));
         // Padding block.
         wallet.notifyNewBestBlock(TestUtils.createFakeBlock(blockStore).storedBlock);
         final BigInteger TWO_COINS = Utils.COIN.multiply(BigInteger.valueOf(2));
         Transaction t2 = checkNotNull(sendMoneyToWallet(TWO_COINS, AbstractBlockChain.NewBlockType.BEST_CHAIN));
         Transaction t3 = checkNotNull(sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN));
+        // Two pending ones, which go last and largest first.
+        Transaction t4 = checkNotNull(sendMoneyToWallet(Utils.CENT, null));
+        Transaction t5 = checkNotNull(sendMoneyToWallet(Utils.COIN, null));
 
-        // Should be ordered t2, t1, t3.
+        // Should be ordered t1, t2, t3, t5, t4.
         ArrayList<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        candidates.add(t4.getOutput(0));
         candidates.add(t3.getOutput(0));
+        candidates.add(t5.getOutput(0));
         candidates.add(t2.getOutput(0));
         candidates.add(t1.getOutput(0));
         DefaultCoinSelector.sortOutputs(candidates);
-        assertEquals(t2.getOutput(0), candidates.get(0));
-        assertEquals(t1.getOutput(0), candidates.get(1));
+        assertEquals(t1.getOutput(0), candidates.get(0));
+        assertEquals(t2.getOutput(0), candidates.get(1));
         assertEquals(t3.getOutput(0), candidates.get(2));
+        assertEquals(t5.getOutput(0), candidates.get(3));
+        assertEquals(t4.getOutput(0), candidates.get(4));
+        assertEquals(candidates, wallet.calculateAllSpendCandidates(true));
+    }
+
+    @Test
+    public void walletOrdering() throws Exception {
+        // The wallet keeps its spend candidates in the order the selector sorts them into.
+        for (int i = 0; i < 5; i++) {
+            BigInteger value = Utils.CENT.multiply(BigInteger.valueOf(5 - i));
+            sendMoneyToWallet(value, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            sendMoneyToWallet(value.add(Utils.CENT), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            wallet.notifyNewBestBlock(TestUtils.createFakeBlock(blockStore).storedBlock);
+        }
+        LinkedList<TransactionOutput> candidates = wallet.calculateAllSpendCandidates(true);
+        assertEquals(10, candidates.size());
+        ArrayList<TransactionOutput> sorted = new ArrayList<TransactionOutput>(candidates);
+        DefaultCoinSelector.sortOutputs(sorted);
+        assertEquals(sorted, candidates);
+        CoinSelection selection = new DefaultCoinSelector().selectFromSorted(Utils.CENT.multiply(BigInteger.valueOf(8)),
+                candidates);
+        assertEquals(2, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(0)));
+        assertTrue(selection.gathered.contains(candidates.get(1)));
+    }
+
+    @Test
+    public void completeTxSelectsFromSortedCandidates() throws Exception {
+        // A coinbase in the deepest block comes first in the wallet's order, but can't be spent until it matures.
+        Block b1 = params.getGenesisBlock().createNextBlockWithCoinbase(myKey.getPubKey(), Utils.COIN);
+        chain.add(b1);
+        Transaction coinbase = b1.getTransactions().get(0);
+        assertTrue(wallet.isTransactionRelevant(coinbase));
+        for (int i = 0; i < 3; i++) {
+            BigInteger value = Utils.CENT.multiply(BigInteger.valueOf(5 + i));
+            sendMoneyToWallet(value, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        }
+        LinkedList<TransactionOutput> candidates = wallet.calculateAllSpendCandidates(true);
+        assertEquals(3, candidates.size());
+        assertFalse(candidates.contains(coinbase.getOutput(0)));
+
+        // The send takes the two deepest spendable outputs and stops there.
+        ECKey someone = new ECKey();
+        Wallet.SendRequest req = Wallet.SendRequest.to(someone.toAddress(params), Utils.CENT.multiply(BigInteger.valueOf(8)));
+        req.fee = BigInteger.ZERO;
+        req.feePerKb = BigInteger.ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        Set<TransactionOutput> spent = new HashSet<TransactionOutput>();
+        for (TransactionInput input : req.tx.getInputs())
+            spent.add(input.getConnectedOutput());
+        assertEquals(ImmutableSet.of(candidates.get(0), candidates.get(1)), spent);
     }
 }